@@ -0,0 +1,212 @@
+/* Project: LispLib
+ * File:    Analyzer.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.*;
+
+/** This class represents an Analyzer that turns parsed expressions into
+ * trees of executable Nodes.
+ *
+ * Special forms are only specialized when their symbol is bound to the
+ * original primitive and the form has the shape that primitive accepts,
+ * anything else becomes a generic call so errors are reported at run time
+ * exactly as the interpreter reports them. Variables bound by the function
+ * or an enclosing let and the variables it captured are resolved to their
+ * slot in the Frame, any other symbol refers to its global value. Calls of
+ * the Intrinsic primitives are guarded the same way as special forms.
+ *
+ * @author Layne
+ */
+public class Analyzer {
+
+    private SymbolTable symTable;
+    private Intrinsic intrinsic;
+    private Symbol IF, COND, LET, SETQ, WHILE;
+
+    public Analyzer(SymbolTable symTable) {
+        this.symTable = symTable;
+        intrinsic = new Intrinsic(symTable);
+        IF = symTable.add("IF");
+        COND = symTable.add("COND");
+        LET = symTable.add("LET");
+        SETQ = symTable.add("SETQ");
+        WHILE = symTable.add("WHILE");
+    }
+
+    /** Analyzes a top level expression, which has no local variables */
+    public Node analyze(Exp e) throws Exception {
+        return analyze(e, null, false);
+    }
+
+    /** Analyzes a function body, whose last expression is in tail position */
+    public Node analyzeFunction(Function f) throws Exception {
+        Symbol[] names = f.names();
+        Symbol[] captures = f.captures();
+        Scope scope = null;
+        if (captures != null && captures.length > 0)
+            scope = new Scope(captures, captures.length, null);
+        return analyzeBody(f.body(), new Scope(names, names.length, scope), true).ending();
+    }
+
+    private Node analyze(Exp e, Scope scope, boolean tail) throws Exception {
+        switch (e.type()) {
+            case SYMBOL: {
+                int[] at = scope == null ? null : scope.resolve((Symbol) e);
+                if (at == null)
+                    return new Node.GlobalRef((Symbol) e);
+                return new Node.LocalRef(at[0], at[1]);
+            }
+            case LIST:
+                if (e == List.Nil)
+                    return new Node.Const(e);
+                return analyzeForm((List) e, scope, tail);
+            default:
+                return new Node.Const(e);
+        }
+    }
+
+    private Node analyzeBody(List body, Scope scope, boolean tail) throws Exception {
+        ArrayList<Node> exps = new ArrayList<Node>();
+        while (body != List.Nil) {
+            exps.add(analyze(body.head(), scope, tail && body.tail() == List.Nil));
+            body = body.tail();
+        }
+        if (exps.size() == 1)
+            return exps.get(0);
+        return new Node.Body(exps.toArray(new Node[exps.size()]));
+    }
+
+    private Node analyzeForm(List form, Scope scope, boolean tail) throws Exception {
+        // a local variable named like a special form or intrinsic is called
+        if (form.head().type() == Exp.Type.SYMBOL && properList(form)
+                && (scope == null || scope.resolve((Symbol) form.head()) == null)) {
+            Symbol sym = (Symbol) form.head();
+            Exp value = sym.value();
+            if (value != null && value.type() == Exp.Type.PRIMATIVE) {
+                Prim prim = (Prim) value;
+                Node n = null;
+                if (sym == symTable.QUOTE && form.length() == 2)
+                    n = new Node.Const(form.get(1));
+                else if (sym == IF)
+                    n = analyzeIf(prim, form, scope, tail);
+                else if (sym == COND)
+                    n = analyzeCond(prim, form, scope, tail);
+                else if (sym == LET)
+                    n = analyzeLet(prim, form, scope, tail);
+                else if (sym == SETQ)
+                    n = analyzeSetq(prim, form, scope);
+                else if (sym == WHILE)
+                    n = analyzeWhile(prim, form, scope);
+                if (n != null)
+                    return n;
+            }
+            int op = intrinsic.find(form);
+            if (op >= 0)
+                return analyzeIntrinsic(op, form, scope);
+        }
+        return analyzeCall(form, scope, tail);
+    }
+
+    private Node analyzeIntrinsic(int op, List form, Scope scope) throws Exception {
+        Symbol sym = intrinsic.symbol(op);
+        Prim prim = intrinsic.prim(op);
+        Node a = analyze(form.get(1), scope, false);
+        if (Intrinsic.arity(op) == 1)
+            return new Node.Unary(sym, prim, form, op, a);
+        return Node.Arith.of(new Node.Binary(sym, prim, form, op, a, analyze(form.get(2), scope, false)));
+    }
+
+    private Node analyzeCall(List form, Scope scope, boolean tail) throws Exception {
+        Node op = analyze(form.head(), scope, false);
+        if (!properList(form))
+            return new Node.Call(op, new Node[0], form, false);
+        List args = form.tail();
+        Node[] argNodes = new Node[args.length()];
+        for (int i = 0; i < argNodes.length; i++) {
+            argNodes[i] = analyze(args.head(), scope, false);
+            args = args.tail();
+        }
+        return new Node.Call(op, argNodes, form, tail);
+    }
+
+    private Node analyzeIf(Prim prim, List form, Scope scope, boolean tail) throws Exception {
+        if (form.length() != 4)
+            return null;
+        return new Node.If(IF, prim, form,
+                analyze(form.get(1), scope, false), analyze(form.get(2), scope, tail).ending(),
+                analyze(form.get(3), scope, tail).ending());
+    }
+
+    private Node analyzeCond(Prim prim, List form, Scope scope, boolean tail) throws Exception {
+        List clauses = form.tail();
+        int count = clauses.length();
+        Node[] tests = new Node[count];
+        Node[] bodies = new Node[count];
+        for (int i = 0; i < count; i++) {
+            Exp c = clauses.head();
+            if (c.type() != Exp.Type.LIST || c == List.Nil || !properList((List) c))
+                return null;
+            List clause = (List) c;
+            tests[i] = analyze(clause.head(), scope, false);
+            bodies[i] = analyzeBody(clause.tail(), scope, tail).ending();
+            clauses = clauses.tail();
+        }
+        return new Node.Cond(COND, prim, form, tests, bodies);
+    }
+
+    private Node analyzeLet(Prim prim, List form, Scope scope, boolean tail) throws Exception {
+        if (form.length() < 2 || form.get(1).type() != Exp.Type.LIST || !properList((List) form.get(1)))
+            return null;
+        List locals = (List) form.get(1);
+        int count = locals.length();
+        Symbol[] vars = new Symbol[count];
+        Node[] inits = new Node[count];
+        Scope inner = new Scope(vars, 0, scope);
+        for (int i = 0; i < count; i++) {
+            Exp local = locals.head();
+            if (local.type() == Exp.Type.SYMBOL)
+                vars[i] = (Symbol) local;
+            else if (local.type() == Exp.Type.LIST && local != List.Nil && properList((List) local)) {
+                List var = (List) local;
+                if (var.length() != 2 || var.head().type() != Exp.Type.SYMBOL)
+                    return null;
+                vars[i] = (Symbol) var.head();
+                inits[i] = analyze(var.tail().head(), inner, false);
+            }
+            else
+                return null;
+            inner.setVisible(i + 1);
+            locals = locals.tail();
+        }
+        return new Node.Let(LET, prim, form, vars, inits, analyzeBody(form.tail().tail(), inner, tail).ending());
+    }
+
+    private Node analyzeSetq(Prim prim, List form, Scope scope) throws Exception {
+        if (form.length() != 3 || form.get(1).type() != Exp.Type.SYMBOL)
+            return null;
+        Symbol var = (Symbol) form.get(1);
+        int[] at = scope == null ? null : scope.resolve(var);
+        Node value = analyze(form.get(2), scope, false);
+        if (at == null)
+            return new Node.Setq(SETQ, prim, form, var, -1, -1, value);
+        return new Node.Setq(SETQ, prim, form, var, at[0], at[1], value);
+    }
+
+    private Node analyzeWhile(Prim prim, List form, Scope scope) throws Exception {
+        if (form.length() < 2)
+            return null;
+        return new Node.While(WHILE, prim, form, analyze(form.get(1), scope, false),
+                analyzeBody(form.tail().tail(), scope, false));
+    }
+
+    private static boolean properList(List n) {
+        while (n != List.Nil) {
+            if (n.tailExp().type() != Exp.Type.LIST)
+                return false;
+            n = n.tail();
+        }
+        return true;
+    }
+}
@@ -22,7 +22,7 @@ public class ArgList {
         return args == List.Nil;
     }
 
-    public Exp next(Exp.Type type, List env, boolean last, int level) throws Exception {
+    public Exp next(Exp.Type type, Frame env, boolean last, int level) throws Exception {
         if (args == List.Nil || (last && args.tail() != List.Nil))
             throw new Exception("wrong number of arguments");
         Exp arg = args.head();
@@ -66,65 +66,68 @@ public class Array extends Exp {
         if (a.data.length != data.length)
             return false;
         for (int i = 0; i < data.length; i++) {
-            if (!a.data[i].equals(data[i]))
+            if (!a.item(i).equal(item(i)))
                 return false;
         }
         return true;
     }
 
+    @Override
+    protected int hash(int depth) {
+        int h = data.length;
+        if (depth == 0)
+            return h;
+        for (int i = 0; i < data.length; i++)
+            h = 31 * h + item(i).hash(depth - 1);
+        return h;
+    }
+
+    /** Returns element i, Nil if it was never set */
+    private Exp item(int i) {
+        if (data[i] == null)
+            return List.Nil;
+        return data[i];
+    }
+
     public static void addPrims(SymbolTable s) {
-        s.addPrim("arrayp", new Prim.Handler() {
+        s.addPrim("arrayp", new Prim.Strict(1, 1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primArrayp(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primArrayp(interp, a);
             }
         });
-        s.addPrim("array", new Prim.Handler() {
+        s.addPrim("array", new Prim.Strict(1, -1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primArray(interp, args, env, level);
+            public Exp callN(Lisp interp, Exp[] args) throws Exception {
+                return primArray(interp, args);
             }
         });
-        s.addPrim("arrset", new Prim.Handler() {
+        s.addPrim("arrset", new Prim.Strict(3, 3, Exp.Type.NUMBER, Exp.Type.ARRAY, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primArrSet(interp, args, env, level);
+            public Exp call3(Lisp interp, Exp a, Exp b, Exp c) throws Exception {
+                ((Array) b).set(((Number) a).intValue(), c);
+                return c;
             }
         });
     }
 
-    private static Exp primArrayp(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp e = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primArrayp(Lisp interp, Exp e) throws Exception {
         if (e.type() == Exp.Type.ARRAY)
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primArray(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp first = argList.next(Exp.Type.ANY, env, false, level);
-        if (argList.empty() && first.type() == Exp.Type.NUMBER) {
-            Number size = (Number) first;
-            return new Array((int) size.value());
+    private static Exp primArray(Lisp interp, Exp[] args) throws Exception {
+        if (args.length == 1 && args[0].type() == Exp.Type.NUMBER) {
+            Number size = (Number) args[0];
+            return new Array(size.intValue());
         }
-        Array a = new Array(args.length());
-        a.set(0, first);
-        int i = 1;
-        while (!argList.empty())
-            a.set(i++, argList.next(Exp.Type.ANY, env, false, level));
+        Array a = new Array(args.length);
+        for (int i = 0; i < args.length; i++)
+            a.set(i, args[i]);
         return a;
     }
-
-    private static Exp primArrSet(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number i = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Array a = (Array) argList.next(Exp.Type.ARRAY, env, false, level);
-        Exp e = argList.next(Exp.Type.ANY, env, true, level);
-        a.set((int) (i.value()), e);
-        return e;
-    }
 }
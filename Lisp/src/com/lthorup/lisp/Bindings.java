@@ -0,0 +1,181 @@
+/* Project: LispLib
+ * File:    Bindings.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.*;
+
+/** This class represents the special Bindings stack of the SHALLOW engine.
+ *
+ * With shallow binding the current local value of a variable is kept in
+ * its Symbol, so reading it is a field load whatever the depth of the
+ * call. Binding a variable saves the value it replaces here and unwinding
+ * puts the saved values back. A call also hides the variables of the
+ * function that made it, since a function only sees its own variables and
+ * the globals, which costs the number of variables of the caller and not
+ * the depth of the call chain. A variable a closure captures is moved into
+ * a Cell, which stays bound in place of its value, and calling the closure
+ * binds the variable to that Cell again, so assignments are shared like
+ * those of the other engines.
+ *
+ * @author Layne
+ */
+public class Bindings {
+
+    // a null symbol marks the start of a call and saves the previous base
+    private Symbol[] syms = new Symbol[64];
+    private Exp[] saved = new Exp[64];
+    private int[] bases = new int[64];
+    // the bindings that start a frame of the running function, for current
+    private boolean[] starts = new boolean[64];
+    private int top = 0;
+    private int base = 0;
+    private int start = 0;
+
+    public int mark() {
+        return top;
+    }
+
+    /** Returns the mark like mark, the variables bound next make a frame
+     * like the one a let or a for of the other engines makes
+     */
+    public int frame() {
+        start = top;
+        return top;
+    }
+
+    /** Returns the local value of sym, null if it has none */
+    public Exp get(Symbol sym) {
+        Exp b = sym.binding();
+        return b instanceof Frame.Cell ? ((Frame.Cell) b).value : b;
+    }
+
+    /** Sets the local value of sym, which must have one */
+    public void set(Symbol sym, Exp value) {
+        Exp b = sym.binding();
+        if (b instanceof Frame.Cell)
+            ((Frame.Cell) b).value = value;
+        else
+            sym.setBinding(value);
+    }
+
+    /** Returns the Cell holding the local value of sym, moving the value
+     * into a new one if it has none yet, null if sym has no local value
+     */
+    Exp cell(Symbol sym) {
+        Exp b = sym.binding();
+        if (b != null && !(b instanceof Frame.Cell)) {
+            b = new Frame.Cell(b);
+            sym.setBinding(b);
+        }
+        return b;
+    }
+
+    /** Binds sym to value until the stack is unwound below this point */
+    public void bind(Symbol sym, Exp value) {
+        push(sym, sym.binding());
+        sym.setBinding(value);
+    }
+
+    /** Enters a call binding the slots of args, returns the mark to unwind
+     * to when the call is done
+     */
+    public int call(Frame args) {
+        int mark = top;
+        int callerBase = base;
+        push(null, null);
+        bases[mark] = callerBase;
+        for (int i = callerBase; i < mark; i++) {
+            Symbol sym = syms[i];
+            if (sym.binding() != null) {
+                push(sym, sym.binding());
+                sym.setBinding(null);
+            }
+        }
+        base = top;
+        // the captured variables are the frame around the arguments
+        Frame captured = args.parent();
+        if (captured != null && captured.size() > 0) {
+            start = top;
+            Symbol[] names = captured.names();
+            for (int i = 0; i < names.length; i++)
+                bind(names[i], captured.slot(i));
+        }
+        start = top;
+        Symbol[] names = args.names();
+        for (int i = 0; i < names.length; i++)
+            bind(names[i], args.slot(i));
+        return mark;
+    }
+
+    /** Ends the call entered at mark in favour of the call binding the
+     * slots of args above it, which it makes in tail position: the latter
+     * is entered again at mark, its variables keeping the values and Cells
+     * they have now. Returns the mark of the call.
+     */
+    public int replace(int mark, Frame args) {
+        Symbol[] names = args.names();
+        for (int i = 0; i < names.length; i++)
+            args.set(i, names[i].binding());
+        unwind(mark);
+        return call(args);
+    }
+
+    public void unwind(int mark) {
+        while (top > mark) {
+            top--;
+            if (syms[top] == null)
+                base = bases[top];
+            else
+                syms[top].setBinding(saved[top]);
+            syms[top] = null;
+            saved[top] = null;
+        }
+    }
+
+    /** Returns the variables bound by the running function as the Frames
+     * the other engines would have, the innermost first
+     */
+    public Frame current() {
+        Frame f = null;
+        int first = base;
+        while (first < top) {
+            int end = first + 1;
+            while (end < top && !starts[end])
+                end++;
+            Symbol[] names = Arrays.copyOfRange(syms, first, end);
+            Exp[] values = new Exp[names.length];
+            for (int i = first; i < end; i++)
+                values[i - first] = value(i);
+            f = new Frame(names, values, f);
+            first = end;
+        }
+        return f;
+    }
+
+    /** Returns the value of the binding at i, which a later binding of the
+     * same symbol has saved if there is one
+     */
+    private Exp value(int i) {
+        for (int j = i + 1; j < top; j++) {
+            if (syms[j] == syms[i])
+                return saved[j] instanceof Frame.Cell ? ((Frame.Cell) saved[j]).value : saved[j];
+        }
+        return get(syms[i]);
+    }
+
+    private void push(Symbol sym, Exp value) {
+        if (top == syms.length) {
+            int size = top * 2;
+            syms = Arrays.copyOf(syms, size);
+            saved = Arrays.copyOf(saved, size);
+            bases = Arrays.copyOf(bases, size);
+            starts = Arrays.copyOf(starts, size);
+        }
+        syms[top] = sym;
+        saved[top] = value;
+        starts[top] = top == start;
+        top++;
+    }
+}
@@ -0,0 +1,60 @@
+/* Project: LispLib
+ * File:    Budget.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+/** This class represents the Budget of one call of Lisp.Interpret.
+ *
+ * Steps are counted wherever the evaluator polls for stop: at every call
+ * and loop iteration, and at every evaluation in the interpreters. Cons
+ * cells are counted where evaluated code builds a list: in cons, list,
+ * append, hashkeys, symstats and the list results of the parallel
+ * primitives, and in the rest argument of a call. The lists read by the
+ * Parser, rewritten by the Optimizer or returned by trace are not
+ * counted. A limit of zero means no limit. Exceeding any limit ends the
+ * evaluation with an Exceeded error.
+ *
+ * @author Layne
+ */
+public class Budget {
+
+    /** The error raised when an evaluation runs out of its Budget */
+    public static class Exceeded extends LispError {
+
+        private static final long serialVersionUID = 0;
+
+        public Exceeded(String what) {
+            super(what + " budget exceeded");
+        }
+    }
+
+    private long steps;
+    private long millis;
+    private long conses;
+    private int depth;
+
+    public Budget(long steps, long millis, long conses, int depth) {
+        this.steps = steps;
+        this.millis = millis;
+        this.conses = conses;
+        this.depth = depth;
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    public long millis() {
+        return millis;
+    }
+
+    public long conses() {
+        return conses;
+    }
+
+    /** Returns the deepest evaluation level allowed */
+    public int depth() {
+        return depth;
+    }
+}
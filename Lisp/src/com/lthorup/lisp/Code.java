@@ -0,0 +1,203 @@
+/* Project: LispLib
+ * File:    Code.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+/** This class represents the compiled Code of a function body.
+ *
+ * Instructions are stored in an int array as an opcode followed by its
+ * operands. Operands named k index the constant pool, operands named a
+ * are absolute addresses in the code array, operands named f index the
+ * table of frame layouts and operands named t the table of Typed
+ * expressions. Local variables are addressed by the depth of their Frame
+ * below the innermost one and their index in it.
+ *
+ * The Spans of the forms and global symbols that can fail give the
+ * backtrace of an error at any instruction, the same one Lisp.eval
+ * would have built evaluating the source.
+ *
+ * @author Layne
+ */
+public class Code {
+
+    public static final int CONST = 0;      // k        push consts[k]
+    public static final int LOAD = 1;       // k        push global value of symbol consts[k]
+    public static final int SETQ = 2;       // k        set global symbol consts[k] to top of stack
+    public static final int POP = 3;        //          drop top of stack
+    public static final int JUMP = 4;       // a        continue at a
+    public static final int JUMPF = 5;      // a        pop, continue at a if not T
+    public static final int LOOP = 6;       // a        continue at a, checking for stop
+    public static final int BIND = 7;       // i        pop into slot i of the innermost frame
+    public static final int LEAVE = 8;      //          drop the innermost frame
+    public static final int GUARD = 9;      // k p a    continue at a if symbol consts[k] is not bound to consts[p]
+    public static final int EVAL = 10;      // k        push value of expression consts[k]
+    public static final int CALLPREP = 11;  // k n a    operator on top, apply slowly to form consts[k] unless it is a plain function or a strict primitive taking n arguments
+    public static final int CALL = 12;      // n k      call function or primitive below n arguments, for form consts[k]
+    public static final int RET = 13;       //          return top of stack
+    public static final int TCALL = 14;     // n k      CALL in tail position, replacing the current call
+    public static final int LOCAL = 15;     // d i      push local variable
+    public static final int SETL = 16;      // d i      set local variable to top of stack
+    public static final int ENTER = 17;     // f        push a frame with layout frames[f]
+    public static final int INTRINSIC = 18; // i k      replace the arguments on top by the value of Intrinsic i, for form consts[k]
+    public static final int CHECK = 19;     // t        fail unless top of stack has type t of Types
+    public static final int TYPED = 20;     // t a      nothing, the Jit computes typed[t] instead of the code up to a
+    public static final int FOR = 21;       // a        counter, limit and value on top: continue at a with the value if the counter is past the limit, else pop the value, bind the counter to slot 0 of the innermost frame and step it
+
+    private static final int[] operands = {1, 1, 1, 0, 1, 1, 1, 1, 0, 3, 1, 3, 2, 0, 2, 2, 2, 1, 2, 1, 2, 1};
+    private static final String[] names = {
+        "CONST", "LOAD", "SETQ", "POP", "JUMP", "JUMPF", "LOOP", "BIND",
+        "LEAVE", "GUARD", "EVAL", "CALLPREP", "CALL", "RET", "TCALL", "LOCAL",
+        "SETL", "ENTER", "INTRINSIC", "CHECK", "TYPED", "FOR"};
+
+    private int[] code;
+    private Exp[] consts;
+    private Symbol[][] frames;
+    private Typed[] typed;
+    private Span[] spans;
+    // start and end of the code running in each frame pushed by an ENTER
+    private int[] scopes;
+    private int maxStack;
+
+    public Code(int[] code, Exp[] consts, Symbol[][] frames, Typed[] typed, Span[] spans, int[] scopes,
+            int maxStack) {
+        this.code = code;
+        this.consts = consts;
+        this.frames = frames;
+        this.typed = typed;
+        this.spans = spans;
+        this.scopes = scopes;
+        this.maxStack = maxStack;
+    }
+
+    public int[] code() {
+        return code;
+    }
+
+    public Exp[] consts() {
+        return consts;
+    }
+
+    public Symbol[][] frames() {
+        return frames;
+    }
+
+    public Typed[] typed() {
+        return typed;
+    }
+
+    public int maxStack() {
+        return maxStack;
+    }
+
+    public static int operands(int op) {
+        return operands[op];
+    }
+
+    /** Adds the forms being evaluated at pc to error, innermost first, env
+     * and level being those of the code at pc. Lisp.eval has added the
+     * form of an EVAL already.
+     */
+    void backtrace(LispError error, int pc, Frame env, int level) {
+        int entered = 0;
+        for (int i = 0; i < scopes.length; i += 2) {
+            if (pc >= scopes[i] && pc < scopes[i + 1])
+                entered++;
+        }
+        boolean evaluated = code[pc] == EVAL;
+        // the spans of nested forms end first, so the innermost comes first
+        for (Span s : spans) {
+            if (pc < s.start || pc >= s.end)
+                continue;
+            Frame at = env;
+            for (int i = s.entered; i < entered; i++)
+                at = at.parent();
+            if (evaluated) {
+                evaluated = false;
+                if (s.ends)
+                    error.replacing(true);
+            }
+            else if (s.ends)
+                error.addTail(consts[s.k], at, level + s.nest);
+            else
+                error.add(consts[s.k], at, level + s.nest);
+        }
+    }
+
+    public void print(PrintHandler p) {
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            p.print(String.format("%4d %s", pc, names[op]));
+            for (int i = 1; i <= operands[op]; i++)
+                p.print(" " + code[pc + i]);
+            p.print("\r\n");
+            pc += 1 + operands[op];
+        }
+    }
+
+    /** The code from start up to end evaluating the form consts[k], at nest
+     * levels below the body and inside entered frames. A form in tail
+     * position ends the one around it.
+     */
+    static class Span {
+
+        final int start, end, k, nest, entered;
+        final boolean ends;
+
+        Span(int start, int end, int k, int nest, int entered, boolean ends) {
+            this.start = start;
+            this.end = end;
+            this.k = k;
+            this.nest = nest;
+            this.entered = entered;
+            this.ends = ends;
+        }
+    }
+
+    /** A numeric expression whose operands are all known to be numbers, so
+     * the Jit can compute it without boxing or checking the values in
+     * between. It is a local variable, a constant or an operation of
+     * Types on one or two Typed operands, n-ary arithmetic is nested to
+     * the left the way the primitives compute it.
+     */
+    public static class Typed {
+
+        public static final int LOCAL = -1;
+        public static final int CONST = -2;
+
+        // LOCAL, CONST or an operation of Types
+        public final int op;
+        // the Types type of the value, comparisons have Types.ANY
+        public final int type;
+        // depth and index of a LOCAL, index of a CONST in consts
+        public final int depth, index;
+        public final Typed a, b;
+        // the symbols whose values the whole expression relies on, with
+        // those values, only set on the root
+        Symbol[] guards;
+        Exp[] values;
+
+        public Typed(int op, int type, int depth, int index, Typed a, Typed b) {
+            this.op = op;
+            this.type = type;
+            this.depth = depth;
+            this.index = index;
+            this.a = a;
+            this.b = b;
+        }
+
+        /** Returns true while every guard keeps its value */
+        public boolean holds() {
+            for (int i = 0; i < guards.length; i++) {
+                if (guards[i].value() != values[i])
+                    return false;
+            }
+            return true;
+        }
+
+        public Symbol[] guards() {
+            return guards;
+        }
+    }
+}
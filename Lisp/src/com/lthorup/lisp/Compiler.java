@@ -0,0 +1,557 @@
+/* Project: LispLib
+ * File:    Compiler.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.*;
+
+/** This class represents a Compiler that lowers function bodies to Code
+ * for the VM.
+ *
+ * Like the Analyzer, special forms are compiled inline only while their
+ * symbol is bound to the original primitive: each one is preceded by a
+ * GUARD that falls back to evaluating the source form. Variables bound by
+ * the function or an enclosing let are addressed by their slot in the
+ * Frame, any other symbol refers to its global value. Calls of the
+ * Intrinsic primitives are guarded the same way and become an INTRINSIC.
+ *
+ * Variables with Types, from declarations or as the counter of a for, make
+ * the numeric expressions over them Typed: the generic code of such an
+ * expression is preceded by a TYPED the Jit replaces with unboxed double
+ * arithmetic while the symbols the types rely on keep their values.
+ *
+ * Every form and global symbol gets a Code.Span, with the level Lisp.eval
+ * would evaluate it at relative to the body: the operator and the
+ * arguments of a function one deeper, those of a primitive, as far as
+ * the operator is bound to one now, and the parts of a special form at
+ * the level of the form.
+ *
+ * @author Layne
+ */
+public class Compiler {
+
+    private SymbolTable symTable;
+    private Intrinsic intrinsic;
+    private Types types;
+    private Symbol IF, COND, LET, SETQ, WHILE, FOR, DECLARE;
+
+    private int[] code;
+    private int size;
+    private ArrayList<Exp> consts;
+    private IdentityHashMap<Exp, Integer> constIndex;
+    private ArrayList<Symbol[]> frames;
+    private ArrayList<Code.Typed> typed;
+    private ArrayList<Symbol> typeGuards;
+    private ArrayList<Code.Span> spans;
+    private ArrayList<int[]> scopes;
+    private boolean typing;
+    private Scope scope;
+    private int nest;
+    private int entered;
+    private int depth;
+    private int maxDepth;
+
+    public Compiler(SymbolTable symTable) {
+        this.symTable = symTable;
+        intrinsic = new Intrinsic(symTable);
+        types = new Types(symTable);
+        IF = symTable.add("IF");
+        COND = symTable.add("COND");
+        LET = symTable.add("LET");
+        SETQ = symTable.add("SETQ");
+        WHILE = symTable.add("WHILE");
+        FOR = symTable.add("FOR");
+        DECLARE = symTable.add("DECLARE");
+    }
+
+    public synchronized Code compile(Function f) throws Exception {
+        code = new int[64];
+        size = 0;
+        consts = new ArrayList<Exp>();
+        constIndex = new IdentityHashMap<Exp, Integer>();
+        frames = new ArrayList<Symbol[]>();
+        typed = new ArrayList<Code.Typed>();
+        typeGuards = new ArrayList<Symbol>();
+        spans = new ArrayList<Code.Span>();
+        scopes = new ArrayList<int[]>();
+        typing = false;
+        nest = 0;
+        entered = 0;
+        Symbol[] captures = f.captures();
+        scope = null;
+        if (captures != null && captures.length > 0)
+            scope = new Scope(captures, captures.length, null);
+        scope = new Scope(f.names(), f.names().length, scope);
+        scope.setTypes(types.declared(f.body(), f.names(), null, scope.parent(), typeGuards));
+        depth = 0;
+        maxDepth = 0;
+        compileBody(f.body(), true);
+        emit(Code.RET, -1);
+        markTailCalls();
+        // every Typed expression relies on all the types of the function
+        Symbol[] guards = typeGuards.toArray(new Symbol[typeGuards.size()]);
+        Exp[] values = new Exp[guards.length];
+        for (int i = 0; i < guards.length; i++)
+            values[i] = guards[i].value();
+        for (Code.Typed t : typed) {
+            t.guards = guards;
+            t.values = values;
+        }
+        int[] ranges = new int[scopes.size() * 2];
+        for (int i = 0; i < scopes.size(); i++) {
+            ranges[i * 2] = scopes.get(i)[0];
+            ranges[i * 2 + 1] = scopes.get(i)[1];
+        }
+        Code c = new Code(Arrays.copyOf(code, size), consts.toArray(new Exp[consts.size()]),
+                frames.toArray(new Symbol[frames.size()][]), typed.toArray(new Code.Typed[typed.size()]),
+                spans.toArray(new Code.Span[spans.size()]), ranges, maxDepth);
+        code = null;
+        consts = null;
+        constIndex = null;
+        frames = null;
+        typed = null;
+        typeGuards = null;
+        spans = null;
+        scopes = null;
+        scope = null;
+        return c;
+    }
+
+    /** Compiles body, whose last expression ends the form around it if
+     * ends is true
+     */
+    private void compileBody(List body, boolean ends) throws Exception {
+        if (body == List.Nil) {
+            emit(Code.CONST, 1, constant(List.Nil));
+            return;
+        }
+        while (body != List.Nil) {
+            compileExp(body.head(), ends && body.tail() == List.Nil);
+            body = body.tail();
+            if (body != List.Nil)
+                emit(Code.POP, -1);
+        }
+    }
+
+    private void compileExp(Exp e) throws Exception {
+        compileExp(e, false);
+    }
+
+    private void compileExp(Exp e, boolean ends) throws Exception {
+        int start = size;
+        switch (e.type()) {
+            case SYMBOL: {
+                int[] at = scope.resolve((Symbol) e);
+                if (at == null) {
+                    emit(Code.LOAD, 1, constant(e));
+                    break;
+                }
+                emit(Code.LOCAL, 1, at[0], at[1]);
+                return;
+            }
+            case LIST:
+                if (e == List.Nil) {
+                    emit(Code.CONST, 1, constant(e));
+                    return;
+                }
+                compileForm((List) e);
+                break;
+            default:
+                emit(Code.CONST, 1, constant(e));
+                return;
+        }
+        spans.add(new Code.Span(start, size, constant(e), nest, entered, ends));
+    }
+
+    private void compileForm(List form) throws Exception {
+        if (!properList(form)) {
+            emit(Code.EVAL, 1, constant(form));
+            return;
+        }
+        Code.Typed t = typedRoot(form);
+        if (t != null) {
+            int at = emit(Code.TYPED, 0, typed.size(), 0);
+            typed.add(t);
+            guard(t);
+            typing = true;
+            compileForm(form);
+            typing = false;
+            patch(at + 2, size);
+            return;
+        }
+        // a local variable named like a special form or intrinsic is called
+        if (form.head().type() == Exp.Type.SYMBOL && scope.resolve((Symbol) form.head()) == null) {
+            Symbol sym = (Symbol) form.head();
+            Exp value = sym.value();
+            if (value != null && value.type() == Exp.Type.PRIMATIVE) {
+                if (sym == symTable.QUOTE && form.length() == 2) {
+                    emit(Code.CONST, 1, constant(form.get(1)));
+                    return;
+                }
+                if (specialShape(sym, form)) {
+                    int slow = emit(Code.GUARD, 0, constant(sym), constant(value), 0);
+                    compileSpecial(sym, form);
+                    depth--;
+                    int done = emit(Code.JUMP, 0, 0);
+                    patch(slow + 3, size);
+                    emit(Code.EVAL, 1, constant(form));
+                    patch(done + 1, size);
+                    return;
+                }
+            }
+            int op = intrinsic.find(form);
+            if (op >= 0) {
+                int slow = emit(Code.GUARD, 0, constant(sym), constant(intrinsic.prim(op)), 0);
+                int n = Intrinsic.arity(op);
+                for (int i = 1; i <= n; i++)
+                    compileExp(form.get(i));
+                emit(Code.INTRINSIC, 1 - n, op, constant(form));
+                depth--;
+                int done = emit(Code.JUMP, 0, 0);
+                patch(slow + 3, size);
+                emit(Code.EVAL, 1, constant(form));
+                patch(done + 1, size);
+                return;
+            }
+        }
+        nest++;
+        compileExp(form.head());
+        nest--;
+        int n = form.length() - 1;
+        int prep = emit(Code.CALLPREP, 0, constant(form), n, 0);
+        // the arguments of a function are evaluated one level deeper
+        int deeper = primitive(form.head()) ? 0 : 1;
+        nest += deeper;
+        List args = form.tail();
+        while (args != List.Nil) {
+            compileExp(args.head());
+            args = args.tail();
+        }
+        nest -= deeper;
+        emit(Code.CALL, -n, n, constant(form));
+        patch(prep + 3, size);
+    }
+
+    /** Returns true if op is a global symbol bound to a primitive now */
+    private boolean primitive(Exp op) {
+        if (op.type() != Exp.Type.SYMBOL || scope.resolve((Symbol) op) != null)
+            return false;
+        Exp value = ((Symbol) op).value();
+        return value != null && value.type() == Exp.Type.PRIMATIVE;
+    }
+
+    private boolean specialShape(Symbol sym, List form) {
+        if (sym == IF)
+            return form.length() == 4;
+        if (sym == SETQ)
+            return form.length() == 3 && form.get(1).type() == Exp.Type.SYMBOL;
+        if (sym == WHILE)
+            return form.length() >= 2;
+        if (sym == FOR)
+            return form.length() >= 4 && form.get(1).type() == Exp.Type.SYMBOL;
+        if (sym == DECLARE)
+            return types.declare(form);
+        if (sym == COND) {
+            List clauses = form.tail();
+            while (clauses != List.Nil) {
+                Exp c = clauses.head();
+                if (c.type() != Exp.Type.LIST || c == List.Nil || !properList((List) c))
+                    return false;
+                clauses = clauses.tail();
+            }
+            return true;
+        }
+        if (sym == LET) {
+            if (form.length() < 2 || form.get(1).type() != Exp.Type.LIST || !properList((List) form.get(1)))
+                return false;
+            List locals = (List) form.get(1);
+            while (locals != List.Nil) {
+                Exp local = locals.head();
+                if (local.type() == Exp.Type.LIST) {
+                    if (local == List.Nil || !properList((List) local))
+                        return false;
+                    List var = (List) local;
+                    if (var.length() != 2 || var.head().type() != Exp.Type.SYMBOL)
+                        return false;
+                }
+                else if (local.type() != Exp.Type.SYMBOL)
+                    return false;
+                locals = locals.tail();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void compileSpecial(Symbol sym, List form) throws Exception {
+        if (sym == IF) {
+            compileExp(form.get(1));
+            int els = emit(Code.JUMPF, -1, 0);
+            compileExp(form.get(2), true);
+            depth--;
+            int done = emit(Code.JUMP, 0, 0);
+            patch(els + 1, size);
+            compileExp(form.get(3), true);
+            patch(done + 1, size);
+        }
+        else if (sym == COND) {
+            ArrayList<Integer> exits = new ArrayList<Integer>();
+            List clauses = form.tail();
+            while (clauses != List.Nil) {
+                List clause = (List) clauses.head();
+                compileExp(clause.head());
+                int next = emit(Code.JUMPF, -1, 0);
+                compileBody(clause.tail(), true);
+                depth--;
+                exits.add(emit(Code.JUMP, 0, 0));
+                patch(next + 1, size);
+                clauses = clauses.tail();
+            }
+            emit(Code.CONST, 1, constant(List.Nil));
+            for (int exit : exits)
+                patch(exit + 1, size);
+        }
+        else if (sym == LET) {
+            List locals = (List) form.get(1);
+            Symbol[] vars = new Symbol[locals.length()];
+            for (int i = 0; i < vars.length; i++) {
+                Exp local = locals.head();
+                vars[i] = (Symbol) (local.type() == Exp.Type.SYMBOL ? local : ((List) local).head());
+                locals = locals.tail();
+            }
+            enter(vars);
+            scope = new Scope(vars, 0, scope);
+            locals = (List) form.get(1);
+            for (int i = 0; i < vars.length; i++) {
+                Exp local = locals.head();
+                if (local.type() == Exp.Type.SYMBOL)
+                    emit(Code.CONST, 1, constant(List.Nil));
+                else
+                    compileExp(((List) local).get(1));
+                emit(Code.BIND, -1, i);
+                scope.setVisible(i + 1);
+                locals = locals.tail();
+            }
+            scope.setTypes(types.declared(form.tail().tail(), vars, null, scope.parent(), typeGuards));
+            compileBody(form.tail().tail(), true);
+            scope = scope.parent();
+            leave();
+        }
+        else if (sym == SETQ) {
+            compileExp(form.get(2));
+            int[] at = scope.resolve((Symbol) form.get(1));
+            if (at == null)
+                emit(Code.SETQ, 0, constant(form.get(1)));
+            else
+                emit(Code.SETL, 0, at[0], at[1]);
+        }
+        else if (sym == WHILE) {
+            emit(Code.CONST, 1, constant(List.Nil));
+            int top = size;
+            compileExp(form.get(1));
+            int done = emit(Code.JUMPF, -1, 0);
+            emit(Code.POP, -1);
+            compileBody(form.tail().tail(), false);
+            emit(Code.LOOP, 0, top);
+            patch(done + 1, size);
+        }
+        else if (sym == FOR) {
+            // the counter and the limit stay on the stack below the value
+            compileExp(form.get(2));
+            emit(Code.CHECK, 0, Types.NUMBER);
+            compileExp(form.get(3));
+            emit(Code.CHECK, 0, Types.NUMBER);
+            Symbol[] vars = {(Symbol) form.get(1)};
+            enter(vars);
+            scope = new Scope(vars, 1, scope);
+            List body = form.tail().tail().tail().tail();
+            scope.setTypes(types.declared(body, vars, new int[]{Types.NUMBER}, scope.parent(), typeGuards));
+            emit(Code.CONST, 1, constant(List.Nil));
+            int top = size;
+            int done = emit(Code.FOR, -1, 0);
+            compileBody(body, false);
+            emit(Code.LOOP, 0, top);
+            depth -= 2;
+            patch(done + 1, size);
+            scope = scope.parent();
+            leave();
+        }
+        else if (sym == DECLARE) {
+            List specs = form.tail();
+            while (specs != List.Nil) {
+                List spec = (List) specs.head();
+                int type = Types.declaration(spec);
+                for (List v = spec.tail(); v != List.Nil; v = v.tail()) {
+                    compileExp(v.head());
+                    emit(Code.CHECK, 0, type);
+                    emit(Code.POP, -1);
+                }
+                specs = specs.tail();
+            }
+            emit(Code.CONST, 1, constant(List.Nil));
+        }
+    }
+
+    private void enter(Symbol[] vars) {
+        emit(Code.ENTER, 0, frames.size());
+        frames.add(vars);
+        scopes.add(new int[]{size, -1});
+        entered++;
+    }
+
+    private void leave() {
+        // the innermost frame is the last one still open
+        int i = scopes.size() - 1;
+        while (scopes.get(i)[1] >= 0)
+            i--;
+        scopes.get(i)[1] = size;
+        entered--;
+        emit(Code.LEAVE, 0);
+    }
+
+    /** Returns the Typed expression form computes if it is arithmetic with
+     * a floating point result or a comparison of such a value, else null
+     */
+    private Code.Typed typedRoot(List form) {
+        if (typing)
+            return null;
+        int op = operation(form);
+        if (op < 0)
+            return null;
+        if (Types.comparison(op)) {
+            if (form.length() != 3)
+                return null;
+            Code.Typed a = typedExp(form.get(1));
+            Code.Typed b = typedExp(form.get(2));
+            if (a == null || b == null || (a.type != Types.FLOAT && b.type != Types.FLOAT))
+                return null;
+            return new Code.Typed(op, Types.ANY, 0, 0, a, b);
+        }
+        Code.Typed t = typedExp(form);
+        return t != null && t.type == Types.FLOAT ? t : null;
+    }
+
+    private Code.Typed typedExp(Exp e) {
+        switch (e.type()) {
+            case NUMBER:
+                return new Code.Typed(Code.Typed.CONST, e instanceof Number.Flonum ? Types.FLOAT : Types.NUMBER,
+                        0, constant(e), null, null);
+            case SYMBOL: {
+                int[] at = scope.resolve((Symbol) e);
+                int type = scope.type((Symbol) e);
+                if (at == null || type == Types.ANY)
+                    return null;
+                return new Code.Typed(Code.Typed.LOCAL, type, at[0], at[1], null, null);
+            }
+            case LIST: {
+                if (e == List.Nil || !properList((List) e))
+                    return null;
+                List form = (List) e;
+                int op = operation(form);
+                if (op < 0 || Types.comparison(op))
+                    return null;
+                if (!Types.arithmetic(op)) {
+                    if (form.length() != 2)
+                        return null;
+                    Code.Typed a = typedExp(form.get(1));
+                    return a == null ? null : new Code.Typed(op, Types.FLOAT, 0, 0, a, null);
+                }
+                if (form.length() < 3)
+                    return null;
+                // nested to the left like the primitives
+                Code.Typed t = typedExp(form.get(1));
+                for (List args = form.tail().tail(); t != null && args != List.Nil; args = args.tail()) {
+                    Code.Typed b = typedExp(args.head());
+                    if (b == null)
+                        return null;
+                    t = new Code.Typed(op, Types.result(op, t.type, b.type), 0, 0, t, b);
+                }
+                return t;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /** Returns the operation of Types form applies, -1 if none */
+    private int operation(List form) {
+        if (form.head().type() != Exp.Type.SYMBOL || scope.resolve((Symbol) form.head()) != null)
+            return -1;
+        return types.op((Symbol) form.head());
+    }
+
+    /** Adds the operators of t to the guards of the Typed expressions */
+    private void guard(Code.Typed t) {
+        if (t == null || t.op < 0)
+            return;
+        Symbol sym = types.symbol(t.op);
+        if (!typeGuards.contains(sym))
+            typeGuards.add(sym);
+        guard(t.a);
+        guard(t.b);
+    }
+
+    /** Turns every CALL whose value is returned unchanged into a TCALL.
+     * Jumps and LEAVEs between the call and the RET make no difference
+     * since the environment is dropped on return anyway.
+     */
+    private void markTailCalls() {
+        int pc = 0;
+        while (pc < size) {
+            int op = code[pc];
+            if (op == Code.CALL && returns(pc + 1 + Code.operands(op)))
+                code[pc] = Code.TCALL;
+            pc += 1 + Code.operands(op);
+        }
+    }
+
+    private boolean returns(int pc) {
+        while (true) {
+            if (code[pc] == Code.RET)
+                return true;
+            if (code[pc] == Code.JUMP)
+                pc = code[pc + 1];
+            else if (code[pc] == Code.LEAVE)
+                pc += 1;
+            else
+                return false;
+        }
+    }
+
+    private int constant(Exp e) {
+        Integer k = constIndex.get(e);
+        if (k == null) {
+            k = consts.size();
+            consts.add(e);
+            constIndex.put(e, k);
+        }
+        return k;
+    }
+
+    private int emit(int op, int stack, int... operands) {
+        if (size + operands.length + 1 > code.length)
+            code = Arrays.copyOf(code, code.length * 2);
+        int at = size;
+        code[size++] = op;
+        for (int operand : operands)
+            code[size++] = operand;
+        depth += stack;
+        if (depth > maxDepth)
+            maxDepth = depth;
+        return at;
+    }
+
+    private void patch(int at, int value) {
+        code[at] = value;
+    }
+
+    private static boolean properList(List n) {
+        while (n != List.Nil) {
+            if (n.tailExp().type() != Exp.Type.LIST)
+                return false;
+            n = n.tail();
+        }
+        return true;
+    }
+}
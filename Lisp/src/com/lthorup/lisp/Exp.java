@@ -12,8 +12,10 @@ public abstract class Exp {
 
     public enum Type {
 
-        ANY, SYMBOL, NUMBER, STRING, LIST, ARRAY, FUNCTION, PRIMATIVE
+        ANY, SYMBOL, NUMBER, STRING, LIST, ARRAY, FUNCTION, PRIMATIVE, FUTURE, HASHTABLE
     }
+    // how deep hash looks into lists and arrays
+    private static final int HASH_DEPTH = 4;
     protected Type type;
 
     public Exp(Type type) {
@@ -27,7 +29,8 @@ public abstract class Exp {
     public void setType(Type type) {
         this.type = type;
     }
-    private static String[] typeName = {"any", "symbol", "number", "string", "list", "function", "primative"};
+    private static String[] typeName = {
+        "any", "symbol", "number", "string", "list", "array", "function", "primative", "future", "hashtable"};
 
     public String typeName() {
         return typeName[type.ordinal()];
@@ -40,4 +43,19 @@ public abstract class Exp {
     public abstract void print(PrintHandler p, int level);
 
     public abstract boolean equal(Exp e);
+
+    /** Returns a hash code consistent with equal, values that are equal
+     * have the same hash code
+     */
+    public int hash() {
+        return hash(HASH_DEPTH);
+    }
+
+    /** Like hash but looks at most depth levels into lists and arrays, so
+     * it stays short for large nested values and ends for an array that
+     * contains itself
+     */
+    protected int hash(int depth) {
+        return System.identityHashCode(this);
+    }
 }
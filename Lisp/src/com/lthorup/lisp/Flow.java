@@ -14,85 +14,105 @@ public class Flow {
         s.addPrim("let", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primLet(interp, args, env, level);
             }
         });
         s.addPrim("if", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primIf(interp, args, env, level);
             }
         });
         s.addPrim("cond", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primCond(interp, args, env, level);
             }
         });
         s.addPrim("rep", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primRep(interp, args, env, level);
             }
         });
         s.addPrim("while", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primWhile(interp, args, env, level);
             }
         });
         s.addPrim("for", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primFor(interp, args, env, level);
             }
         });
     }
 
-    private static Exp primLet(Lisp interp, List args, List env, int level) throws Exception {
+    private static Exp primLet(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         List locals = (List) argList.next(Exp.Type.LIST, null, false, level);
         List body = argList.rest();
-        List newEnv = env;
-        while (locals != List.Nil) {
-            if (locals.head().type() == Exp.Type.SYMBOL) {
-                List newVar = new List(locals.head(), List.Nil);
-                newEnv = new List(newVar, newEnv);
-            }
-            else
-                if (locals.head().type() == Exp.Type.LIST) {
-                    List var = (List) locals.head();
-                    if (var.length() != 2 || var.head().type() != Exp.Type.SYMBOL) {
+        // with shallow binding the variables go to the Bindings stack
+        boolean shallow = interp.engine() == Lisp.Engine.SHALLOW;
+        int mark = interp.bindings().frame();
+        int n = locals.length();
+        Symbol[] names = new Symbol[n];
+        Frame newEnv = shallow ? env : new Frame(names, new Exp[n], env);
+        boolean keep = false;
+        try {
+            for (int i = 0; i < n; i++) {
+                Exp value;
+                if (locals.head().type() == Exp.Type.SYMBOL) {
+                    names[i] = (Symbol) locals.head();
+                    value = List.Nil;
+                }
+                else
+                    if (locals.head().type() == Exp.Type.LIST) {
+                        List var = (List) locals.head();
+                        if (var.length() != 2 || var.head().type() != Exp.Type.SYMBOL) {
+                            throw new Exception("bad local var def");
+                        }
+                        value = interp.eval(var.tail().head(), newEnv, level);
+                        names[i] = (Symbol) var.head();
+                    }
+                    else {
                         throw new Exception("bad local var def");
                     }
-                    List newVar = new List(var.head(), interp.eval(var.tail().head(), newEnv, level));
-                    newEnv = new List(newVar, newEnv);
-                }
-                else {
-                    throw new Exception("bad local var def");
-                }
-            locals = locals.tail();
+                if (shallow)
+                    interp.bindings().bind(names[i], value);
+                else
+                    newEnv.set(i, value);
+                locals = locals.tail();
+            }
+            Exp value = interp.evalBodyTail(body, newEnv, level);
+            // the loop running a TailCall unwinds the bindings when it is done
+            keep = value instanceof TailCall;
+            return value;
+        }
+        finally {
+            if (shallow && !keep)
+                interp.bindings().unwind(mark);
         }
-        return interp.evalBody(body, newEnv, level);
     }
 
-    private static Exp primIf(Lisp interp, List args, List env, int level) throws Exception {
+    private static Exp primIf(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Exp c = argList.next(Exp.Type.ANY, env, false, level);
         Exp i = argList.next(Exp.Type.ANY, null, false, level);
         Exp t = argList.next(Exp.Type.ANY, null, true, level);
         if (c == interp.symTable().T)
-            return interp.eval(i, env, level);
-        return interp.eval(t, env, level);
+            return interp.evalTail(i, env, level);
+        return interp.evalTail(t, env, level);
     }
 
-    private static Exp primCond(Lisp interp, List args, List env, int level) throws Exception {
+    private static Exp primCond(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         while (!argList.empty()) {
             List n = (List) argList.next(Exp.Type.LIST, null, false, level);
@@ -100,57 +120,74 @@ public class Flow {
                 throw new Exception("bad condition");
             Exp c = interp.eval(n.head(), env, level);
             if (c == interp.symTable().T) {
-                return interp.evalBody(n.tail(), env, level);
+                return interp.evalBodyTail(n.tail(), env, level);
             }
         }
         return List.Nil;
     }
 
-    private static Exp primRep(Lisp interp, List args, List env, int level) throws Exception {
+    private static Exp primRep(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Number c = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
         List body = args;
         Exp value = List.Nil;
-        long cnt = (long) c.value();
+        long cnt = c.longValue();
         while (cnt > 0) {
+            interp.checkStop();
             value = interp.evalBody(body, env, level);
             cnt--;
         }
         return value;
     }
 
-    private static Exp primWhile(Lisp interp, List args, List env, int level) throws Exception {
+    private static Exp primWhile(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Exp e = argList.next(Exp.Type.ANY, null, false, level);
         List body = args;
         Exp value = List.Nil;
         Exp test = interp.eval(e, env, level);
         while (test == interp.symTable().T) {
+            interp.checkStop();
             value = interp.evalBody(body, env, level);
             test = interp.eval(e, env, level);
         }
         return value;
     }
 
-    private static Exp primFor(Lisp interp, List args, List env, int level) throws Exception {
+    private static Exp primFor(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Symbol s = (Symbol) argList.next(Exp.Type.SYMBOL, null, false, level);
         Number from = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
         Number to = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        List body = args;
-        int f = (int) from.value();
-        int t = (int) to.value();
-        List b = new List(s, List.Nil);
-        List newEnv = new List(b, env);
+        List body = argList.rest();
+        long f = from.longValue();
+        long t = to.longValue();
         Exp value = List.Nil;
-        for (int i = f; i <= t; i++) {
-            b.setTail(new Number(i));
+        if (interp.engine() == Lisp.Engine.SHALLOW) {
+            int mark = interp.bindings().frame();
+            interp.bindings().bind(s, List.Nil);
+            try {
+                for (long i = f; i <= t; i++) {
+                    interp.checkStop();
+                    interp.bindings().set(s, Number.of(i));
+                    value = interp.evalBody(body, env, level);
+                }
+            }
+            finally {
+                interp.bindings().unwind(mark);
+            }
+            return value;
+        }
+        Frame newEnv = new Frame(new Symbol[]{s}, new Exp[1], env);
+        for (long i = f; i <= t; i++) {
+            interp.checkStop();
+            newEnv.set(0, Number.of(i));
             value = interp.evalBody(body, newEnv, level);
         }
         return value;
     }
 
-    private static Exp primSleep(Lisp interp, List args, List env, int level) throws Exception {
+    private static Exp primSleep(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Number ms = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
         Thread.sleep((int) (ms.value() * 1000.0));
@@ -0,0 +1,155 @@
+/* Project: LispLib
+ * File:    Frame.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+/** This class represents a Frame of the environment.
+ *
+ * A frame holds the variables bound by one function call, let or for in a
+ * fixed size array and points to the frame it was created in. Analyzed
+ * and compiled code knows where each of its variables lives and reads it
+ * by (depth, index), expressions built at run time and handed to eval
+ * still find their variables by name. A slot stays null until its
+ * variable is bound, so a let init does not see the variable it is
+ * initializing.
+ *
+ * A variable a closure captures is moved into a Cell, which the slot of
+ * the frame it was bound in and that of the closure's own frame both
+ * hold. Reading and setting a slot goes through its Cell, so assignments
+ * are shared.
+ *
+ * @author Layne
+ */
+public class Frame {
+
+    /** The empty environment of top level expressions */
+    public static final Frame TOP = new Frame(new Symbol[0], new Exp[0], null);
+
+    private Symbol[] names;
+    private Exp[] values;
+    private Frame parent;
+
+    public Frame(Symbol[] names, Exp[] values, Frame parent) {
+        this.names = names;
+        this.values = values;
+        this.parent = parent;
+    }
+
+    public Symbol[] names() {
+        return names;
+    }
+
+    public Frame parent() {
+        return parent;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public Exp get(int index) {
+        return value(values[index]);
+    }
+
+    /** Returns what the slot at index holds, the Cell of a captured
+     * variable rather than its value
+     */
+    Exp slot(int index) {
+        return values[index];
+    }
+
+    public void set(int index, Exp value) {
+        if (values[index] instanceof Cell)
+            ((Cell) values[index]).value = value;
+        else
+            values[index] = value;
+    }
+
+    /** Returns the variable at index in the frame depth levels up */
+    public Exp get(int depth, int index) {
+        Frame f = this;
+        while (depth-- > 0)
+            f = f.parent;
+        return value(f.values[index]);
+    }
+
+    public void set(int depth, int index, Exp value) {
+        Frame f = this;
+        while (depth-- > 0)
+            f = f.parent;
+        f.set(index, value);
+    }
+
+    /** Returns the value of the innermost binding of sym, null if sym is
+     * not bound in this environment
+     */
+    public Exp lookup(Symbol sym) {
+        for (Frame f = this; f != null; f = f.parent) {
+            for (int i = f.values.length - 1; i >= 0; i--) {
+                if (f.names[i] == sym && f.values[i] != null)
+                    return value(f.values[i]);
+            }
+        }
+        return null;
+    }
+
+    /** Changes the innermost binding of sym, returns false if sym is not
+     * bound in this environment
+     */
+    public boolean assign(Symbol sym, Exp value) {
+        for (Frame f = this; f != null; f = f.parent) {
+            for (int i = f.values.length - 1; i >= 0; i--) {
+                if (f.names[i] == sym && f.values[i] != null) {
+                    f.set(i, value);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the Cell holding the innermost binding of sym, moving the
+     * value into a new one if it has none yet, null if sym is not bound in
+     * this environment
+     */
+    Exp cell(Symbol sym) {
+        for (Frame f = this; f != null; f = f.parent) {
+            for (int i = f.values.length - 1; i >= 0; i--) {
+                if (f.names[i] == sym && f.values[i] != null) {
+                    if (!(f.values[i] instanceof Cell))
+                        f.values[i] = new Cell(f.values[i]);
+                    return f.values[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Exp value(Exp slot) {
+        return slot instanceof Cell ? ((Cell) slot).value : slot;
+    }
+
+    /** A variable shared by the frames holding it, or by the closures and
+     * the symbol binding it under SHALLOW, never seen outside of them
+     */
+    static class Cell extends Exp {
+
+        Exp value;
+
+        Cell(Exp value) {
+            super(Type.ANY);
+            this.value = value;
+        }
+
+        @Override
+        public void print(PrintHandler p, int level) {
+            value.print(p, level);
+        }
+
+        @Override
+        public boolean equal(Exp e) {
+            return this == e;
+        }
+    }
+}
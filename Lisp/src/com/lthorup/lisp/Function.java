@@ -4,35 +4,268 @@
  */
 package com.lthorup.lisp;
 
+import java.lang.ref.WeakReference;
+import java.util.*;
+
 /** This class represents a Function
+ *
+ * A function created inside another one is a closure: the local variables
+ * its body refers to are gathered in a flat Frame when it is created and
+ * every call of it binds its arguments in a Frame on top of that one. No
+ * frame of the creating call is kept alive. Instead a captured variable
+ * is moved into a cell that the frame it was bound in and every closure
+ * capturing it share (see Frame), so a setq by any of them is seen by all.
+ * All closures made by one lambda expression share a template Function
+ * holding their analyzed, compiled and jitted code. The templates of an
+ * interpreter are kept by their form, and a template is complete before
+ * it is put there, so parallel tasks only ever see a finished one.
  *
  * @author Layne
  */
 public class Function extends Exp {
 
+    private Function template;
+    private Frame captured;
+    // the symbols the body refers to other than the arguments, and those
+    // of them a closure of this template captures
+    private Symbol[] symbols;
+    private Symbol[] captures;
     private List vars;
     private List body;
+    private Symbol[] names;
     private boolean macro;
+    // written once by whichever thread gets there first
+    private volatile Node code;
+    private volatile Code compiled;
+    private int arity;
+    // counted without synchronization, a lost update only delays compiling
+    private int calls;
+    // set once a call has taken on compiling the function, until it is
+    // deoptimized
+    private volatile boolean queued;
+    private int deopts;
+    private JitCode jitCode;
+    private Symbol[] assumptions;
+    // the body rewritten by the Optimizer, and the symbols it relies on
+    private volatile List optimized;
+    private Symbol[] guards;
 
     public Function(List vars, List body, boolean macro) {
         super(Type.FUNCTION);
+        this.template = this;
         this.vars = vars;
         this.body = body;
         this.macro = macro;
+        arity = 0;
+        int size = 0;
+        for (List v = vars; v != List.Nil; v = v.tail()) {
+            size++;
+            if (v.head().type() == Type.SYMBOL && ((Symbol) v.head()).name().equals("REST")) {
+                arity = -1;
+                break;
+            }
+            arity++;
+        }
+        names = new Symbol[size];
+        List v = vars;
+        for (int i = 0; i < size; i++) {
+            names[i] = (Symbol) v.head();
+            v = v.tail();
+        }
+    }
+
+    /** Creates a closure sharing the code of template */
+    private Function(Function template, Frame captured) {
+        super(Type.FUNCTION);
+        this.template = template;
+        this.captured = captured;
+        vars = template.vars;
+        body = template.body;
+        names = template.names;
+        macro = template.macro;
+        arity = template.arity;
     }
 
     public List vars() {
         return vars;
     }
 
+    /** Returns the body the engines run, the optimized one if there is one */
     public List body() {
+        List b = template.optimized;
+        return b != null ? b : body;
+    }
+
+    /** Returns the body as it was defined */
+    public List source() {
         return body;
     }
 
+    /** Returns the names of the slots of the Frame a call binds, the
+     * arguments up to and including REST
+     */
+    public Symbol[] names() {
+        return names;
+    }
+
+    /** Returns the names of the captured variables, a Frame of them is
+     * the parent of every call of this function
+     */
+    public Symbol[] captures() {
+        return template.captures;
+    }
+
     public boolean macro() {
         return macro;
     }
 
+    /** Returns the number of arguments, or -1 if the function takes REST */
+    public int arity() {
+        return arity;
+    }
+
+    /** Returns the number of calls counted towards Jit compilation */
+    public int calls() {
+        return template.calls;
+    }
+
+    /** Returns how often generated code for this function was thrown away */
+    public int deopts() {
+        return template.deopts;
+    }
+
+    public boolean jitted() {
+        return template.jitCode != null;
+    }
+
+    /** Counts a call, returns true for the one call that is to compile
+     * the function once there were threshold of them
+     */
+    boolean countCall(int threshold) {
+        Function t = template;
+        if (t.queued || ++t.calls < threshold)
+            return false;
+        return t.queue();
+    }
+
+    private synchronized boolean queue() {
+        if (queued)
+            return false;
+        queued = true;
+        return true;
+    }
+
+    JitCode jitCode() {
+        return template.jitCode;
+    }
+
+    synchronized void setJitCode(JitCode jitCode, Symbol[] assumptions) {
+        if (template != this) {
+            template.setJitCode(jitCode, assumptions);
+            return;
+        }
+        this.jitCode = jitCode;
+        this.assumptions = assumptions;
+        for (Symbol s : assumptions)
+            s.addDependent(this);
+    }
+
+    /** Returns the symbols the optimized body relies on, null if there is
+     * none
+     */
+    Symbol[] guards() {
+        return template.guards;
+    }
+
+    /** Replaces the body by an optimized one until one of the guards is
+     * rebound
+     */
+    synchronized void setOptimized(List optimized, Symbol[] guards) {
+        if (template != this) {
+            template.setOptimized(optimized, guards);
+            return;
+        }
+        deoptimize();
+        this.optimized = optimized;
+        this.guards = guards;
+        for (Symbol s : guards)
+            s.addDependent(this);
+    }
+
+    /** Drops the optimized body and the code made from it, and the
+     * generated code so calls go back to the VM and start counting again.
+     */
+    synchronized void deoptimize() {
+        if (template != this) {
+            template.deoptimize();
+            return;
+        }
+        if (optimized != null) {
+            for (Symbol s : guards)
+                s.removeDependent(this);
+            optimized = null;
+            guards = null;
+            code = null;
+            compiled = null;
+        }
+        if (jitCode == null)
+            return;
+        for (Symbol s : assumptions)
+            s.removeDependent(this);
+        jitCode = null;
+        assumptions = null;
+        calls = 0;
+        queued = false;
+        deopts++;
+    }
+
+    /** Binds n values starting at values[first] to the arguments, the
+     * list of the rest argument counts against the cons budget of interp
+     */
+    Frame bind(Lisp interp, Exp[] values, int first, int n) throws Exception {
+        Exp[] slots = new Exp[names.length];
+        if (arity < 0) {
+            int fixed = names.length - 1;
+            if (n < fixed)
+                throw new Exception("wrong number of arguments");
+            System.arraycopy(values, first, slots, 0, fixed);
+            interp.countConses(n - fixed);
+            Exp r = List.Nil;
+            for (int j = n - 1; j >= fixed; j--)
+                r = new List(values[first + j], r);
+            slots[fixed] = r;
+        }
+        else {
+            if (n != arity)
+                throw new Exception("wrong number of arguments");
+            System.arraycopy(values, first, slots, 0, n);
+        }
+        return frame(slots);
+    }
+
+    /** Returns the Frame of a call binding the given slots */
+    Frame frame(Exp[] slots) {
+        return new Frame(names, slots, captured == null ? Frame.TOP : captured);
+    }
+
+    /** Returns the body analyzed into a Node tree, analyzing it on first use */
+    public Node code(Analyzer analyzer) throws Exception {
+        if (template != this)
+            return template.code(analyzer);
+        if (code == null)
+            code = analyzer.analyzeFunction(this);
+        return code;
+    }
+
+    /** Returns the body compiled for the VM, compiling it on first use */
+    public Code compiled(Compiler compiler) throws Exception {
+        if (template != this)
+            return template.compiled(compiler);
+        if (compiled == null)
+            compiled = compiler.compile(this);
+        return compiled;
+    }
+
     @Override
     public void print(PrintHandler p, int level) {
         p.print("<FUNCTION>");
@@ -47,27 +280,28 @@ public class Function extends Exp {
         s.addPrim("defun", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primDefun(interp, args, env, level);
             }
         });
         s.addPrim("demacro", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primDefmacro(interp, args, env, level);
             }
         });
         s.addPrim("lambda", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primLambda(interp, args, env, level);
             }
         });
     }
 
-    private static Exp makeFunction(ArgList argList, boolean macro, List env, int level) throws Exception {
+    private static Function makeFunction(Lisp interp, List args, ArgList argList, boolean macro,
+            Frame env, int level) throws Exception {
         List vars = (List) argList.next(Exp.Type.LIST, null, false, level);
         List body = argList.rest();
         List v = vars;
@@ -76,25 +310,81 @@ public class Function extends Exp {
                 throw new Exception("bad argument list");
             v = v.tail();
         }
-        return new Function(vars, body, macro);
+        WeakReference<Function> ref = interp.templates().get(args);
+        Function template = ref == null ? null : ref.get();
+        if (template != null && (template.vars != vars || template.body != body || template.macro != macro))
+            template = null;
+        Symbol[] symbols = template != null ? template.symbols : freeSymbols(interp, vars, body);
+
+        // the variables the closure captures, and the cells they live in
+        Symbol[] found = new Symbol[symbols.length];
+        Exp[] cells = new Exp[symbols.length];
+        int n = 0;
+        for (Symbol s : symbols) {
+            Exp cell = interp.capture(s, env);
+            if (cell != null) {
+                found[n] = s;
+                cells[n++] = cell;
+            }
+        }
+        found = Arrays.copyOf(found, n);
+        if (template == null || !Arrays.equals(template.captures, found)) {
+            // new, or the same expression evaluated where other variables
+            // are bound
+            template = new Function(vars, body, macro);
+            template.symbols = symbols;
+            template.captures = found;
+            interp.templates().put(args, new WeakReference<Function>(template));
+        }
+        Frame frame = n == 0 ? null : new Frame(found, Arrays.copyOf(cells, n), Frame.TOP);
+        return new Function(template, frame);
+    }
+
+    /** Returns the symbols body refers to other than the arguments vars.
+     * These are the variables a closure may have to capture.
+     */
+    private static Symbol[] freeSymbols(Lisp interp, List vars, List body) {
+        ArrayList<Symbol> symbols = new ArrayList<Symbol>();
+        collectSymbols(body, interp.symTable().QUOTE, symbols);
+        for (List v = vars; v != List.Nil; v = v.tail())
+            symbols.remove(v.head());
+        return symbols.toArray(new Symbol[symbols.size()]);
+    }
+
+    private static void collectSymbols(Exp e, Symbol quote, ArrayList<Symbol> symbols) {
+        while (e.type() == Type.LIST && e != List.Nil) {
+            List n = (List) e;
+            if (n.head() == quote)
+                return;
+            collectSymbols(n.head(), quote, symbols);
+            e = n.tailExp();
+        }
+        if (e.type() == Type.SYMBOL && !symbols.contains(e))
+            symbols.add((Symbol) e);
     }
 
-    public static Exp primDefun(Lisp interp, List args, List env, int level) throws Exception {
+    public static Exp primDefun(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Symbol sym = (Symbol) argList.next(Exp.Type.SYMBOL, null, false, level);
-        sym.setValue(makeFunction(argList, false, env, level));
+        interp.checkGlobal();
+        Function f = makeFunction(interp, args, argList, false, env, level);
+        // after setValue, which drops an optimized body of the old value
+        sym.setValue(f);
+        if (interp.optimizing())
+            interp.optimizer().optimize(interp, f);
         return sym;
     }
 
-    private static Exp primDefmacro(Lisp interp, List args, List env, int level) throws Exception {
+    private static Exp primDefmacro(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Symbol sym = (Symbol) argList.next(Exp.Type.SYMBOL, null, false, level);
-        sym.setValue(makeFunction(argList, true, env, level));
+        interp.checkGlobal();
+        sym.setValue(makeFunction(interp, args, argList, true, env, level));
         return sym;
     }
 
-    private static Exp primLambda(Lisp interp, List args, List env, int level) throws Exception {
+    private static Exp primLambda(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
-        return makeFunction(argList, false, env, level);
+        return makeFunction(interp, args, argList, false, env, level);
     }
 }
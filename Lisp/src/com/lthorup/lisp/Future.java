@@ -0,0 +1,96 @@
+/* Project: LispLib
+ * File:    Future.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** This class represents a Future, the value of a parallel task that may
+ * still be running.
+ *
+ * The task runs once, on whichever thread gets to it first: a thread of
+ * the executor, or the thread touching the Future if the executor has not
+ * started it yet. So a task waiting for another never waits for one that
+ * is stuck behind it in the executor's queue.
+ *
+ * @author Layne
+ */
+public class Future extends Exp implements Runnable {
+
+    /** The work of a Future, done on an interpreter of its own */
+    public interface Task {
+
+        public Exp run(Lisp interp) throws Exception;
+    }
+
+    private final Lisp interp;
+    private final Task task;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private Exp value;
+    private String error;
+
+    public Future(Lisp interp, Task task) {
+        super(Type.FUTURE);
+        this.interp = interp;
+        this.task = task;
+    }
+
+    /** Runs the task unless some thread has already started it */
+    @Override
+    public void run() {
+        if (!started.compareAndSet(false, true))
+            return;
+        try {
+            value = task.run(interp);
+        }
+        catch (Exception err) {
+            error = LispError.from(err).getMessage();
+        }
+        finally {
+            if (value == null && error == null)
+                error = "task failed";
+            done.countDown();
+        }
+    }
+
+    public boolean done() {
+        return done.getCount() == 0;
+    }
+
+    /** Returns the value of the task once it is done, raising its error if
+     * it failed
+     */
+    public Exp touch() throws Exception {
+        run();
+        if (!done())
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    done.await();
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return done();
+                }
+            });
+        if (error != null)
+            throw new Exception(error);
+        return value;
+    }
+
+    @Override
+    public void print(PrintHandler p, int level) {
+        p.print(done() ? "<FUTURE DONE>" : "<FUTURE>");
+    }
+
+    @Override
+    public boolean equal(Exp e) {
+        return this == e;
+    }
+}
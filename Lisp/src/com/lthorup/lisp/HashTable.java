@@ -0,0 +1,263 @@
+/* Project: LispLib
+ * File:    HashTable.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+/** This class represents a HashTable
+ *
+ * (hashtable) makes a table whose keys are compared with equal, so a
+ * list, string or number is found by any value equal to it.
+ * (hashtable 'eq) makes one comparing keys by identity, which only finds
+ * the same symbol, list or array again. (gethash key table [default])
+ * returns the value stored for key, or default or NIL if there is none,
+ * (puthash key value table) stores it and (remhash key table) removes it.
+ * (hashcount table) is the number of entries, (hashkeys table) a list of
+ * the keys and (maphash f table) calls f with each key and value.
+ *
+ * The entries are kept in the order they were added, which is the order
+ * hashkeys and maphash see them in, behind an open addressing index of
+ * their hash codes. Keys must not be changed while they are in a table,
+ * and like arrays, tables shared by parallel tasks are not synchronized.
+ *
+ * @author Layne
+ */
+public class HashTable extends Exp {
+
+    private boolean identity;
+    // the entries in the order they were added, a removed one keeps its
+    // place with a null key until the entries are rebuilt
+    private Exp[] keys;
+    private Exp[] values;
+    private int[] hashes;
+    private int used;
+    private int count;
+    // slots of entry numbers plus one, 0 for a free slot, at least twice
+    // as many as entries so probing always ends at a free one
+    private int[] index;
+
+    public HashTable(boolean identity) {
+        super(Type.HASHTABLE);
+        this.identity = identity;
+        rebuild(8);
+    }
+
+    public boolean identity() {
+        return identity;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /** Returns the value stored for key, null if there is none */
+    public Exp get(Exp key) {
+        int e = find(key, hash(key));
+        return e < 0 ? null : values[e];
+    }
+
+    public void put(Exp key, Exp value) {
+        int h = hash(key);
+        int e = find(key, h);
+        if (e >= 0) {
+            values[e] = value;
+            return;
+        }
+        if (used == keys.length)
+            rebuild(count * 2 >= keys.length ? keys.length * 2 : keys.length);
+        keys[used] = key;
+        values[used] = value;
+        hashes[used] = h;
+        slot(h, used);
+        used++;
+        count++;
+    }
+
+    /** Removes the entry for key, returns false if there is none */
+    public boolean remove(Exp key) {
+        int e = find(key, hash(key));
+        if (e < 0)
+            return false;
+        keys[e] = null;
+        values[e] = null;
+        count--;
+        return true;
+    }
+
+    /** Returns the keys in the order they were added */
+    public Exp[] keys() {
+        Exp[] r = new Exp[count];
+        int n = 0;
+        for (int e = 0; e < used; e++) {
+            if (keys[e] != null)
+                r[n++] = keys[e];
+        }
+        return r;
+    }
+
+    private int hash(Exp key) {
+        int h = identity ? System.identityHashCode(key) : key.hash();
+        return h ^ (h >>> 16);
+    }
+
+    private int find(Exp key, int h) {
+        int mask = index.length - 1;
+        for (int i = h & mask; index[i] != 0; i = (i + 1) & mask) {
+            int e = index[i] - 1;
+            Exp k = keys[e];
+            if (hashes[e] == h && k != null && (k == key || (!identity && k.equal(key))))
+                return e;
+        }
+        return -1;
+    }
+
+    private void slot(int h, int e) {
+        int mask = index.length - 1;
+        int i = h & mask;
+        while (index[i] != 0)
+            i = (i + 1) & mask;
+        index[i] = e + 1;
+    }
+
+    /** Makes room for capacity entries, dropping the removed ones */
+    private void rebuild(int capacity) {
+        Exp[] oldKeys = keys;
+        Exp[] oldValues = values;
+        int[] oldHashes = hashes;
+        int oldUsed = used;
+        keys = new Exp[capacity];
+        values = new Exp[capacity];
+        hashes = new int[capacity];
+        index = new int[capacity * 2];
+        used = 0;
+        for (int e = 0; e < oldUsed; e++) {
+            if (oldKeys[e] != null) {
+                keys[used] = oldKeys[e];
+                values[used] = oldValues[e];
+                hashes[used] = oldHashes[e];
+                slot(hashes[used], used);
+                used++;
+            }
+        }
+    }
+
+    @Override
+    public void print(PrintHandler p, int level) {
+        p.print(String.format("<HASHTABLE %d>", count));
+    }
+
+    @Override
+    public boolean equal(Exp e) {
+        return this == e;
+    }
+
+    public static void addPrims(SymbolTable s) {
+        s.addPrim("hashtablep", new Prim.Strict(1, 1, Exp.Type.ANY) {
+
+            @Override
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                if (a.type() == Exp.Type.HASHTABLE)
+                    return interp.symTable().T;
+                return List.Nil;
+            }
+        });
+        s.addPrim("hashtable", new Prim.Strict(0, 1, Exp.Type.SYMBOL) {
+
+            @Override
+            public Exp call0(Lisp interp) throws Exception {
+                return new HashTable(false);
+            }
+
+            @Override
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primHashtable(interp, (Symbol) a);
+            }
+        });
+        s.addPrim("gethash", new Prim.Strict(2, 3, Exp.Type.ANY, Exp.Type.HASHTABLE, Exp.Type.ANY) {
+
+            @Override
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return primGethash(interp, a, (HashTable) b, List.Nil);
+            }
+
+            @Override
+            public Exp call3(Lisp interp, Exp a, Exp b, Exp c) throws Exception {
+                return primGethash(interp, a, (HashTable) b, c);
+            }
+        });
+        s.addPrim("puthash", new Prim.Strict(3, 3, Exp.Type.ANY, Exp.Type.ANY, Exp.Type.HASHTABLE) {
+
+            @Override
+            public Exp call3(Lisp interp, Exp a, Exp b, Exp c) throws Exception {
+                ((HashTable) c).put(a, b);
+                return b;
+            }
+        });
+        s.addPrim("remhash", new Prim.Strict(2, 2, Exp.Type.ANY, Exp.Type.HASHTABLE) {
+
+            @Override
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                if (((HashTable) b).remove(a))
+                    return interp.symTable().T;
+                return List.Nil;
+            }
+        });
+        s.addPrim("hashcount", new Prim.Strict(1, 1, Exp.Type.HASHTABLE) {
+
+            @Override
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return Number.of(((HashTable) a).count());
+            }
+        });
+        s.addPrim("hashkeys", new Prim.Strict(1, 1, Exp.Type.HASHTABLE) {
+
+            @Override
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primHashkeys(interp, (HashTable) a);
+            }
+        });
+        s.addPrim("maphash", new Prim.Handler() {
+
+            @Override
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return primMaphash(interp, args, env, level);
+            }
+        });
+    }
+
+    private static Exp primHashtable(Lisp interp, Symbol test) throws Exception {
+        if (test.name().equals("EQ"))
+            return new HashTable(true);
+        if (test.name().equals("EQUAL"))
+            return new HashTable(false);
+        throw new Exception("bad hashtable test");
+    }
+
+    private static Exp primGethash(Lisp interp, Exp key, HashTable table, Exp otherwise) throws Exception {
+        Exp value = table.get(key);
+        return value == null ? otherwise : value;
+    }
+
+    private static Exp primHashkeys(Lisp interp, HashTable table) throws Exception {
+        Exp[] keys = table.keys();
+        interp.countConses(keys.length);
+        Exp r = List.Nil;
+        for (int i = keys.length - 1; i >= 0; i--)
+            r = new List(keys[i], r);
+        return r;
+    }
+
+    private static Exp primMaphash(Lisp interp, List args, Frame env, int level) throws Exception {
+        ArgList argList = new ArgList(interp, args);
+        Exp op = argList.next(Exp.Type.ANY, env, false, level);
+        HashTable table = (HashTable) argList.next(Exp.Type.HASHTABLE, env, true, level);
+        // f may change the table, it sees the entries there were at the start
+        Exp[] keys = table.keys();
+        Exp[] values = new Exp[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            values[i] = table.get(keys[i]);
+        for (int i = 0; i < keys.length; i++)
+            interp.call(op, new Exp[]{keys[i], values[i]}, level);
+        return List.Nil;
+    }
+}
@@ -0,0 +1,163 @@
+/* Project: LispLib
+ * File:    Intrinsic.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+/** This class represents the Intrinsic primitives, the few primitives
+ * that make up most calls in typical code.
+ *
+ * The Analyzer and the Compiler evaluate a call of one of them inline
+ * instead of going through its Prim, as long as its symbol is still bound
+ * to the primitive it had when the Intrinsics were created and the call
+ * has the number of arguments it is specialized for. Like a special form
+ * the inline code is guarded and falls back to evaluating the source form
+ * once the symbol is rebound. The operations below behave exactly like
+ * the primitives they replace, including their errors.
+ *
+ * @author Layne
+ */
+public class Intrinsic {
+
+    public static final int CAR = 0;
+    public static final int CDR = 1;
+    public static final int NULL = 2;
+    public static final int CONS = 3;
+    public static final int ADD = 4;
+    public static final int SUB = 5;
+    public static final int MUL = 6;
+    public static final int LESS = 7;
+    public static final int EQUALS = 8;
+    public static final int EQUAL = 9;
+
+    private static final String[] names = {"CAR", "CDR", "NULL", "CONS", "+", "-", "*", "<", "=", "EQUAL"};
+    private static final int[] arities = {1, 1, 1, 2, 2, 2, 2, 2, 2, 2};
+
+    private Symbol[] syms = new Symbol[names.length];
+    private Prim[] prims = new Prim[names.length];
+
+    /** Records the primitives currently bound to the intrinsic symbols */
+    public Intrinsic(SymbolTable symTable) {
+        for (int i = 0; i < names.length; i++) {
+            syms[i] = symTable.add(names[i]);
+            Exp value = syms[i].value();
+            if (value != null && value.type() == Exp.Type.PRIMATIVE)
+                prims[i] = (Prim) value;
+        }
+    }
+
+    /** Returns the intrinsic form is a call of, -1 if it is not one */
+    public int find(List form) {
+        Exp head = form.head();
+        if (head.type() != Exp.Type.SYMBOL)
+            return -1;
+        for (int i = 0; i < syms.length; i++) {
+            if (syms[i] == head) {
+                if (prims[i] == null || syms[i].value() != prims[i] || form.length() != arities[i] + 1)
+                    return -1;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Symbol symbol(int op) {
+        return syms[op];
+    }
+
+    public Prim prim(int op) {
+        return prims[op];
+    }
+
+    public static int arity(int op) {
+        return arities[op];
+    }
+
+    /** Applies op to its arguments, b is ignored by the unary ones */
+    public static Exp apply(int op, Exp a, Exp b, Lisp interp) throws Exception {
+        Exp t = interp.symTable().T;
+        switch (op) {
+            case CAR:
+                return car(a);
+            case CDR:
+                return cdr(a);
+            case NULL:
+                return nul(a, t);
+            case CONS:
+                return cons(a, b, interp);
+            case ADD:
+                return add(a, b);
+            case SUB:
+                return sub(a, b);
+            case MUL:
+                return mul(a, b);
+            case LESS:
+                return less(a, b, t);
+            case EQUALS:
+                return equals(a, b, t);
+            case EQUAL:
+                return equal(a, b, t);
+            default:
+                throw new Exception("bad intrinsic");
+        }
+    }
+
+    public static Exp car(Exp a) throws Exception {
+        if (a.type() != Exp.Type.LIST)
+            throw new Exception("list expected");
+        if (a == List.Nil)
+            throw new Exception("empty list");
+        return ((List) a).head();
+    }
+
+    public static Exp cdr(Exp a) throws Exception {
+        if (a.type() != Exp.Type.LIST)
+            throw new Exception("list expected");
+        if (a == List.Nil)
+            throw new Exception("empty list");
+        return ((List) a).tail();
+    }
+
+    public static Exp nul(Exp a, Exp t) {
+        return a == List.Nil ? t : List.Nil;
+    }
+
+    public static Exp cons(Exp a, Exp b, Lisp interp) {
+        interp.countConses(1);
+        return new List(a, b);
+    }
+
+    public static Exp add(Exp a, Exp b) throws Exception {
+        checkNumbers(a, b);
+        return Number.add((Number) a, (Number) b);
+    }
+
+    public static Exp sub(Exp a, Exp b) throws Exception {
+        checkNumbers(a, b);
+        return Number.sub((Number) a, (Number) b);
+    }
+
+    public static Exp mul(Exp a, Exp b) throws Exception {
+        checkNumbers(a, b);
+        return Number.mul((Number) a, (Number) b);
+    }
+
+    public static Exp less(Exp a, Exp b, Exp t) throws Exception {
+        checkNumbers(a, b);
+        return Number.less((Number) a, (Number) b) ? t : List.Nil;
+    }
+
+    public static Exp equals(Exp a, Exp b, Exp t) throws Exception {
+        checkNumbers(a, b);
+        return Number.numEquals((Number) a, (Number) b) ? t : List.Nil;
+    }
+
+    public static Exp equal(Exp a, Exp b, Exp t) {
+        return a.equal(b) ? t : List.Nil;
+    }
+
+    private static void checkNumbers(Exp a, Exp b) throws Exception {
+        if (a.type() != Exp.Type.NUMBER || b.type() != Exp.Type.NUMBER)
+            throw new Exception("number expected");
+    }
+}
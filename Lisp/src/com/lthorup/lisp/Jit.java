@@ -0,0 +1,1112 @@
+/* Project: LispLib
+ * File:    Jit.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** This class represents the Jit, the second tier of the BYTECODE engine.
+ *
+ * Every call of a function counts against its Function. Once the count
+ * reaches the threshold, in whichever parallel task that happens, the
+ * call that gets there first has the function's VM Code translated one to one
+ * into the run method of a new JVM class, which HotSpot then compiles like
+ * any other Java code. The VM operand stack becomes the JVM operand stack
+ * and each instruction that needs the interpreter becomes a call of one
+ * of the static helpers below.
+ *
+ * Generated code does not check the GUARDs of special forms and
+ * intrinsics. Instead the guarded symbols are recorded as assumptions and
+ * rebinding any of them through Symbol.setValue (defun, setq) deoptimizes
+ * the function back to the VM. Calls already running in the old code finish in it.
+ *
+ * A TYPED expression is computed on unboxed doubles on the JVM stack, its
+ * variables known to be numbers by their Types, only the result is boxed.
+ * The symbols the types rely on are assumptions like the guarded ones.
+ *
+ * HotSpot only compiles a loop on stack replacement if its JVM stack is
+ * empty on entry, so the values on the stack at the head of a loop are
+ * kept in locals while jumping back to it.
+ *
+ * Anything the translation cannot handle leaves the function on the VM.
+ *
+ * @author Layne
+ */
+public class Jit {
+
+    private static final String EXP = "Lcom/lthorup/lisp/Exp;";
+    private static final String FRAME = "Lcom/lthorup/lisp/Frame;";
+    private static final String SYMBOLS = "[Lcom/lthorup/lisp/Symbol;";
+    private static final String LISP = "Lcom/lthorup/lisp/Lisp;";
+    private static final String NUMBER = "com/lthorup/lisp/Number";
+    private static final String JIT = "com/lthorup/lisp/Jit";
+    private static final String BASE = "com/lthorup/lisp/JitCode";
+
+    // methods of Intrinsic called for each INTRINSIC, the predicates also
+    // take T and cons the interpreter
+    private static final String[] INTRINSICS = {
+        "car", "cdr", "nul", "cons", "add", "sub", "mul", "less", "equals", "equal"};
+
+    // locals of the generated run method
+    private static final int INTERP = 1, ENV = 2, LEVEL = 3, CONSTS = 4, T = 5, SITE = 6, TEMP = 7;
+
+    // the threshold of a new Jit
+    static final int THRESHOLD = 1000;
+
+    private static int classCount = 0;
+
+    private Lisp interp;
+    private VM vm;
+    private Compiler compiler;
+    private int threshold = THRESHOLD;
+    // shared with the Jits of the parallel tasks
+    private final AtomicInteger compiled;
+    private final AtomicInteger failed;
+
+    public Jit(Lisp interp, VM vm, Compiler compiler) {
+        this(interp, vm, compiler, null);
+    }
+
+    /** Creates the Jit of a parallel task forked from the interpreter of
+     * parent, which counts what it compiles
+     */
+    Jit(Lisp interp, VM vm, Compiler compiler, Jit parent) {
+        this.interp = interp;
+        this.vm = vm;
+        this.compiler = compiler;
+        if (parent == null) {
+            compiled = new AtomicInteger();
+            failed = new AtomicInteger();
+        }
+        else {
+            threshold = parent.threshold;
+            compiled = parent.compiled;
+            failed = parent.failed;
+        }
+    }
+
+    public int threshold() {
+        return threshold;
+    }
+
+    /** Sets the number of calls after which a function is compiled to a
+     * JVM class, zero turns the Jit off.
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int compiled() {
+        return compiled.get();
+    }
+
+    public int failed() {
+        return failed.get();
+    }
+
+    /** Counts a call of f and returns its generated code if it has any */
+    JitCode tier(Function f) {
+        JitCode c = f.jitCode();
+        if (c != null || threshold <= 0)
+            return c;
+        if (f.countCall(threshold))
+            compile(f);
+        return f.jitCode();
+    }
+
+    /** Runs the body of f in the best tier available */
+    Exp invoke(Function f, Frame env, int level) throws Exception {
+        JitCode c = tier(f);
+        if (c != null)
+            return resume(c.run(interp, env, level), level);
+        return vm.run(f, env, level);
+    }
+
+    /** Finishes the tail calls returned by generated code */
+    Exp resume(Exp value, int level) throws Exception {
+        while (value instanceof TailCall) {
+            TailCall t = (TailCall) value;
+            JitCode c = tier(t.function());
+            try {
+                if (c != null)
+                    value = c.run(interp, t.env(), level);
+                else
+                    value = vm.run(t.function(), t.env(), level);
+            }
+            catch (Exception err) {
+                throw LispError.from(err).addTail(t.form(), t.caller(), level);
+            }
+        }
+        return value;
+    }
+
+    private void compile(Function f) {
+        try {
+            Code code = f.compiled(compiler);
+            ArrayList<Symbol> assumptions = new ArrayList<Symbol>();
+            String name;
+            synchronized (Jit.class) {
+                name = "com.lthorup.lisp.jit.Fn" + (classCount++);
+            }
+            byte[] bytes = generate(name.replace('.', '/'), code, assumptions);
+            Class<?> cls = new Loader(Jit.class.getClassLoader()).define(name, bytes);
+            JitCode jc = (JitCode) cls.getConstructor(Exp[].class, Symbol[][].class)
+                    .newInstance(code.consts(), code.frames());
+            jc.code = code;
+            f.setJitCode(jc, assumptions.toArray(new Symbol[assumptions.size()]));
+            compiled.incrementAndGet();
+        }
+        catch (Exception | LinkageError err) {
+            failed.incrementAndGet();
+        }
+    }
+
+    private byte[] generate(String name, Code c, ArrayList<Symbol> assumptions) throws Exception {
+        ConstPool cp = new ConstPool();
+        int thisClass = cp.cls(name);
+        int superClass = cp.cls(BASE);
+
+        // constructor passing the constant pool and frame layouts up to JitCode
+        Bytes init = new Bytes();
+        init.u1(0x2a);                                      // aload_0
+        init.u1(0x2b);                                      // aload_1
+        init.u1(0x2c);                                      // aload_2
+        init.u1(0xb7);                                      // invokespecial
+        init.u2(cp.method(BASE, "<init>", "([" + EXP + "[" + SYMBOLS + ")V"));
+        init.u1(0xb1);                                      // return
+
+        Bytes run = new Bytes();
+        run.u1(0x02);                                       // iconst_m1
+        run.u1(0x36);                                       // istore
+        run.u1(SITE);
+        run.u1(0x2a);                                       // aload_0
+        run.u1(0xb4);                                       // getfield
+        run.u2(cp.field(BASE, "consts", "[" + EXP));
+        run.u1(0x3a);                                       // astore
+        run.u1(CONSTS);
+        run.u1(0x2b);                                       // aload_1
+        run.u1(0xb8);                                       // invokestatic
+        run.u2(cp.method(JIT, "t", "(" + LISP + ")" + EXP));
+        run.u1(0x3a);                                       // astore
+        run.u1(T);
+        int start = run.size();
+        int locals = translate(c, cp, run, assumptions);
+        // an error passing through adds the forms around the instruction at SITE
+        int handler = run.size();
+        run.u1(0x15);                                       // iload
+        run.u1(SITE);
+        run.u1(0x2a);                                       // aload_0
+        run.u1(0x2c);                                       // aload_2
+        run.u1(0x1d);                                       // iload_3
+        run.u1(0xb8);
+        run.u2(cp.method(JIT, "unwind", "(Ljava/lang/Exception;IL" + BASE + ";" + FRAME + "I)Lcom/lthorup/lisp/LispError;"));
+        run.u1(0xbf);                                       // athrow
+
+        Bytes out = new Bytes();
+        out.u4(0xcafebabe);
+        out.u2(0);
+        out.u2(49);             // no stack map frames needed before version 50
+        Bytes methods = new Bytes();
+        methods.u2(2);
+        method(methods, cp, 0x0001, "<init>", "([" + EXP + "[" + SYMBOLS + ")V", 3, 3, init, null);
+        int typedStack = 0;
+        for (Code.Typed t : c.typed())
+            typedStack = Math.max(typedStack, stack(t));
+        method(methods, cp, 0x0001, "run", "(" + LISP + FRAME + "I)" + EXP,
+                c.maxStack() + 8 + typedStack, TEMP + locals, run,
+                new int[]{start, handler, handler, cp.cls("java/lang/Exception")});
+        out.u2(cp.count());
+        out.append(cp.bytes());
+        out.u2(0x0031);         // public final super
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(0);              // interfaces
+        out.u2(0);              // fields
+        out.append(methods);
+        out.u2(0);              // attributes
+        return out.toArray();
+    }
+
+    /** Writes a method, handler is null or the start, end, address and
+     * class of its one exception handler
+     */
+    private void method(Bytes out, ConstPool cp, int access, String name, String desc,
+            int maxStack, int maxLocals, Bytes code, int[] handler) throws Exception {
+        out.u2(access);
+        out.u2(cp.utf8(name));
+        out.u2(cp.utf8(desc));
+        out.u2(1);
+        out.u2(cp.utf8("Code"));
+        out.u4(12 + code.size() + (handler == null ? 0 : 8));
+        out.u2(maxStack);
+        out.u2(maxLocals);
+        out.u4(code.size());
+        out.append(code);
+        if (handler == null)
+            out.u2(0);          // exception table
+        else {
+            out.u2(1);
+            for (int v : handler)
+                out.u2(v);
+        }
+        out.u2(0);              // attributes
+    }
+
+    private int translate(Code c, ConstPool cp, Bytes b, ArrayList<Symbol> assumptions) throws Exception {
+        int[] code = c.code();
+        Exp[] consts = c.consts();
+        int[] at = new int[code.length];
+        ArrayList<int[]> fixups = new ArrayList<int[]>();
+        int maxArgs = arguments(code);
+        int[] depth = depths(code);
+        // heads of loops, the stack below them is spilled from SPILL on
+        boolean[] head = new boolean[code.length];
+        int spill = TEMP + maxArgs;
+        int maxSpill = 0;
+        for (int pc = 0; pc < code.length; pc += 1 + Code.operands(code[pc])) {
+            if (code[pc] == Code.LOOP) {
+                head[code[pc + 1]] = true;
+                maxSpill = Math.max(maxSpill, depth[code[pc + 1]]);
+            }
+        }
+
+
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            if (head[pc]) {
+                store(b, spill, depth[pc]);
+                at[pc] = b.size();
+                load(b, spill, depth[pc]);
+            }
+            else
+                at[pc] = b.size();
+            if (fails(op))
+                site(b, cp, pc);
+            switch (op) {
+                case Code.CONST:
+                    constant(b, code[pc + 1]);
+                    break;
+                case Code.LOAD:
+                    constant(b, code[pc + 1]);
+                    b.u1(0xb8);
+                    b.u2(cp.method(JIT, "global", "(" + EXP + ")" + EXP));
+                    break;
+                case Code.SETQ:
+                    b.u1(0x59);                             // dup
+                    constant(b, code[pc + 1]);
+                    b.u1(0x2b);                             // aload_1
+                    b.u1(0xb8);
+                    b.u2(cp.method(JIT, "setq", "(" + EXP + EXP + LISP + ")V"));
+                    break;
+                case Code.LOCAL:
+                    b.u1(0x2c);                             // aload_2
+                    integer(b, cp, code[pc + 1]);
+                    integer(b, cp, code[pc + 2]);
+                    b.u1(0xb6);                             // invokevirtual
+                    b.u2(cp.method("com/lthorup/lisp/Frame", "get", "(II)" + EXP));
+                    break;
+                case Code.SETL:
+                    b.u1(0x59);
+                    b.u1(0x2c);
+                    integer(b, cp, code[pc + 1]);
+                    integer(b, cp, code[pc + 2]);
+                    b.u1(0xb8);
+                    b.u2(cp.method(JIT, "setLocal", "(" + EXP + FRAME + "II)V"));
+                    break;
+                case Code.POP:
+                    b.u1(0x57);                             // pop
+                    break;
+                case Code.JUMP:
+                    branch(b, 0xa7, code[pc + 1], fixups);  // goto
+                    break;
+                case Code.JUMPF:
+                    b.u1(0x19);                             // aload
+                    b.u1(T);
+                    branch(b, 0xa6, code[pc + 1], fixups);  // if_acmpne
+                    break;
+                case Code.LOOP:
+                    b.u1(0x2b);
+                    b.u1(0xb8);
+                    b.u2(cp.method(JIT, "checkStop", "(" + LISP + ")V"));
+                    store(b, spill, depth[code[pc + 1]]);
+                    fixups.add(new int[]{b.size(), code[pc + 1], 1});
+                    b.u1(0xa7);
+                    b.u2(0);
+                    break;
+                case Code.ENTER:
+                    b.u1(0x2a);                             // aload_0
+                    b.u1(0xb4);                             // getfield
+                    b.u2(cp.field(BASE, "frames", "[" + SYMBOLS));
+                    integer(b, cp, code[pc + 1]);
+                    b.u1(0x32);                             // aaload
+                    b.u1(0x2c);
+                    b.u1(0xb8);
+                    b.u2(cp.method(JIT, "enter", "(" + SYMBOLS + FRAME + ")" + FRAME));
+                    b.u1(0x4d);                             // astore_2
+                    break;
+                case Code.BIND:
+                    b.u1(0x2c);
+                    integer(b, cp, code[pc + 1]);
+                    b.u1(0xb8);
+                    b.u2(cp.method(JIT, "bind", "(" + EXP + FRAME + "I)V"));
+                    break;
+                case Code.LEAVE:
+                    b.u1(0x2c);
+                    b.u1(0xb6);
+                    b.u2(cp.method("com/lthorup/lisp/Frame", "parent", "()" + FRAME));
+                    b.u1(0x4d);
+                    break;
+                case Code.GUARD: {
+                    // speculate that the special form or intrinsic keeps its
+                    // binding, a form rebound for now gets back its inline code
+                    // when the symbol is bound to the primitive again
+                    Symbol sym = (Symbol) consts[code[pc + 1]];
+                    if (sym.value() != consts[code[pc + 2]])
+                        branch(b, 0xa7, code[pc + 3], fixups);
+                    if (!assumptions.contains(sym))
+                        assumptions.add(sym);
+                    break;
+                }
+                case Code.INTRINSIC: {
+                    int i = code[pc + 1];
+                    String desc = Intrinsic.arity(i) == 1 ? "(" + EXP : "(" + EXP + EXP;
+                    if (i == Intrinsic.NULL || i == Intrinsic.LESS || i == Intrinsic.EQUALS || i == Intrinsic.EQUAL) {
+                        b.u1(0x19);
+                        b.u1(T);
+                        desc += EXP;
+                    }
+                    else if (i == Intrinsic.CONS) {
+                        b.u1(0x2b);
+                        desc += LISP;
+                    }
+                    b.u1(0xb8);
+                    b.u2(cp.method("com/lthorup/lisp/Intrinsic", INTRINSICS[i], desc + ")" + EXP));
+                    break;
+                }
+                case Code.CHECK:
+                    integer(b, cp, code[pc + 1]);
+                    b.u1(0xb8);
+                    b.u2(cp.method("com/lthorup/lisp/Types", "check", "(" + EXP + "I)" + EXP));
+                    break;
+                case Code.TYPED: {
+                    // the generic code after it is left unreachable
+                    Code.Typed t = c.typed()[code[pc + 1]];
+                    if (!t.holds())
+                        break;
+                    for (Symbol sym : t.guards()) {
+                        if (!assumptions.contains(sym))
+                            assumptions.add(sym);
+                    }
+                    typed(b, cp, t, consts);
+                    branch(b, 0xa7, code[pc + 2], fixups);
+                    break;
+                }
+                case Code.FOR: {
+                    for (int i = 2; i >= 0; i--) {
+                        b.u1(0x3a);
+                        b.u1(TEMP + i);
+                    }
+                    b.u1(0x19);
+                    b.u1(TEMP);
+                    b.u1(0x19);
+                    b.u1(TEMP + 1);
+                    b.u1(0xb8);
+                    b.u2(cp.method(JIT, "forDone", "(" + EXP + EXP + ")Z"));
+                    int next = b.size();
+                    b.u1(0x99);                             // ifeq
+                    b.u2(0);
+                    b.u1(0x19);
+                    b.u1(TEMP + 2);
+                    branch(b, 0xa7, code[pc + 1], fixups);
+                    b.patch2(next + 1, b.size() - next);
+                    b.u1(0x2c);
+                    b.u1(0x19);
+                    b.u1(TEMP);
+                    b.u1(0xb8);
+                    b.u2(cp.method(JIT, "forNext", "(" + FRAME + EXP + ")" + EXP));
+                    b.u1(0x19);
+                    b.u1(TEMP + 1);
+                    break;
+                }
+                case Code.EVAL:
+                    b.u1(0x2b);
+                    constant(b, code[pc + 1]);
+                    b.u1(0x2c);
+                    b.u1(0x1d);                             // iload_3
+                    b.u1(0xb6);                             // invokevirtual
+                    b.u2(cp.method("com/lthorup/lisp/Lisp", "eval", "(" + EXP + FRAME + "I)" + EXP));
+                    break;
+                case Code.CALLPREP: {
+                    b.u1(0x59);
+                    constant(b, code[pc + 1]);
+                    integer(b, cp, code[pc + 2]);
+                    b.u1(0xb8);
+                    b.u2(cp.method(JIT, "plain", "(" + EXP + EXP + "I)Z"));
+                    int fast = b.size();
+                    b.u1(0x9a);                             // ifne
+                    b.u2(0);
+                    b.u1(0x2b);
+                    constant(b, code[pc + 1]);
+                    b.u1(0x2c);
+                    b.u1(0x1d);
+                    b.u1(0xb8);
+                    b.u2(cp.method(JIT, "apply", "(" + EXP + LISP + EXP + FRAME + "I)" + EXP));
+                    branch(b, 0xa7, code[pc + 3], fixups);
+                    b.patch2(fast + 1, b.size() - fast);
+                    break;
+                }
+                case Code.CALL:
+                case Code.TCALL: {
+                    String prefix = op == Code.TCALL ? "tcall" : "call";
+                    // a TailCall keeps the form and environment of the call
+                    String tail = op == Code.TCALL ? EXP + FRAME : "";
+                    int n = code[pc + 1];
+                    if (n <= 3) {
+                        if (op == Code.TCALL) {
+                            constant(b, code[pc + 2]);
+                            b.u1(0x2c);
+                        }
+                        b.u1(0x2b);
+                        b.u1(0x1d);
+                        StringBuilder desc = new StringBuilder("(" + EXP);
+                        for (int i = 0; i < n; i++)
+                            desc.append(EXP);
+                        desc.append(tail + LISP + "I)" + EXP);
+                        b.u1(0xb8);
+                        b.u2(cp.method(JIT, prefix + n, desc.toString()));
+                    }
+                    else {
+                        for (int i = n - 1; i >= 0; i--) {
+                            b.u1(0x3a);                     // astore
+                            b.u1(TEMP + i);
+                        }
+                        integer(b, cp, n);
+                        b.u1(0xbd);                         // anewarray
+                        b.u2(cp.cls("com/lthorup/lisp/Exp"));
+                        for (int i = 0; i < n; i++) {
+                            b.u1(0x59);
+                            integer(b, cp, i);
+                            b.u1(0x19);
+                            b.u1(TEMP + i);
+                            b.u1(0x53);                     // aastore
+                        }
+                        if (op == Code.TCALL) {
+                            constant(b, code[pc + 2]);
+                            b.u1(0x2c);
+                        }
+                        b.u1(0x2b);
+                        b.u1(0x1d);
+                        b.u1(0xb8);
+                        b.u2(cp.method(JIT, prefix + "N", "(" + EXP + "[" + EXP + tail + LISP + "I)" + EXP));
+                    }
+                    break;
+                }
+                case Code.RET:
+                    b.u1(0xb0);                             // areturn
+                    break;
+                default:
+                    throw new Exception("bad instruction");
+            }
+            pc += 1 + Code.operands(op);
+        }
+
+        for (int[] fixup : fixups) {
+            if (head[fixup[1]] && depth[fixup[1]] > 0 && fixup.length < 3)
+                throw new Exception("jump into a loop");
+            int offset = at[fixup[1]] - fixup[0];
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                throw new Exception("function too large");
+            b.patch2(fixup[0] + 1, offset);
+        }
+        if (spill + maxSpill > 255)
+            throw new Exception("too many arguments");
+        return maxArgs + maxSpill;
+    }
+
+    /** Returns the number of locals the arguments of calls and the state
+     * of fors need
+     */
+    private static int arguments(int[] code) {
+        int n = 0;
+        for (int pc = 0; pc < code.length; pc += 1 + Code.operands(code[pc])) {
+            if ((code[pc] == Code.CALL || code[pc] == Code.TCALL) && code[pc + 1] > 3)
+                n = Math.max(n, code[pc + 1]);
+            else if (code[pc] == Code.FOR)
+                n = Math.max(n, 3);
+        }
+        return n;
+    }
+
+    /** Returns the depth of the stack before each instruction */
+    private static int[] depths(int[] code) {
+        int[] depth = new int[code.length];
+        Arrays.fill(depth, -1);
+        ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+        depth[0] = 0;
+        work.push(0);
+        while (!work.isEmpty()) {
+            int pc = work.pop();
+            int d = depth[pc];
+            int next = pc + 1 + Code.operands(code[pc]);
+            switch (code[pc]) {
+                case Code.CONST:
+                case Code.LOAD:
+                case Code.LOCAL:
+                case Code.EVAL:
+                    flow(depth, work, next, d + 1);
+                    break;
+                case Code.POP:
+                case Code.BIND:
+                    flow(depth, work, next, d - 1);
+                    break;
+                case Code.JUMP:
+                case Code.LOOP:
+                    flow(depth, work, code[pc + 1], d);
+                    break;
+                case Code.JUMPF:
+                    flow(depth, work, next, d - 1);
+                    flow(depth, work, code[pc + 1], d - 1);
+                    break;
+                case Code.GUARD:
+                    flow(depth, work, next, d);
+                    flow(depth, work, code[pc + 3], d);
+                    break;
+                case Code.CALLPREP:
+                    flow(depth, work, next, d);
+                    flow(depth, work, code[pc + 3], d);
+                    break;
+                case Code.TYPED:
+                    flow(depth, work, next, d);
+                    flow(depth, work, code[pc + 2], d + 1);
+                    break;
+                case Code.FOR:
+                    flow(depth, work, next, d - 1);
+                    flow(depth, work, code[pc + 1], d - 2);
+                    break;
+                case Code.CALL:
+                case Code.TCALL:
+                    flow(depth, work, next, d - code[pc + 1]);
+                    break;
+                case Code.INTRINSIC:
+                    flow(depth, work, next, d + 1 - Intrinsic.arity(code[pc + 1]));
+                    break;
+                case Code.RET:
+                    break;
+                default:
+                    flow(depth, work, next, d);
+                    break;
+            }
+        }
+        return depth;
+    }
+
+    private static void flow(int[] depth, ArrayDeque<Integer> work, int pc, int d) {
+        if (depth[pc] < 0) {
+            depth[pc] = d;
+            work.push(pc);
+        }
+    }
+
+    /** Moves the top n values of the stack to the locals from base on */
+    private void store(Bytes b, int base, int n) {
+        for (int i = n - 1; i >= 0; i--) {
+            b.u1(0x3a);
+            b.u1(base + i);
+        }
+    }
+
+    private void load(Bytes b, int base, int n) {
+        for (int i = 0; i < n; i++) {
+            b.u1(0x19);
+            b.u1(base + i);
+        }
+    }
+
+    /** Emits t, a FLOAT boxed once at the end or a comparison giving T or
+     * NIL
+     */
+    private void typed(Bytes b, ConstPool cp, Code.Typed t, Exp[] consts) throws Exception {
+        if (!Types.comparison(t.op)) {
+            unboxed(b, cp, t, consts);
+            b.u1(0xb8);
+            b.u2(cp.method(NUMBER, "of", "(D)L" + NUMBER + ";"));
+            return;
+        }
+        unboxed(b, cp, t.a, consts);
+        unboxed(b, cp, t.b, consts);
+        // NaN compares false, dcmpg makes it greater and dcmpl less
+        switch (t.op) {
+            case Types.LESS:
+                b.u1(0x98);                                 // dcmpg
+                b.u1(0x9c);                                 // ifge
+                break;
+            case Types.LESSEQ:
+                b.u1(0x98);
+                b.u1(0x9d);                                 // ifgt
+                break;
+            case Types.GREATER:
+                b.u1(0x97);                                 // dcmpl
+                b.u1(0x9e);                                 // ifle
+                break;
+            case Types.GREATEREQ:
+                b.u1(0x97);
+                b.u1(0x9b);                                 // iflt
+                break;
+            default:
+                b.u1(0x97);
+                b.u1(0x9a);                                 // ifne
+                break;
+        }
+        b.u2(8);
+        b.u1(0x19);
+        b.u1(T);
+        b.u1(0xa7);                                         // goto
+        b.u2(6);
+        b.u1(0xb2);                                         // getstatic
+        b.u2(cp.field("com/lthorup/lisp/List", "Nil", "Lcom/lthorup/lisp/List;"));
+    }
+
+    /** Emits the value of t as a double */
+    private void unboxed(Bytes b, ConstPool cp, Code.Typed t, Exp[] consts) throws Exception {
+        if (t.type != Types.FLOAT) {
+            // exact arithmetic on numbers until a float gets involved
+            boxed(b, cp, t);
+            b.u1(0xb6);
+            b.u2(cp.method(NUMBER, "value", "()D"));
+            return;
+        }
+        switch (t.op) {
+            case Code.Typed.LOCAL:
+                boxed(b, cp, t);
+                b.u1(0xb6);
+                b.u2(cp.method(NUMBER, "value", "()D"));
+                break;
+            case Code.Typed.CONST:
+                b.u1(0x14);                                 // ldc2_w
+                b.u2(cp.dbl(((Number) consts[t.index]).value()));
+                break;
+            case Types.SIN:
+            case Types.COS:
+            case Types.TAN:
+                unboxed(b, cp, t.a, consts);
+                b.u1(0xb8);
+                b.u2(cp.method(NUMBER, t.op == Types.SIN ? "sin" : t.op == Types.COS ? "cos" : "tan", "(D)D"));
+                break;
+            case Types.SQRT:
+                unboxed(b, cp, t.a, consts);
+                b.u1(0xb8);
+                b.u2(cp.method("java/lang/Math", "sqrt", "(D)D"));
+                break;
+            default:
+                unboxed(b, cp, t.a, consts);
+                unboxed(b, cp, t.b, consts);
+                b.u1(0x63 + 4 * t.op);                      // dadd, dsub, dmul, ddiv
+                break;
+        }
+    }
+
+    /** Emits the value of t as a Number */
+    private void boxed(Bytes b, ConstPool cp, Code.Typed t) throws Exception {
+        switch (t.op) {
+            case Code.Typed.LOCAL:
+                b.u1(0x2c);
+                integer(b, cp, t.depth);
+                integer(b, cp, t.index);
+                b.u1(0xb6);
+                b.u2(cp.method("com/lthorup/lisp/Frame", "get", "(II)" + EXP));
+                break;
+            case Code.Typed.CONST:
+                constant(b, t.index);
+                break;
+            default: {
+                String[] ops = {"add", "sub", "mul", "div"};
+                boxed(b, cp, t.a);
+                boxed(b, cp, t.b);
+                b.u1(0xb8);
+                b.u2(cp.method(NUMBER, ops[t.op], "(L" + NUMBER + ";L" + NUMBER + ";)L" + NUMBER + ";"));
+                return;
+            }
+        }
+        b.u1(0xc0);                                         // checkcast
+        b.u2(cp.cls(NUMBER));
+    }
+
+    /** Returns the JVM stack computing t needs */
+    private static int stack(Code.Typed t) {
+        if (t.a == null)
+            return 3;
+        if (t.b == null)
+            return Math.max(stack(t.a), 2);
+        int width = t.type == Types.FLOAT || Types.comparison(t.op) ? 2 : 1;
+        return Math.max(stack(t.a), width + stack(t.b));
+    }
+
+    private void constant(Bytes b, int k) {
+        b.u1(0x19);                                         // aload
+        b.u1(CONSTS);
+        if (k <= 5)
+            b.u1(0x03 + k);                                 // iconst_k
+        else if (k <= Short.MAX_VALUE) {
+            b.u1(0x11);                                     // sipush
+            b.u2(k);
+        }
+        else
+            throw new IllegalStateException("too many constants");
+        b.u1(0x32);                                         // aaload
+    }
+
+    private void integer(Bytes b, ConstPool cp, int v) throws Exception {
+        if (v >= -1 && v <= 5)
+            b.u1(0x03 + v);
+        else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+            b.u1(0x11);
+            b.u2(v);
+        }
+        else {
+            b.u1(0x13);                                     // ldc_w
+            b.u2(cp.integer(v));
+        }
+    }
+
+    /** Returns true if the instruction op can throw an error */
+    private static boolean fails(int op) {
+        switch (op) {
+            case Code.LOAD:
+            case Code.SETQ:
+            case Code.LOOP:
+            case Code.INTRINSIC:
+            case Code.CHECK:
+            case Code.TYPED:
+            case Code.EVAL:
+            case Code.CALLPREP:
+            case Code.CALL:
+            case Code.TCALL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Emits setting SITE to pc, the instruction that can fail next */
+    private void site(Bytes b, ConstPool cp, int pc) throws Exception {
+        integer(b, cp, pc);
+        b.u1(0x36);                                         // istore
+        b.u1(SITE);
+    }
+
+    private void branch(Bytes b, int opcode, int target, ArrayList<int[]> fixups) {
+        fixups.add(new int[]{b.size(), target});
+        b.u1(opcode);
+        b.u2(0);
+    }
+
+    // ---------------------------------------------------------------------
+    // helpers called from generated code
+
+    public static Exp t(Lisp interp) {
+        return interp.symTable().T;
+    }
+
+    public static Exp global(Exp sym) throws Exception {
+        return VM.global((Symbol) sym);
+    }
+
+    public static void setq(Exp value, Exp sym, Lisp interp) throws Exception {
+        interp.checkGlobal();
+        ((Symbol) sym).setValue(value);
+    }
+
+    public static void setLocal(Exp value, Frame env, int depth, int index) {
+        env.set(depth, index, value);
+    }
+
+    public static Frame enter(Symbol[] names, Frame env) {
+        return new Frame(names, new Exp[names.length], env);
+    }
+
+    public static void bind(Exp value, Frame env, int index) {
+        env.set(index, value);
+    }
+
+    public static void checkStop(Lisp interp) throws Exception {
+        interp.checkStop();
+    }
+
+    public static boolean forDone(Exp counter, Exp limit) {
+        return ((Number) counter).longValue() > ((Number) limit).longValue();
+    }
+
+    /** Binds the counter of a for and returns the next one */
+    public static Exp forNext(Frame env, Exp counter) {
+        long i = ((Number) counter).longValue();
+        env.set(0, Number.of(i));
+        return Number.of(i + 1);
+    }
+
+    public static boolean plain(Exp op, Exp form, int n) {
+        if (op.type() == Exp.Type.PRIMATIVE)
+            return ((Prim) op).strict(n) != null;
+        if (op.type() != Exp.Type.FUNCTION || ((Function) op).macro())
+            return false;
+        Exp head = ((List) form).head();
+        return head.type() != Exp.Type.SYMBOL || !((Symbol) head).trace();
+    }
+
+    /** Returns err with the forms around the instruction at site of the
+     * code c was translated from added, like the VM does
+     */
+    public static LispError unwind(Exception err, int site, JitCode c, Frame env, int level) {
+        LispError error = LispError.from(err);
+        if (site >= 0)
+            c.code.backtrace(error, site, env, level);
+        return error;
+    }
+
+    public static Exp apply(Exp op, Lisp interp, Exp form, Frame env, int level) throws Exception {
+        return interp.apply(op, (List) form, env, level);
+    }
+
+    // a primitive reaching the calls below takes their number of arguments
+
+    public static Exp call0(Exp f, Lisp interp, int level) throws Exception {
+        if (f.type() == Exp.Type.PRIMATIVE)
+            return ((Prim) f).strict(0).call0(interp);
+        return callN(f, new Exp[0], interp, level);
+    }
+
+    public static Exp call1(Exp f, Exp a, Lisp interp, int level) throws Exception {
+        if (f.type() == Exp.Type.PRIMATIVE) {
+            Prim.Strict p = ((Prim) f).strict(1);
+            return p.call1(interp, p.check(0, a));
+        }
+        Function fn = (Function) f;
+        if (fn.arity() != 1)
+            return callN(f, new Exp[]{a}, interp, level);
+        interp.checkCall(level);
+        Frame env = fn.frame(new Exp[]{a});
+        return interp.jit().invoke(fn, env, level + 1);
+    }
+
+    public static Exp call2(Exp f, Exp a, Exp b, Lisp interp, int level) throws Exception {
+        if (f.type() == Exp.Type.PRIMATIVE) {
+            Prim.Strict p = ((Prim) f).strict(2);
+            return p.call2(interp, p.check(0, a), p.check(1, b));
+        }
+        Function fn = (Function) f;
+        if (fn.arity() != 2)
+            return callN(f, new Exp[]{a, b}, interp, level);
+        interp.checkCall(level);
+        Frame env = fn.frame(new Exp[]{a, b});
+        return interp.jit().invoke(fn, env, level + 1);
+    }
+
+    public static Exp call3(Exp f, Exp a, Exp b, Exp c, Lisp interp, int level) throws Exception {
+        if (f.type() == Exp.Type.PRIMATIVE) {
+            Prim.Strict p = ((Prim) f).strict(3);
+            return p.call3(interp, p.check(0, a), p.check(1, b), p.check(2, c));
+        }
+        return callN(f, new Exp[]{a, b, c}, interp, level);
+    }
+
+    public static Exp callN(Exp f, Exp[] args, Lisp interp, int level) throws Exception {
+        if (f.type() == Exp.Type.PRIMATIVE)
+            return callStrict((Prim) f, args, interp);
+        Function fn = (Function) f;
+        interp.checkCall(level);
+        Frame env = fn.bind(interp, args, 0, args.length);
+        return interp.jit().invoke(fn, env, level + 1);
+    }
+
+    public static Exp tcall0(Exp f, Exp form, Frame env, Lisp interp, int level) throws Exception {
+        if (f.type() == Exp.Type.PRIMATIVE)
+            return call0(f, interp, level);
+        return tcallN(f, new Exp[0], form, env, interp, level);
+    }
+
+    public static Exp tcall1(Exp f, Exp a, Exp form, Frame env, Lisp interp, int level) throws Exception {
+        if (f.type() == Exp.Type.PRIMATIVE)
+            return call1(f, a, interp, level);
+        return tcallN(f, new Exp[]{a}, form, env, interp, level);
+    }
+
+    public static Exp tcall2(Exp f, Exp a, Exp b, Exp form, Frame env, Lisp interp, int level) throws Exception {
+        if (f.type() == Exp.Type.PRIMATIVE)
+            return call2(f, a, b, interp, level);
+        return tcallN(f, new Exp[]{a, b}, form, env, interp, level);
+    }
+
+    public static Exp tcall3(Exp f, Exp a, Exp b, Exp c, Exp form, Frame env, Lisp interp, int level)
+            throws Exception {
+        if (f.type() == Exp.Type.PRIMATIVE)
+            return call3(f, a, b, c, interp, level);
+        return tcallN(f, new Exp[]{a, b, c}, form, env, interp, level);
+    }
+
+    /** Returns a TailCall for Jit.resume instead of calling f */
+    public static Exp tcallN(Exp f, Exp[] args, Exp form, Frame env, Lisp interp, int level) throws Exception {
+        if (f.type() == Exp.Type.PRIMATIVE)
+            return callStrict((Prim) f, args, interp);
+        Function fn = (Function) f;
+        interp.checkCall(level);
+        return new TailCall(fn, fn.bind(interp, args, 0, args.length), form, env);
+    }
+
+    private static Exp callStrict(Prim f, Exp[] args, Lisp interp) throws Exception {
+        Prim.Strict p = f.strict(args.length);
+        for (int i = 0; i < args.length; i++)
+            p.check(i, args[i]);
+        return p.call(interp, args);
+    }
+
+    // ---------------------------------------------------------------------
+    // class file writing
+
+    private static class Loader extends ClassLoader {
+
+        public Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        public Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static class Bytes {
+
+        private byte[] data = new byte[256];
+        private int size = 0;
+
+        public int size() {
+            return size;
+        }
+
+        public void u1(int v) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = (byte) v;
+        }
+
+        public void u2(int v) {
+            u1(v >> 8);
+            u1(v);
+        }
+
+        public void u4(int v) {
+            u2(v >> 16);
+            u2(v);
+        }
+
+        public void patch2(int at, int v) {
+            data[at] = (byte) (v >> 8);
+            data[at + 1] = (byte) v;
+        }
+
+        public void append(Bytes b) {
+            for (int i = 0; i < b.size; i++)
+                u1(b.data[i]);
+        }
+
+        public byte[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    private static class ConstPool {
+
+        private Bytes bytes = new Bytes();
+        private HashMap<String, Integer> index = new HashMap<String, Integer>();
+        private int count = 1;
+
+        public int count() {
+            return count;
+        }
+
+        public Bytes bytes() {
+            return bytes;
+        }
+
+        public int utf8(String s) throws Exception {
+            Integer i = index.get("U" + s);
+            if (i != null)
+                return i;
+            byte[] b = s.getBytes("UTF-8");
+            bytes.u1(1);
+            bytes.u2(b.length);
+            for (byte x : b)
+                bytes.u1(x);
+            return add("U" + s);
+        }
+
+        public int cls(String name) throws Exception {
+            Integer i = index.get("C" + name);
+            if (i != null)
+                return i;
+            int n = utf8(name);
+            bytes.u1(7);
+            bytes.u2(n);
+            return add("C" + name);
+        }
+
+        public int integer(int v) {
+            Integer i = index.get("I" + v);
+            if (i != null)
+                return i;
+            bytes.u1(3);
+            bytes.u4(v);
+            return add("I" + v);
+        }
+
+        public int dbl(double v) {
+            String key = "D" + Double.doubleToRawLongBits(v);
+            Integer i = index.get(key);
+            if (i != null)
+                return i;
+            long bits = Double.doubleToRawLongBits(v);
+            bytes.u1(6);
+            bytes.u4((int) (bits >>> 32));
+            bytes.u4((int) bits);
+            // a double takes two entries
+            int at = add(key);
+            count++;
+            return at;
+        }
+
+        public int method(String owner, String name, String desc) throws Exception {
+            return member(10, owner, name, desc);
+        }
+
+        public int field(String owner, String name, String desc) throws Exception {
+            return member(9, owner, name, desc);
+        }
+
+        private int member(int tag, String owner, String name, String desc) throws Exception {
+            String key = tag + owner + "." + name + desc;
+            Integer i = index.get(key);
+            if (i != null)
+                return i;
+            int c = cls(owner);
+            int n = utf8(name);
+            int d = utf8(desc);
+            Integer nt = index.get("N" + name + desc);
+            if (nt == null) {
+                bytes.u1(12);
+                bytes.u2(n);
+                bytes.u2(d);
+                nt = add("N" + name + desc);
+            }
+            bytes.u1(tag);
+            bytes.u2(c);
+            bytes.u2(nt);
+            return add(key);
+        }
+
+        private int add(String key) {
+            index.put(key, count);
+            return count++;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/* Project: LispLib
+ * File:    JitCode.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+/** This class represents the base of the JVM classes generated by the Jit.
+ *
+ * Generated classes live in their own class loader, so everything they
+ * touch here has to be public.
+ *
+ * @author Layne
+ */
+public abstract class JitCode {
+
+    public final Exp[] consts;
+    public final Symbol[][] frames;
+    // the code translated, for the backtrace of an error
+    Code code;
+
+    public JitCode(Exp[] consts, Symbol[][] frames) {
+        this.consts = consts;
+        this.frames = frames;
+    }
+
+    public abstract Exp run(Lisp interp, Frame env, int level) throws Exception;
+}
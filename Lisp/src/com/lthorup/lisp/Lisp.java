@@ -4,7 +4,13 @@
  */
 package com.lthorup.lisp;
 
+import java.io.*;
+import java.lang.ref.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /** This class represents a LispInterpreter
  *
@@ -12,10 +18,47 @@ import java.util.*;
  */
 public class Lisp {
 
+    public enum Engine {
+
+        INTERPRETER, SHALLOW, ANALYZER, BYTECODE, CEK
+    }
     private SymbolTable symTable;
     private Parser parser;
+    private Analyzer analyzer;
+    private Compiler compiler;
+    private Optimizer optimizer;
+    private boolean optimizing;
+    private VM vm;
+    private Jit jit;
+    private Machine machine;
+    // the templates of the closures made by each defun, demacro and lambda
+    // form, shared with parallel tasks
+    private Map<List, WeakReference<Function>> templates;
+    private Bindings bindings = new Bindings();
+    private Engine engine = Engine.INTERPRETER;
     private volatile boolean stopping;
     private volatile boolean breaking;
+    private Budget budget;
+    private LispError lastError;
+    // steps left before the next poll, counted down without synchronization
+    private int fuel;
+    private int slice;
+    private long steps;
+    private long conses;
+    private long deadline;
+    private int maxLevel = Integer.MAX_VALUE;
+    // cons cells allocated since the last poll
+    private long consed;
+    private static final int SLICE = 1024;
+    // how many of the innermost and outermost frames of a backtrace are
+    // printed, and the deepest indentation of a line
+    private static final int ERROR_FRAMES = 50;
+    private static final int MAX_INDENT = 80;
+    // the interpreter parallel tasks were forked from, which keeps the
+    // budget of all of them
+    private Lisp root = this;
+    private boolean task;
+    private Executor executor = ForkJoinPool.commonPool();
     private PrintHandler printer = new PrintHandler() {
 
         @Override
@@ -24,19 +67,69 @@ public class Lisp {
         }
     };
 
+    // the primitives and constants every interpreter starts with, built once
+    // and never changed
+    private static final SymbolTable prelude = prelude();
+
+    private static SymbolTable prelude() {
+        SymbolTable s = new SymbolTable(null);
+        addPrims(s);
+        Symbol.addPrims(s);
+        List.addPrims(s);
+        Array.addPrims(s);
+        Number.addPrims(s);
+        Types.addPrims(s);
+        Str.addPrims(s);
+        Predicate.addPrims(s);
+        Flow.addPrims(s);
+        Function.addPrims(s);
+        Parallel.addPrims(s);
+        HashTable.addPrims(s);
+        return s;
+    }
+
     public Lisp() {
-        symTable = new SymbolTable();
+        symTable = new SymbolTable(prelude);
         parser = new Parser(symTable);
+        analyzer = new Analyzer(symTable);
+        compiler = new Compiler(symTable);
+        optimizer = new Optimizer(symTable);
+        vm = new VM(this, compiler);
+        jit = new Jit(this, vm, compiler);
+        machine = new Machine(this, symTable);
+        templates = Collections.synchronizedMap(new WeakHashMap<List, WeakReference<Function>>());
+    }
 
-        addPrims();
-        Symbol.addPrims(symTable);
-        List.addPrims(symTable);
-        Array.addPrims(symTable);
-        Number.addPrims(symTable);
-        Str.addPrims(symTable);
-        Predicate.addPrims(symTable);
-        Flow.addPrims(symTable);
-        Function.addPrims(symTable);
+    /** Creates an interpreter for a parallel task of parent. It shares the
+     * globals, the code and the budget of parent, but has its own VM and
+     * Bindings so it can run in a thread of its own.
+     */
+    private Lisp(Lisp parent) {
+        root = parent.root;
+        task = true;
+        symTable = parent.symTable;
+        parser = parent.parser;
+        analyzer = parent.analyzer;
+        compiler = parent.compiler;
+        optimizer = parent.optimizer;
+        optimizing = parent.optimizing;
+        vm = new VM(this, compiler);
+        jit = new Jit(this, vm, compiler, parent.jit);
+        machine = new Machine(this, parent.machine);
+        templates = parent.templates;
+        engine = parent.engine;
+        printer = parent.printer;
+        executor = parent.executor;
+        budget = root.budget;
+        deadline = root.deadline;
+        maxLevel = root.maxLevel;
+        slice = parent.slice;
+        fuel = slice;
+    }
+
+    /** Returns an interpreter to run a parallel task in */
+    Lisp fork() {
+        return new Lisp(this);
     }
 
     public SymbolTable symTable() {
@@ -47,144 +140,586 @@ public class Lisp {
         printer = p;
     }
 
+    public Engine engine() {
+        return engine;
+    }
+
+    /** Selects how expressions are evaluated. The INTERPRETER walks the
+     * parsed lists directly, SHALLOW does the same but keeps local values in
+     * the symbols themselves (see Bindings), the ANALYZER evaluates top level forms and
+     * function bodies from a Node tree built once per form and BYTECODE
+     * compiles function bodies and runs them on the VM, handing hot
+     * functions over to the Jit. CEK evaluates like the INTERPRETER but
+     * keeps its control stack on the heap (see Machine), so deep recursion
+     * does not overflow the Java stack.
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public Jit jit() {
+        return jit;
+    }
+
+    Map<List, WeakReference<Function>> templates() {
+        return templates;
+    }
+
+    /** Turns the Optimizer on or off for the functions defun defines from
+     * now on, it is off by default
+     */
+    public void setOptimizing(boolean optimizing) {
+        this.optimizing = optimizing;
+    }
+
+    public boolean optimizing() {
+        return optimizing;
+    }
+
+    Optimizer optimizer() {
+        return optimizer;
+    }
+
+    /** Sets where future, pcall and pmap run their tasks, by default the
+     * common ForkJoinPool. Any Executor will do, for example one starting a
+     * virtual thread per task.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor executor() {
+        return executor;
+    }
+
+    /** Returns true while this interpreter runs a parallel task */
+    boolean task() {
+        return task;
+    }
+
+    void setTask(boolean task) {
+        this.task = task;
+    }
+
+    /** Fails in a parallel task, which must leave global values alone */
+    void checkGlobal() throws Exception {
+        if (task)
+            throw new Exception("global assignment in parallel task");
+    }
+
+    Bindings bindings() {
+        return bindings;
+    }
+
+    /** Sets the limits of each following call of Interpret, null for none */
+    public void setBudget(Budget budget) {
+        this.budget = budget;
+    }
+
+    public Budget budget() {
+        return budget;
+    }
+
+    /** Returns the error that ended the last call of Interpret, null if it
+     * finished normally
+     */
+    public LispError lastError() {
+        return lastError;
+    }
+
+    /** Puts back the settings of a new interpreter running engine, for a
+     * LispPool taking it back from whoever checked it out
+     */
+    void reset(Engine engine, PrintHandler printer) {
+        this.engine = engine;
+        this.printer = printer;
+        optimizing = false;
+        executor = ForkJoinPool.commonPool();
+        jit.setThreshold(Jit.THRESHOLD);
+        budget = null;
+        lastError = null;
+    }
+
     public void Interpret(String input) {
+        lastError = null;
         try {
             ArrayList<Exp> expList = parser.parse(input);
-            stopping = false;
-            breaking = false;
-            for (Exp e : expList) {
-                Exp value = eval(e, List.Nil, 0);
-                value.print(printer, 0);
-                printer.print("\r\n");
+            begin();
+            for (Exp e : expList)
+                interpret(e);
+        }
+        catch (Exception err) {
+            lastError = LispError.from(err);
+            printError(lastError);
+        }
+    }
+
+    /** Like Interpret(String) but evaluates each expression as soon as it
+     * has been read, so the input never has to be in memory as a whole.
+     * An error, in reading too, stops it there, after the expressions
+     * before have been evaluated.
+     */
+    public void Interpret(Reader input) {
+        parser.open(input);
+        interpretInput();
+    }
+
+    /** Interprets the UTF-8 text from the position to the limit of input
+     * the same way
+     */
+    public void Interpret(ByteBuffer input) {
+        parser.open(input);
+        interpretInput();
+    }
+
+    private void interpretInput() {
+        lastError = null;
+        try {
+            begin();
+            Exp e = parser.read();
+            while (e != null) {
+                interpret(e);
+                e = parser.read();
             }
         }
         catch (Exception err) {
-            if (err.getMessage().length() != 0)
-                printer.print(String.format("ERROR: %s\r\n", err.getMessage()));
+            lastError = LispError.from(err);
+            printError(lastError);
+        }
+    }
+
+    private void begin() {
+        stopping = false;
+        breaking = false;
+        startBudget();
+    }
+
+    private void interpret(Exp e) throws Exception {
+        Exp value = evalTop(e, 0);
+        value.print(printer, 0);
+        printer.print("\r\n");
+    }
+
+    private Exp evalTop(Exp e, int level) throws Exception {
+        if (engine == Engine.ANALYZER)
+            return analyzer.analyze(e).eval(this, Frame.TOP, level);
+        return eval(e, Frame.TOP, level);
+    }
+
+    /** Evaluates the expressions in a file one after the other, returns T.
+     * The file is mapped into memory and parsed straight from the mapping,
+     * each expression being evaluated as soon as it has been read, so even
+     * a large data file is never copied or decoded as a whole.
+     */
+    public Exp load(String fileName) throws Exception {
+        return load(fileName, 0);
+    }
+
+    /** Loads a file for a load at level, its expressions are evaluated one
+     * level deeper like the body of a function, so a load that loads itself
+     * again runs into the limit on the depth
+     */
+    private Exp load(String fileName, int level) throws Exception {
+        // a Parser of its own, a load may run in the middle of a stream
+        Parser p = new Parser(symTable);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        }
+        catch (IOException err) {
+            throw new Exception(String.format("cannot open %s", fileName));
         }
+        try {
+            if (channel.size() <= Integer.MAX_VALUE)
+                p.open(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            else
+                // too large for one mapping
+                p.open(Channels.newInputStream(channel));
+            Exp e = p.read();
+            while (e != null) {
+                evalTop(e, level);
+                e = p.read();
+            }
+        }
+        finally {
+            channel.close();
+        }
+        return symTable.T;
+    }
+
+    /** Prints the message and backtrace of err, of a deep one only the
+     * innermost and outermost ERROR_FRAMES frames
+     */
+    private void printError(LispError err) {
+        if (err.getMessage().length() != 0)
+            printer.print(String.format("ERROR: %s\r\n", err.getMessage()));
+        int n = err.size();
+        for (int i = 0; i < n; i++) {
+            if (i == ERROR_FRAMES && n > 2 * ERROR_FRAMES) {
+                printer.print(String.format("... %d frames elided\r\n", n - 2 * ERROR_FRAMES));
+                i = n - ERROR_FRAMES;
+            }
+            err.exp(i).print(printer, 0);
+            printer.print("\r\n");
+            printEnv(err.env(i), err.level(i));
+        }
+    }
+
+    /** Indents a line by level, at most MAX_INDENT spaces */
+    private void indent(int level) {
+        for (int i = 0; i < Math.min(level, MAX_INDENT); i++)
+            printer.print(" ");
     }
 
     public void stop() {
         stopping = true;
+        fuel = 0;
     }
 
     public void go() {
         breaking = false;
     }
 
-    public Exp eval(Exp e, List env, int level) throws Exception {
+    /** Counts a step, only every SLICE steps does it look at the stop flag
+     * and the budget
+     */
+    void checkStop() throws Exception {
+        if (--fuel <= 0)
+            poll();
+    }
+
+    /** Counts a step of a call or evaluation at the given level */
+    void checkCall(int level) throws Exception {
+        if (level > maxLevel)
+            throw new Budget.Exceeded("depth");
+        if (--fuel <= 0)
+            poll();
+    }
+
+    /** Counts cons cells allocated by a primitive or a rest argument */
+    void countConses(int n) {
+        consed += n;
+    }
+
+    private void startBudget() {
+        steps = 0;
+        conses = 0;
+        consed = 0;
+        slice = SLICE;
+        maxLevel = Integer.MAX_VALUE;
+        if (budget != null) {
+            if (budget.steps() > 0)
+                slice = (int) Math.min(SLICE, budget.steps());
+            if (budget.millis() > 0)
+                deadline = System.nanoTime() + budget.millis() * 1000000L;
+            if (budget.depth() > 0)
+                maxLevel = budget.depth();
+        }
+        fuel = slice;
+    }
+
+    private void poll() throws Exception {
+        if (root.stopping)
+            throw new Exception("terminated");
+        long used = slice - Math.max(fuel, 0);
+        slice = SLICE;
+        if (budget != null) {
+            // parallel tasks add up their use in the root
+            long steps, conses;
+            synchronized (root) {
+                steps = root.steps += used;
+                conses = root.conses += consed;
+            }
+            consed = 0;
+            if (budget.steps() > 0) {
+                if (steps >= budget.steps())
+                    throw new Budget.Exceeded("step");
+                slice = (int) Math.min(SLICE, budget.steps() - steps);
+            }
+            if (budget.millis() > 0 && System.nanoTime() - deadline > 0)
+                throw new Budget.Exceeded("time");
+            if (budget.conses() > 0 && conses > budget.conses())
+                throw new Budget.Exceeded("cons");
+        }
+        fuel = slice;
+    }
+
+    public Exp eval(Exp e, Frame env, int level) throws Exception {
+        if (engine == Engine.CEK)
+            return machine.eval(e, env, level);
+        // a tail call keeps the level of the first call, like the other
+        // engines, so a loop of tail calls does not get deeper
+        int top = level;
+        int mark = -1;
+        // SHALLOW mark of the call whose body runs up to its last expression
+        int callee = -1;
         try {
-            if (stopping)
-                throw new Exception("terminated");
-
-            switch (e.type()) {
-                case NUMBER:
-                    return e;
-                case STRING:
-                    return e;
-                case ARRAY:
-                    return e;
-                case SYMBOL:
-                    return lookup((Symbol) e, env);
-                default: // list
-                {
-                    if (e == List.Nil)
+            // tail positions loop here instead of recursing
+            while (true) {
+                checkCall(level);
+
+                switch (e.type()) {
+                    case NUMBER:
                         return e;
-                    List exp = (List) e;
-                    Exp op = eval(exp.head(), env, level + 1);
-                    if (op.type() == Exp.Type.FUNCTION) {
-                        Function f = (Function) op;
-                        List newEnv;
-                        if (f.macro())
-                            newEnv = evalArgs(f.vars(), exp.tail(), null, level + 1);
-                        else
-                            newEnv = evalArgs(f.vars(), exp.tail(), env, level + 1);
-                        boolean tracing = exp.head().type() == Exp.Type.SYMBOL && ((Symbol) exp.head()).trace();
-                        if (tracing) {
-                            for (int i = 0; i < level; i++) {
-                                printer.print(" ");
+                    case STRING:
+                        return e;
+                    case ARRAY:
+                        return e;
+                    case FUTURE:
+                        return e;
+                    case HASHTABLE:
+                        return e;
+                    case SYMBOL:
+                        return lookup((Symbol) e, env);
+                    default: // list
+                    {
+                        if (e == List.Nil)
+                            return e;
+                        List exp = (List) e;
+                        Exp op = eval(exp.head(), env, level + 1);
+                        if (op.type() == Exp.Type.FUNCTION) {
+                            Function f = (Function) op;
+                            if ((engine != Engine.INTERPRETER && engine != Engine.SHALLOW)
+                                    || f.macro() || traced(exp.head()))
+                                return apply(op, exp, env, level);
+                            Frame newEnv = evalArgs(f, exp.tail(), env, level + 1);
+                            Frame args = newEnv;
+                            // SHALLOW binds dynamically, which the Optimizer does not allow for
+                            List body = engine == Engine.SHALLOW ? f.source() : f.body();
+                            if (engine == Engine.SHALLOW) {
+                                // a tail call ends the call this loop entered before, which
+                                // stays bound for the backtrace of an error up to the last
+                                // expression of the body
+                                if (mark >= 0 && (body == List.Nil || body.tail() == List.Nil)) {
+                                    bindings.unwind(mark);
+                                    mark = -1;
+                                }
+                                callee = bindings.call(newEnv);
+                                if (mark < 0)
+                                    mark = callee;
+                                newEnv = Frame.TOP;
                             }
-                            printer.print(String.format("enter %s %d:\r\n", exp.head().toString(), level));
-                            printEnv(newEnv, level);
-                        }
-                        Exp result = evalBody(f.body(), newEnv, level + 1);
-                        if (tracing) {
-                            for (int i = 0; i < level; i++)
-                                printer.print(" ");
-                            printer.print(String.format("exit %s %d: ", exp.head().toString(), level));
-                            result.print(printer, 0);
-                            printer.print("\r\n");
-                        }
-                        return result;
-                    }
-                    else
-                        if (op.type() == Exp.Type.PRIMATIVE) {
-                            Prim p = (Prim) op;
-                            List args = exp.tail();
-                            return p.handler.eval(this, args, env, level);
+                            if (body == List.Nil)
+                                return List.Nil;
+                            while (body.tail() != List.Nil) {
+                                eval(body.head(), newEnv, top + 1);
+                                body = body.tail();
+                            }
+                            if (callee > mark)
+                                mark = bindings.replace(mark, args);
+                            callee = -1;
+                            e = body.head();
+                            env = newEnv;
+                            level = top + 1;
                         }
                         else
-                            throw new Exception("bad function");
+                            if (op.type() == Exp.Type.PRIMATIVE) {
+                                int before = bindings.mark();
+                                Exp value = ((Prim) op).handler.eval(this, exp.tail(), env, level);
+                                if (!(value instanceof TailCall))
+                                    return value;
+                                // SHALLOW bindings left for the TailCall are undone with this loop
+                                if (mark < 0)
+                                    mark = before;
+                                e = ((TailCall) value).exp();
+                                env = ((TailCall) value).env();
+                            }
+                            else
+                                throw new Exception("bad function");
+                    }
                 }
             }
         }
         catch (Exception err) {
-            if (err.getMessage().length() != 0)
-                printer.print(String.format("ERROR: %s\r\n", err.getMessage()));
-            e.print(printer, 0);
-            printer.print("\r\n");
-            printEnv(env, level);
-            throw new Exception("");
+            // SHALLOW values are restored by the unwinding, so take them now,
+            // those of the caller for an error in the body of a call
+            LispError error = LispError.from(err);
+            if (callee >= 0)
+                bindings.unwind(callee);
+            error.add(e, engine == Engine.SHALLOW ? bindings.current() : env, level);
+            throw error;
+        }
+        finally {
+            if (mark >= 0)
+                bindings.unwind(mark);
         }
     }
 
-    private void printEnv(List env, int level) {
-        while (env != List.Nil) {
-            for (int i = 0; i < level; i++)
-                printer.print(" ");
-            List binding = (List) env.head();
-            Symbol name = (Symbol) binding.head();
-            Exp value = binding.tailExp();
-            printer.print(String.format(" %s: ", name.name()));
-            value.print(printer, 0);
-            printer.print("\r\n");
-            env = env.tail();
+    /** Used by special forms for an expression in tail position. Returns a
+     * TailCall for Lisp.eval to continue with unless there is nothing left
+     * to call.
+     */
+    public Exp evalTail(Exp e, Frame env, int level) throws Exception {
+        if (e.type() != Exp.Type.LIST || e == List.Nil)
+            return eval(e, env, level);
+        return new TailCall(e, env);
+    }
+
+    /** Like evalBody but with the last expression in tail position */
+    public Exp evalBodyTail(List body, Frame env, int level) throws Exception {
+        if (body == List.Nil)
+            return List.Nil;
+        while (body.tail() != List.Nil) {
+            eval(body.head(), env, level);
+            body = body.tail();
+        }
+        return evalTail(body.head(), env, level);
+    }
+
+    /** Applies an already evaluated operator to the unevaluated arguments of exp */
+    Exp apply(Exp op, List exp, Frame env, int level) throws Exception {
+        if (op.type() == Exp.Type.FUNCTION) {
+            Function f = (Function) op;
+            Frame newEnv;
+            if (f.macro())
+                newEnv = evalArgs(f, exp.tail(), null, level + 1);
+            else
+                newEnv = evalArgs(f, exp.tail(), env, level + 1);
+            return callFunction(f, exp.head(), newEnv, level);
+        }
+        else
+            if (op.type() == Exp.Type.PRIMATIVE) {
+                Prim p = (Prim) op;
+                List args = exp.tail();
+                int before = bindings.mark();
+                Exp value = p.handler.eval(this, args, env, level);
+                if (value instanceof TailCall) {
+                    try {
+                        return eval(((TailCall) value).exp(), ((TailCall) value).env(), level);
+                    }
+                    catch (Exception err) {
+                        // the tail expression takes the place of exp, as in eval
+                        throw LispError.from(err).replacing(true);
+                    }
+                    finally {
+                        bindings.unwind(before);
+                    }
+                }
+                return value;
+            }
+            else
+                throw new Exception("bad function");
+    }
+
+    /** Calls a function or a Strict primitive with evaluated arguments */
+    Exp call(Exp op, Exp[] args, int level) throws Exception {
+        checkCall(level);
+        if (op.type() == Exp.Type.FUNCTION && !((Function) op).macro()) {
+            Function f = (Function) op;
+            try {
+                return callFunction(f, f, f.bind(this, args, 0, args.length), level);
+            }
+            catch (Exception err) {
+                // there is no form of the call for the last expression to replace
+                throw LispError.from(err).replacing(false);
+            }
+        }
+        if (op.type() == Exp.Type.PRIMATIVE) {
+            Prim.Strict s = ((Prim) op).strict(args.length);
+            if (s != null) {
+                for (int i = 0; i < args.length; i++)
+                    s.check(i, args[i]);
+                return s.call(this, args);
+            }
         }
+        throw new Exception("bad function");
     }
 
-    private List evalArgs(List vars, List args, List env, int level) throws Exception {
-        if (vars == List.Nil) {
-            if (args == List.Nil)
-                return List.Nil;
-            throw new Exception("wrong number of arguments");
+    boolean traced(Exp name) {
+        return name.type() == Exp.Type.SYMBOL && ((Symbol) name).trace();
+    }
+
+    Exp callFunction(Function f, Exp name, Frame newEnv, int level) throws Exception {
+        boolean tracing = traced(name);
+        if (tracing) {
+            indent(level);
+            printer.print(String.format("enter %s %d:\r\n", name.toString(), level));
+            printEnv(newEnv, level);
         }
+        Exp result;
+        if (engine == Engine.ANALYZER) {
+            result = f.code(analyzer).eval(this, newEnv, level + 1);
+            while (result instanceof TailCall) {
+                TailCall t = (TailCall) result;
+                try {
+                    result = t.function().code(analyzer).eval(this, t.env(), level + 1);
+                }
+                catch (Exception err) {
+                    throw LispError.from(err).addTail(t.form(), t.caller(), level + 1);
+                }
+            }
+        }
+        else if (engine == Engine.BYTECODE)
+            result = jit.invoke(f, newEnv, level + 1);
+        else if (engine == Engine.SHALLOW) {
+            int mark = bindings.call(newEnv);
+            try {
+                result = evalFunctionBody(f.source(), Frame.TOP, level + 1);
+            }
+            finally {
+                bindings.unwind(mark);
+            }
+        }
+        else
+            result = evalFunctionBody(f.body(), newEnv, level + 1);
+        if (tracing) {
+            indent(level);
+            printer.print(String.format("exit %s %d: ", name.toString(), level));
+            result.print(printer, 0);
+            printer.print("\r\n");
+        }
+        return result;
+    }
 
-        Symbol name = (Symbol) vars.head();
-        if (name == symTable.REST) {
-            Exp value = evalRest(args, env, level);
-            return new List(new List(symTable.REST, value), List.Nil);
+    private void printEnv(Frame env, int level) {
+        while (env != null) {
+            for (int i = 0; i < env.size(); i++) {
+                if (env.get(i) == null)
+                    continue;
+                indent(level);
+                printer.print(String.format(" %s: ", env.names()[i].name()));
+                env.get(i).print(printer, 0);
+                printer.print("\r\n");
+            }
+            env = env.parent();
         }
-        else {
+    }
+
+    /** Binds the arguments of a call of f in a new Frame, they are only
+     * evaluated if env is not null
+     */
+    Frame evalArgs(Function f, List args, Frame env, int level) throws Exception {
+        int n = args.length();
+        Exp[] values = new Exp[n];
+        for (int i = 0; i < n; i++) {
             Exp value = args.head();
-            if (env != null) {
+            if (env != null)
                 value = eval(value, env, level);
-            }
-            List rest = evalArgs(vars.tail(), args.tail(), env, level);
-            return new List(new List(name, value), rest);
+            values[i] = value;
+            args = args.tail();
         }
+        return f.bind(this, values, 0, n);
     }
 
-    private List evalRest(List args, List env, int level) throws Exception {
-        if (args == List.Nil)
+    /** Like evalBody, the last expression takes the place of the form of the
+     * call in the backtrace of an error, as with a tail call in eval
+     */
+    private Exp evalFunctionBody(List body, Frame env, int level) throws Exception {
+        if (body == List.Nil)
             return List.Nil;
-        Exp value = args.head();
-        if (env != null)
-            value = eval(value, env, level);
-        List rest = evalRest(args.tail(), env, level);
-        return new List(value, rest);
+        while (body.tail() != List.Nil) {
+            eval(body.head(), env, level);
+            body = body.tail();
+        }
+        try {
+            return eval(body.head(), env, level);
+        }
+        catch (Exception err) {
+            throw LispError.from(err).replacing(true);
+        }
     }
 
-    public Exp evalBody(List body, List env, int level) throws Exception {
+    public Exp evalBody(List body, Frame env, int level) throws Exception {
         Exp value = List.Nil;
         while (body != List.Nil) {
             value = eval(body.head(), env, level);
@@ -193,108 +728,140 @@ public class Lisp {
         return value;
     }
 
-    private Exp lookup(Symbol sym, List env) throws Exception {
-        while (env != List.Nil) {
-            List binding = (List) env.head();
-            if (sym == binding.head()) {
-                return binding.tailExp();
-            }
-            env = env.tail();
-        }
+    Exp lookup(Symbol sym, Frame env) throws Exception {
+        Exp value = local(sym, env);
+        if (value != null)
+            return value;
         if (sym.value() == null)
             throw new Exception("unbound symbol");
         return sym.value();
     }
 
-    private void addPrims() {
-        symTable.addPrim("eval", new Prim.Handler() {
+    /** Returns the value of the innermost local binding of sym, null if
+     * it has none
+     */
+    Exp local(Symbol sym, Frame env) {
+        return engine == Engine.SHALLOW ? bindings.get(sym) : env.lookup(sym);
+    }
+
+    /** Returns the cell a closure shares the innermost local binding of sym
+     * through, null if it has none
+     */
+    Exp capture(Symbol sym, Frame env) {
+        return engine == Engine.SHALLOW ? bindings.cell(sym) : env.cell(sym);
+    }
+
+    /** Sets the innermost binding of sym, its global value if it has none */
+    void setq(Symbol sym, Exp value, Frame env) throws Exception {
+        if (engine == Engine.SHALLOW) {
+            if (sym.binding() != null) {
+                bindings.set(sym, value);
+                return;
+            }
+        }
+        else if (env.assign(sym, value))
+            return;
+        checkGlobal();
+        sym.setValue(value);
+    }
+
+    private static void addPrims(SymbolTable s) {
+        s.addPrim("eval", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primEval(interp, args, env, level);
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return interp.primEval(interp, args, env, level);
             }
         });
-        symTable.addPrim("quote", new Prim.Handler() {
+        s.addPrim("quote", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primQuote(interp, args, env, level);
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return interp.primQuote(interp, args, env, level);
             }
         });
-        symTable.addPrim("trace", new Prim.Handler() {
+        s.addPrim("trace", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primTrace(interp, args, env, level);
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return interp.primTrace(interp, args, env, level);
             }
         });
-        symTable.addPrim("untrace", new Prim.Handler() {
+        s.addPrim("untrace", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primUntrace(interp, args, env, level);
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return interp.primUntrace(interp, args, env, level);
             }
         });
-        symTable.addPrim("break", new Prim.Handler() {
+        s.addPrim("break", new Prim.Strict(1, 1, Exp.Type.STRING) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primBreak(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return interp.primBreak((Str) a);
             }
         });
-        symTable.addPrim("write", new Prim.Handler() {
+        s.addPrim("load", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primWrite(interp, args, env, level);
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                Str name = (Str) new ArgList(interp, args).next(Exp.Type.STRING, env, true, level);
+                return interp.load(name.value(), level + 1);
             }
         });
-        symTable.addPrim("writeln", new Prim.Handler() {
+        s.addPrim("write", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primWriteLn(interp, args, env, level);
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return interp.primWrite(interp, args, env, level);
+            }
+        });
+        s.addPrim("writeln", new Prim.Handler() {
+
+            @Override
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return interp.primWriteLn(interp, args, env, level);
             }
         });
     }
 
-    private Exp primEval(Lisp interp, List args, List env, int level) throws Exception {
+    private Exp primEval(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Exp exp = argList.next(Exp.Type.ANY, env, true, level);
         return eval(exp, env, level);
     }
 
-    private Exp primQuote(Lisp interp, List args, List env, int level) throws Exception {
+    private Exp primQuote(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Exp value = argList.next(Exp.Type.ANY, null, true, level);
         return value;
     }
 
-    private Exp primTrace(Lisp interp, List args, List env, int level) throws Exception {
+    private Exp primTrace(Lisp interp, List args, Frame env, int level) throws Exception {
         if (args == List.Nil)
             return symTable.lookupTraced();
         ArgList argList = new ArgList(interp, args);
         while (!argList.empty()) {
             Symbol s = (Symbol) argList.next(Exp.Type.SYMBOL, null, false, level);
+            checkGlobal();
             s.setTrace(true);
         }
         return symTable.T;
     }
 
-    private Exp primUntrace(Lisp interp, List args, List env, int level) throws Exception {
+    private Exp primUntrace(Lisp interp, List args, Frame env, int level) throws Exception {
         if (args == List.Nil)
             args = symTable.lookupTraced();
         ArgList argList = new ArgList(interp, args);
         while (!argList.empty()) {
             Symbol s = (Symbol) argList.next(Exp.Type.SYMBOL, null, false, level);
+            checkGlobal();
             s.setTrace(false);
         }
         return symTable.T;
     }
 
-    private Exp primBreak(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Str s = (Str) argList.next(Exp.Type.STRING, env, true, level);
+    private Exp primBreak(Str s) throws Exception {
         printer.print("break: " + s.toString() + "\r\n");
         breaking = true;
         while (breaking && !stopping)
@@ -302,7 +869,7 @@ public class Lisp {
         return symTable.T;
     }
 
-    private Exp primWrite(Lisp interp, List args, List env, int level) throws Exception {
+    private Exp primWrite(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         while (!argList.empty()) {
             Exp s = argList.next(Exp.Type.ANY, env, false, level);
@@ -314,7 +881,7 @@ public class Lisp {
         return symTable.T;
     }
 
-    private Exp primWriteLn(Lisp interp, List args, List env, int level) throws Exception {
+    private Exp primWriteLn(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         while (!argList.empty()) {
             Exp s = argList.next(Exp.Type.ANY, env, false, level);
@@ -0,0 +1,100 @@
+/* Project: LispLib
+ * File:    LispError.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.*;
+
+/** This class represents a LispError, an error on its way out of the
+ * evaluator.
+ *
+ * It does not capture a Java stack trace. Each Lisp.eval it passes through
+ * adds the expression it was evaluating and its environment instead, so
+ * unwinding only costs a few stores per level, and Lisp.Interpret prints
+ * the whole backtrace once, innermost expression first.
+ *
+ * Lisp.eval goes on with an expression in tail position, the last one of
+ * a body or a branch of an if, in place of the one it ends, so only the
+ * innermost of them shows up. The other engines add such an expression
+ * with addTail, which makes it take the place of the frame added next.
+ *
+ * @author Layne
+ */
+public class LispError extends Exception {
+
+    private static final long serialVersionUID = 0;
+    private Exp[] exps = new Exp[8];
+    private Frame[] envs = new Frame[8];
+    private int[] levels = new int[8];
+    private int size = 0;
+    // the frame added last takes the place of the next one
+    private boolean replacing;
+
+    public LispError(String message) {
+        super(message, null, false, false);
+    }
+
+    /** Returns err if it is a LispError, else a LispError with its message */
+    public static LispError from(Exception err) {
+        if (err instanceof LispError)
+            return (LispError) err;
+        String message = err.getMessage();
+        return new LispError(message == null ? err.toString() : message);
+    }
+
+    /** Records that the error passed through the evaluation of e, returns
+     * the error to throw on
+     */
+    public LispError add(Exp e, Frame env, int level) {
+        if (replacing)
+            replacing = false;
+        else
+            push(e, env, level);
+        return this;
+    }
+
+    /** Like add for an expression in tail position, whose frame takes the
+     * place of the one of the expression it ends
+     */
+    public LispError addTail(Exp e, Frame env, int level) {
+        if (!replacing)
+            push(e, env, level);
+        replacing = true;
+        return this;
+    }
+
+    /** Sets whether the frame added last takes the place of the next one */
+    public LispError replacing(boolean replacing) {
+        this.replacing = replacing;
+        return this;
+    }
+
+    private void push(Exp e, Frame env, int level) {
+        if (size == exps.length) {
+            exps = Arrays.copyOf(exps, size * 2);
+            envs = Arrays.copyOf(envs, size * 2);
+            levels = Arrays.copyOf(levels, size * 2);
+        }
+        exps[size] = e;
+        envs[size] = env;
+        levels[size] = level;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Exp exp(int i) {
+        return exps[i];
+    }
+
+    public Frame env(int i) {
+        return envs[i];
+    }
+
+    public int level(int i) {
+        return levels[i];
+    }
+}
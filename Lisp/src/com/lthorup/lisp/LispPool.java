@@ -0,0 +1,158 @@
+/* Project: LispLib
+ * File:    LispPool.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** This class represents a LispPool of interpreters for evaluating one
+ * script per request.
+ *
+ * Interpreters are created on demand up to the size of the pool and run
+ * an optional init script once. A thread checks one out, uses it alone and
+ * checks it back in, which puts its globals back to how they were right
+ * after the init script: symbols defined since are dropped and the others
+ * get back their values, and its engine, printer, budget, optimizer,
+ * executor and Jit threshold are set back as well. State kept inside the
+ * objects those values refer to, like the variables captured by a closure,
+ * is not rolled back.
+ *
+ * @author Layne
+ */
+public class LispPool {
+
+    private final int size;
+    private final Lisp.Engine engine;
+    private final String init;
+    private final PrintHandler printer;
+    private final BlockingQueue<Lisp> idle = new LinkedBlockingQueue<Lisp>();
+    private final Map<Lisp, SymbolTable.Snapshot> snapshots = new ConcurrentHashMap<Lisp, SymbolTable.Snapshot>();
+    private final Set<Lisp> out = ConcurrentHashMap.<Lisp>newKeySet();
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong checkouts = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /** init may be null, checked in interpreters print to printer */
+    public LispPool(int size, Lisp.Engine engine, String init, PrintHandler printer) {
+        this.size = size;
+        this.engine = engine;
+        this.init = init;
+        this.printer = printer;
+    }
+
+    /** Returns an interpreter for the caller's use only, waiting up to
+     * millis for one if all of them are checked out
+     */
+    public Lisp checkout(long millis) throws Exception {
+        Lisp lisp = idle.poll();
+        if (lisp == null)
+            lisp = create();
+        if (lisp == null) {
+            // only the blocking wait counts, not creating an interpreter
+            long start = System.nanoTime();
+            lisp = idle.poll(millis, TimeUnit.MILLISECONDS);
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        if (lisp == null)
+            throw new Exception("no interpreter available");
+        out.add(lisp);
+        active.incrementAndGet();
+        checkouts.incrementAndGet();
+        return lisp;
+    }
+
+    /** Rolls the globals and settings of lisp back and returns it to the
+     * pool, it must be checked out and is no longer the caller's after this
+     */
+    public void checkin(Lisp lisp) {
+        SymbolTable.Snapshot snapshot = snapshots.get(lisp);
+        if (snapshot == null)
+            throw new IllegalArgumentException("interpreter is not from this pool");
+        if (!out.remove(lisp))
+            throw new IllegalArgumentException("interpreter is not checked out");
+        lisp.symTable().restore(snapshot);
+        lisp.reset(engine, printer);
+        active.decrementAndGet();
+        idle.offer(lisp);
+    }
+
+    /** Interprets input on a pooled interpreter, which must finish within
+     * millis including the wait for it, and returns what it printed
+     */
+    public String interpret(String input, long millis) throws Exception {
+        long start = System.nanoTime();
+        Lisp lisp = checkout(millis);
+        try {
+            long left = millis - (System.nanoTime() - start) / 1000000L;
+            if (left <= 0)
+                throw new Budget.Exceeded("time");
+            final StringBuilder out = new StringBuilder();
+            lisp.setPrinter(new PrintHandler() {
+
+                @Override
+                public void print(String s) {
+                    out.append(s);
+                }
+            });
+            lisp.setBudget(new Budget(0, left, 0, 0));
+            lisp.Interpret(input);
+            return out.toString();
+        }
+        finally {
+            checkin(lisp);
+        }
+    }
+
+    /** Creates an interpreter unless the pool is full, in which case it
+     * returns null
+     */
+    private Lisp create() {
+        while (true) {
+            int n = created.get();
+            if (n >= size)
+                return null;
+            if (created.compareAndSet(n, n + 1))
+                break;
+        }
+        Lisp lisp = new Lisp();
+        lisp.reset(engine, printer);
+        if (init != null)
+            lisp.Interpret(init);
+        snapshots.put(lisp, lisp.symTable().snapshot());
+        return lisp;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns the number of interpreters created so far */
+    public int created() {
+        return created.get();
+    }
+
+    /** Returns the number of interpreters checked out right now */
+    public int active() {
+        return active.get();
+    }
+
+    public int idle() {
+        return idle.size();
+    }
+
+    public long checkouts() {
+        return checkouts.get();
+    }
+
+    /** Returns the time all checkouts together spent waiting for an
+     * interpreter to be checked in
+     */
+    public long waitNanos() {
+        return waitNanos.get();
+    }
+}
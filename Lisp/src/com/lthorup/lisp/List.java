@@ -12,7 +12,8 @@ public class List extends Exp {
 
     private Exp head;
     private Exp tail;
-    public static List Nil = new List(null, null);
+    // the empty list, shared by every interpreter and never changed
+    public static final List Nil = new List(null, null);
 
     public List(Exp head, Exp tail) {
         super(Type.LIST);
@@ -32,7 +33,8 @@ public class List extends Exp {
         return tail;
     }
 
-    public void setTail(Exp tail) {
+    // only for building fresh cells, by append and the Parser
+    void setTail(Exp tail) {
         this.tail = tail;
     }
 
@@ -75,28 +77,31 @@ public class List extends Exp {
 
     @Override
     public void print(PrintHandler p, int level) {
-        if (this == List.Nil) {
-            if (level == 0)
-                p.print("NIL");
-            else
-                p.print(")");
-        }
-        else {
+        // the tail is printed in this loop so long lists do not recurse
+        List n = this;
+        while (true) {
+            if (n == List.Nil) {
+                if (level == 0)
+                    p.print("NIL");
+                else
+                    p.print(")");
+                return;
+            }
             if (level == 0)
                 p.print("(");
             else
                 p.print(" ");
 
-            if (this.tail.type != Type.LIST) {
-                this.head.print(p, 0);
+            if (n.tail.type != Type.LIST) {
+                n.head.print(p, 0);
                 p.print(" . ");
-                this.tail.print(p, 0);
+                n.tail.print(p, 0);
                 p.print(")");
+                return;
             }
-            else {
-                this.head.print(p, 0);
-                this.tail.print(p, level + 1);
-            }
+            n.head.print(p, 0);
+            n = (List) n.tail;
+            level++;
         }
     }
 
@@ -112,150 +117,140 @@ public class List extends Exp {
             if (! a.head.equal(b.head))
                 return false;
             if (a.tail.type != Exp.Type.LIST || b.tail.type != Exp.Type.LIST)
-                return a.tail.equals(b.tail);
+                return a.tail.equal(b.tail);
             a = a.tail();
             b = b.tail();
         }
         return a == List.Nil && b == List.Nil;
     }
 
+    @Override
+    protected int hash(int depth) {
+        int h = 1;
+        if (depth == 0)
+            return h;
+        List n = this;
+        while (n != List.Nil) {
+            h = 31 * h + n.head.hash(depth - 1);
+            if (n.tail.type != Type.LIST)
+                return 31 * h + n.tail.hash(depth - 1);
+            n = (List) n.tail;
+        }
+        return h;
+    }
+
     public static void addPrims(SymbolTable s) {
-        s.addPrim("listp", new Prim.Handler() {
+        s.addPrim("listp", new Prim.Strict(1, 1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primListp(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primListp(interp, a);
             }
         });
-        s.addPrim("cons", new Prim.Handler() {
+        s.addPrim("cons", new Prim.Strict(2, 2, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primCons(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                interp.countConses(1);
+                return new List(a, b);
             }
         });
-        s.addPrim("list", new Prim.Handler() {
+        s.addPrim("list", new Prim.Strict(0, -1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primList(interp, args, env, level);
+            public Exp callN(Lisp interp, Exp[] args) throws Exception {
+                return primList(interp, args);
             }
         });
-        s.addPrim("car", new Prim.Handler() {
+        s.addPrim("car", new Prim.Strict(1, 1, Exp.Type.LIST) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primCar(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primCar(interp, (List) a);
             }
         });
-        s.addPrim("cdr", new Prim.Handler() {
+        s.addPrim("cdr", new Prim.Strict(1, 1, Exp.Type.LIST) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primCdr(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primCdr(interp, (List) a);
             }
         });
-        s.addPrim("length", new Prim.Handler() {
+        s.addPrim("length", new Prim.Strict(1, 1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primLength(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primLength(interp, a);
             }
         });
-        s.addPrim("append", new Prim.Handler() {
+        // arguments after the second are ignored
+        s.addPrim("append", new Prim.Strict(2, -1, Exp.Type.LIST, Exp.Type.LIST, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primAppend(interp, args, env, level);
+            public Exp callN(Lisp interp, Exp[] args) throws Exception {
+                interp.countConses(((List) args[0]).length());
+                return List.append((List) args[0], (List) args[1]);
             }
         });
-        s.addPrim("nth", new Prim.Handler() {
+        s.addPrim("nth", new Prim.Strict(2, 2, Exp.Type.NUMBER, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primNth(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return primNth(interp, (Number) a, b);
             }
         });
-        s.addPrim("assoc", new Prim.Handler() {
+        s.addPrim("assoc", new Prim.Strict(2, 2, Exp.Type.ANY, Exp.Type.LIST) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primAssoc(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return primAssoc(interp, a, (List) b);
             }
         });
     }
 
-    private static Exp primListp(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp e = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primListp(Lisp interp, Exp e) throws Exception {
         if (e.type() == Exp.Type.LIST)
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primCons(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp head = argList.next(Exp.Type.ANY, env, false, level);
-        Exp tail = argList.next(Exp.Type.ANY, env, true, level);
-        return new List(head, tail);
+    private static Exp primList(Lisp interp, Exp[] args) throws Exception {
+        interp.countConses(args.length);
+        List list = List.Nil;
+        for (int i = args.length - 1; i >= 0; i--)
+            list = new List(args[i], list);
+        return list;
     }
 
-    private static Exp primList(Lisp interp, List args, List env, int level) throws Exception {
-        if (args == List.Nil)
-            return List.Nil;
-        Exp head = interp.eval(args.head(), env, level);
-        List tail = (List) primList(interp, args.tail(), env, level);
-        return new List(head, tail);
-    }
-
-    private static Exp primCar(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        List n = (List) argList.next(Exp.Type.LIST, env, true, level);
+    private static Exp primCar(Lisp interp, List n) throws Exception {
         if (n == List.Nil)
             throw new Exception("empty list");
         return n.head();
     }
 
-    private static Exp primCdr(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        List n = (List) argList.next(Exp.Type.LIST, env, true, level);
+    private static Exp primCdr(Lisp interp, List n) throws Exception {
         if (n == List.Nil)
             throw new Exception("empty list");
         return n.tail();
     }
 
-    private static Exp primLength(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp n = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primLength(Lisp interp, Exp n) throws Exception {
         if (n.type() == Exp.Type.LIST)
-            return new Number(((List) n).length());
+            return Number.of(((List) n).length());
         if (n.type() == Exp.Type.ARRAY)
-            return new Number(((Array) n).size());
+            return Number.of(((Array) n).size());
         throw new Exception("list or array expected");
     }
 
-    private static Exp primAppend(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        List a = (List) argList.next(Exp.Type.LIST, env, false, level);
-        List b = (List) argList.next(Exp.Type.LIST, env, false, level);
-        return List.append(a, b);
-    }
-
-    private static Exp primNth(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number i = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Exp n = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primNth(Lisp interp, Number i, Exp n) throws Exception {
         if (n.type() == Exp.Type.LIST)
-            return ((List) n).get((int) (i.value()));
+            return ((List) n).get(i.intValue());
         if (n.type() == Exp.Type.ARRAY)
-            return ((Array) n).get((int) (i.value()));
+            return ((Array) n).get(i.intValue());
         throw new Exception("list or array expected");
     }
 
-    private static Exp primAssoc(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp key = argList.next(Exp.Type.ANY, env, false, level);
-        List data = (List) argList.next(Exp.Type.LIST, env, true, level);
+    private static Exp primAssoc(Lisp interp, Exp key, List data) throws Exception {
         while (data != List.Nil) {
             if (data.head().type() != Exp.Type.LIST || data == List.Nil)
                 throw new Exception("bad assoc record");
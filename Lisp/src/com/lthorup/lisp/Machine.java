@@ -0,0 +1,558 @@
+/* Project: LispLib
+ * File:    Machine.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.*;
+
+/** This class represents the Machine of the CEK engine, an evaluator that
+ * keeps its control stack on the heap.
+ *
+ * Each Activation on the stack stands for one call of Lisp.eval in the
+ * INTERPRETER: the expression it evaluates, its environment and level,
+ * and how far it has got, for example which argument of a call it waits
+ * for. Evaluating a subexpression pushes an Activation instead of calling
+ * Java recursively and its value is handed to the Activation below when
+ * it is done. So the depth of Lisp recursion is only bounded by the heap,
+ * not by the Java stack, and an evaluation can run on a thread with a
+ * small stack.
+ *
+ * Calls of functions, strict primitives and the control primitives if,
+ * cond, let, setq, while, for, rep, and, eval and quote are evaluated by
+ * the Machine itself, recognized by their primitive so that rebinding
+ * their symbols works as usual. Any other primitive, a macro or a traced
+ * function is run by the interpreter, whose nested evaluations run on the
+ * Machine again, above the Activations of the run that called it.
+ *
+ * The results and errors, backtraces included, are those of the
+ * INTERPRETER, only a primitive that returns no value at all, like nth
+ * past the end of a list, is the error "no value".
+ *
+ * @author Layne
+ */
+public class Machine {
+
+    // what an Activation waits for
+    private static final int START = 0;         // nothing, the expression is yet to be evaluated
+    private static final int OPERATOR = 1;      // the operator of a call
+    private static final int ARGS = 2;          // argument i of a function call
+    private static final int BODY = 3;          // an expression of the body of a function but the last
+    private static final int STRICT = 4;        // argument i of a strict primitive
+    private static final int IF = 5;            // the condition of an if
+    private static final int COND = 6;          // the test of a clause of a cond
+    private static final int TAIL = 7;          // an expression of a body ending in tail position but the last
+    private static final int LET = 8;           // the value of local variable i of a let
+    private static final int SETQ = 9;          // the value of a setq
+    private static final int WHILE = 10;        // the test of a while
+    private static final int LOOP = 11;         // an expression of the body of a while, for or rep
+    private static final int FROM = 12;         // the start of a for
+    private static final int TO = 13;           // the end of a for
+    private static final int REP = 14;          // the count of a rep
+    private static final int AND = 15;          // operand i of an and
+    private static final int EVAL = 16;         // the expression an eval evaluates
+    private static final int RETURN = 17;       // its value, which it returns
+
+    // returned instead of a value when the Activation on top is to start,
+    // a new one that was pushed or one that starts over on an expression
+    private static final Exp PUSHED = new Str("pushed");
+
+    private Lisp interp;
+    private Prim pIf, pCond, pLet, pSetq, pWhile, pFor, pRep, pAnd, pEval, pQuote;
+
+    private Activation[] stack = new Activation[64];
+    private int sp = 0;
+
+    public Machine(Lisp interp, SymbolTable symTable) {
+        this.interp = interp;
+        pIf = (Prim) symTable.add("IF").value();
+        pCond = (Prim) symTable.add("COND").value();
+        pLet = (Prim) symTable.add("LET").value();
+        pSetq = (Prim) symTable.add("SETQ").value();
+        pWhile = (Prim) symTable.add("WHILE").value();
+        pFor = (Prim) symTable.add("FOR").value();
+        pRep = (Prim) symTable.add("REP").value();
+        pAnd = (Prim) symTable.add("AND").value();
+        pEval = (Prim) symTable.add("EVAL").value();
+        pQuote = (Prim) symTable.add("QUOTE").value();
+    }
+
+    /** Creates the Machine of a parallel task of the interpreter parent
+     * belongs to
+     */
+    public Machine(Lisp interp, Machine parent) {
+        this.interp = interp;
+        pIf = parent.pIf;
+        pCond = parent.pCond;
+        pLet = parent.pLet;
+        pSetq = parent.pSetq;
+        pWhile = parent.pWhile;
+        pFor = parent.pFor;
+        pRep = parent.pRep;
+        pAnd = parent.pAnd;
+        pEval = parent.pEval;
+        pQuote = parent.pQuote;
+    }
+
+    public Exp eval(Exp e, Frame env, int level) throws Exception {
+        int base = sp;
+        push(e, env, level);
+        try {
+            return run(base);
+        }
+        catch (Exception err) {
+            // each Activation is a Lisp.eval the error passes through
+            LispError error = LispError.from(err);
+            for (int i = sp - 1; i >= base; i--)
+                error.add(stack[i].e, stack[i].env, stack[i].level);
+            throw error;
+        }
+        finally {
+            while (sp > base)
+                stack[--sp].clear();
+        }
+    }
+
+    private Exp run(int base) throws Exception {
+        // the value of the Activation popped last, PUSHED while the one on
+        // top is yet to start
+        Exp value = PUSHED;
+        while (true) {
+            Activation a = stack[sp - 1];
+            Exp result = value == PUSHED ? start(a) : resume(a, value);
+            value = PUSHED;
+            if (result != PUSHED) {
+                // a primitive that returns nothing must not restart a
+                if (result == null)
+                    throw new Exception("no value");
+                stack[--sp].clear();
+                if (sp == base)
+                    return result;
+                value = result;
+            }
+        }
+    }
+
+    /** Starts evaluating a.e, returns its value or PUSHED if it pushed an
+     * Activation to wait for
+     */
+    private Exp start(Activation a) throws Exception {
+        interp.checkCall(a.level);
+        switch (a.e.type()) {
+            case SYMBOL:
+                return interp.lookup((Symbol) a.e, a.env);
+            case LIST:
+                if (a.e == List.Nil)
+                    return a.e;
+                a.state = OPERATOR;
+                return push(((List) a.e).head(), a.env, a.level + 1);
+            default:
+                return a.e;
+        }
+    }
+
+    /** Continues a with the value it was waiting for */
+    private Exp resume(Activation a, Exp value) throws Exception {
+        Symbol T = interp.symTable().T;
+        switch (a.state) {
+            case OPERATOR:
+                return call(a, value, ((List) a.e).tail());
+            case ARGS:
+                a.values[a.i++] = value;
+                a.rest = a.rest.tail();
+                if (a.rest != List.Nil)
+                    return push(a.rest.head(), a.env, a.level + 1);
+                return enter(a);
+            case BODY:
+                return body(a);
+            case STRICT: {
+                Prim.Strict s = (Prim.Strict) ((Prim) a.op).handler;
+                a.values[a.i] = s.check(a.i, value);
+                a.i++;
+                a.rest = a.rest.tail();
+                if (a.rest != List.Nil)
+                    return push(a.rest.head(), a.env, a.level);
+                return s.call(interp, a.values);
+            }
+            case IF: {
+                List r = a.rest.tail();
+                if (r == List.Nil)
+                    throw new Exception("wrong number of arguments");
+                Exp then = r.head();
+                r = r.tail();
+                if (r == List.Nil || r.tail() != List.Nil)
+                    throw new Exception("wrong number of arguments");
+                return tail(a, value == T ? then : r.head(), a.env);
+            }
+            case COND:
+                if (value == T) {
+                    if (a.body == List.Nil)
+                        return List.Nil;
+                    a.inner = a.env;
+                    a.rest = a.body;
+                    return tailBody(a);
+                }
+                return clause(a);
+            case TAIL:
+                return tailBody(a);
+            case LET:
+                a.names[a.i] = (Symbol) ((List) a.rest.head()).head();
+                a.inner.set(a.i, value);
+                a.i++;
+                a.rest = a.rest.tail();
+                return locals(a);
+            case SETQ:
+                interp.setq((Symbol) a.op, value, a.env);
+                return value;
+            case WHILE:
+                if (value != T)
+                    return a.value;
+                interp.checkStop();
+                a.rest = a.body;
+                a.state = LOOP;
+                return push(a.rest.head(), a.env, a.level);
+            case LOOP:
+                a.value = value;
+                a.rest = a.rest.tail();
+                if (a.rest != List.Nil)
+                    return push(a.rest.head(), a.inner, a.level);
+                return loop(a);
+            case FROM:
+                a.value = check(value, Exp.Type.NUMBER);
+                a.rest = a.rest.tail();
+                a.state = TO;
+                return push(next(a.rest, false), a.env, a.level);
+            case TO: {
+                check(value, Exp.Type.NUMBER);
+                a.body = a.rest.tail();
+                a.count = ((Number) a.value).longValue();
+                a.limit = ((Number) value).longValue();
+                a.inner = new Frame(new Symbol[]{(Symbol) ((List) a.e).get(1)}, new Exp[1], a.env);
+                a.value = List.Nil;
+                return loop(a);
+            }
+            case REP:
+                check(value, Exp.Type.NUMBER);
+                a.count = ((Number) value).longValue();
+                a.inner = a.env;
+                a.value = List.Nil;
+                return loop(a);
+            case AND:
+                a.values[a.i] = value;
+                a.rest = a.rest.tail();
+                if (a.i == 0) {
+                    a.i = 1;
+                    return push(next(a.rest, false), a.env, a.level);
+                }
+                if (value != T || a.values[0] != T)
+                    return List.Nil;
+                if (a.rest == List.Nil)
+                    return T;
+                return push(a.rest.head(), a.env, a.level);
+            case EVAL:
+                a.state = RETURN;
+                return push(value, a.env, a.level);
+            case RETURN:
+                return value;
+            default:
+                throw new Exception("bad activation");
+        }
+    }
+
+    /** Applies the operator op of a to args, like the loop of Lisp.eval */
+    private Exp call(Activation a, Exp op, List args) throws Exception {
+        List exp = (List) a.e;
+        if (op.type() == Exp.Type.FUNCTION) {
+            Function f = (Function) op;
+            if (f.macro() || interp.traced(exp.head()))
+                return interp.apply(op, exp, a.env, a.level);
+            a.op = f;
+            a.values = new Exp[args.length()];
+            a.i = 0;
+            a.rest = args;
+            if (args == List.Nil)
+                return enter(a);
+            a.state = ARGS;
+            return push(args.head(), a.env, a.level + 1);
+        }
+        if (op.type() != Exp.Type.PRIMATIVE)
+            throw new Exception("bad function");
+        Prim p = (Prim) op;
+        a.op = p;
+        a.rest = args;
+        if (p.handler instanceof Prim.Strict) {
+            Prim.Strict s = (Prim.Strict) p.handler;
+            int n = args.length();
+            if (!s.accepts(n))
+                throw new Exception("wrong number of arguments");
+            a.values = new Exp[n];
+            a.i = 0;
+            if (n == 0)
+                return s.call(interp, a.values);
+            a.state = STRICT;
+            return push(args.head(), a.env, a.level);
+        }
+        if (p == pIf) {
+            a.state = IF;
+            return push(next(args, false), a.env, a.level);
+        }
+        if (p == pCond)
+            return clause(a);
+        if (p == pLet) {
+            Exp locals = next(args, false);
+            check(locals, Exp.Type.LIST);
+            int n = ((List) locals).length();
+            a.names = new Symbol[n];
+            a.inner = new Frame(a.names, new Exp[n], a.env);
+            a.body = args.tail();
+            a.rest = (List) locals;
+            a.i = 0;
+            return locals(a);
+        }
+        if (p == pSetq) {
+            a.op = check(next(args, false), Exp.Type.SYMBOL);
+            a.state = SETQ;
+            return push(next(args.tail(), true), a.env, a.level);
+        }
+        if (p == pWhile) {
+            a.test = next(args, false);
+            // the body starts with the test like in the interpreter
+            a.body = args;
+            a.inner = a.env;
+            a.value = List.Nil;
+            a.state = WHILE;
+            return push(a.test, a.env, a.level);
+        }
+        if (p == pFor) {
+            check(next(args, false), Exp.Type.SYMBOL);
+            a.rest = args.tail();
+            a.state = FROM;
+            return push(next(a.rest, false), a.env, a.level);
+        }
+        if (p == pRep) {
+            a.body = args;
+            a.state = REP;
+            return push(next(args, false), a.env, a.level);
+        }
+        if (p == pAnd) {
+            a.values = new Exp[2];
+            a.i = 0;
+            a.state = AND;
+            return push(next(args, false), a.env, a.level);
+        }
+        if (p == pEval) {
+            a.state = EVAL;
+            return push(next(args, true), a.env, a.level);
+        }
+        if (p == pQuote)
+            return next(args, true);
+        Exp value = p.handler.eval(interp, args, a.env, a.level);
+        if (value instanceof TailCall)
+            return tail(a, ((TailCall) value).exp(), ((TailCall) value).env());
+        return value;
+    }
+
+    /** Binds the arguments of a function call and starts on its body */
+    private Exp enter(Activation a) throws Exception {
+        Function f = (Function) a.op;
+        a.inner = f.bind(interp, a.values, 0, a.values.length);
+        a.values = null;
+        a.rest = f.body();
+        if (a.rest == List.Nil)
+            return List.Nil;
+        return body(a);
+    }
+
+    /** Evaluates the rest of a function body, the last expression takes
+     * the place of the call with the level of the body, which stays the
+     * same for a tail call
+     */
+    private Exp body(Activation a) throws Exception {
+        if (a.rest.tail() != List.Nil) {
+            Exp e = a.rest.head();
+            a.rest = a.rest.tail();
+            a.state = BODY;
+            return push(e, a.inner, a.top + 1);
+        }
+        a.e = a.rest.head();
+        a.env = a.inner;
+        a.level = a.top + 1;
+        a.reset();
+        return PUSHED;
+    }
+
+    /** Evaluates the rest of a body of a special form, the last
+     * expression in tail position
+     */
+    private Exp tailBody(Activation a) throws Exception {
+        if (a.rest.tail() != List.Nil) {
+            Exp e = a.rest.head();
+            a.rest = a.rest.tail();
+            a.state = TAIL;
+            return push(e, a.inner, a.level);
+        }
+        return tail(a, a.rest.head(), a.inner);
+    }
+
+    /** Continues a with e in tail position like Lisp.evalTail, only a
+     * call takes the place of the special form
+     */
+    private Exp tail(Activation a, Exp e, Frame env) throws Exception {
+        if (e.type() != Exp.Type.LIST || e == List.Nil) {
+            a.state = RETURN;
+            return push(e, env, a.level);
+        }
+        a.e = e;
+        a.env = env;
+        a.reset();
+        return PUSHED;
+    }
+
+    /** Tries the next clause of a cond */
+    private Exp clause(Activation a) throws Exception {
+        if (a.rest == List.Nil)
+            return List.Nil;
+        Exp c = check(a.rest.head(), Exp.Type.LIST);
+        if (c == List.Nil)
+            throw new Exception("bad condition");
+        a.rest = a.rest.tail();
+        a.body = ((List) c).tail();
+        a.state = COND;
+        return push(((List) c).head(), a.env, a.level);
+    }
+
+    /** Binds the rest of the local variables of a let and starts on its
+     * body
+     */
+    private Exp locals(Activation a) throws Exception {
+        while (a.rest != List.Nil) {
+            Exp local = a.rest.head();
+            if (local.type() == Exp.Type.SYMBOL) {
+                a.names[a.i] = (Symbol) local;
+                a.inner.set(a.i, List.Nil);
+                a.i++;
+                a.rest = a.rest.tail();
+            }
+            else if (local.type() == Exp.Type.LIST) {
+                List var = (List) local;
+                if (var.length() != 2 || var.head().type() != Exp.Type.SYMBOL)
+                    throw new Exception("bad local var def");
+                a.state = LET;
+                return push(var.tail().head(), a.inner, a.level);
+            }
+            else
+                throw new Exception("bad local var def");
+        }
+        if (a.body == List.Nil)
+            return List.Nil;
+        a.rest = a.body;
+        return tailBody(a);
+    }
+
+    /** Starts the next round of a while, for or rep, or returns the value
+     * of the last one
+     */
+    private Exp loop(Activation a) throws Exception {
+        if (a.op == pWhile) {
+            a.state = WHILE;
+            return push(a.test, a.env, a.level);
+        }
+        if (a.op == pFor) {
+            // the rounds of an empty body leave the value Nil
+            do {
+                if (a.count > a.limit)
+                    return a.value;
+                interp.checkStop();
+                a.inner.set(0, Number.of(a.count));
+                a.count++;
+            } while (a.body == List.Nil);
+        }
+        else {
+            if (a.count <= 0)
+                return a.value;
+            interp.checkStop();
+            a.count--;
+        }
+        a.rest = a.body;
+        a.state = LOOP;
+        return push(a.rest.head(), a.inner, a.level);
+    }
+
+    /** Returns the head of args like ArgList.next */
+    private static Exp next(List args, boolean last) throws Exception {
+        if (args == List.Nil || (last && args.tail() != List.Nil))
+            throw new Exception("wrong number of arguments");
+        return args.head();
+    }
+
+    private static Exp check(Exp e, Exp.Type type) throws Exception {
+        if (e.type() != type)
+            throw new Exception(String.format("%s expected", Exp.typeName(type)));
+        return e;
+    }
+
+    /** Pushes an Activation evaluating e, returns PUSHED for the caller to
+     * return
+     */
+    private Exp push(Exp e, Frame env, int level) {
+        if (sp == stack.length)
+            stack = Arrays.copyOf(stack, sp * 2);
+        Activation a = stack[sp];
+        if (a == null)
+            a = stack[sp] = new Activation();
+        a.e = e;
+        a.env = env;
+        a.level = level;
+        a.top = level;
+        a.state = START;
+        sp++;
+        return PUSHED;
+    }
+
+    /** An evaluation in progress, reused for the next one once it is done */
+    private static class Activation {
+
+        Exp e;
+        Frame env;
+        int level;
+        // the level it was pushed with
+        int top;
+        int state;
+        // the operator, the primitive or the symbol of a setq
+        Exp op;
+        // what is left of the arguments, a body, the clauses of a cond or
+        // the locals of a let
+        List rest;
+        List body;
+        Exp test;
+        Exp[] values;
+        Symbol[] names;
+        int i;
+        // the environment of a body
+        Frame inner;
+        // the start of a for, the value of a loop so far, its counter and
+        // limit
+        Exp value;
+        long count;
+        long limit;
+
+        /** Starts over on a new expression in the same activation */
+        void reset() {
+            state = START;
+            op = null;
+            rest = null;
+            body = null;
+            test = null;
+            values = null;
+            names = null;
+            inner = null;
+            value = null;
+        }
+
+        void clear() {
+            e = null;
+            env = null;
+            reset();
+        }
+    }
+}
@@ -0,0 +1,716 @@
+/* Project: LispLib
+ * File:    Node.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.ArrayList;
+
+/** This class represents an executable Node produced by the Analyzer.
+ *
+ * Each node is the pre-digested form of one s-expression: the shape of
+ * special forms is checked once at analysis time and the node only does
+ * the work that is left at run time.
+ *
+ * Nodes that can fail add their form to the backtrace of the error the
+ * way Lisp.eval does, a node in tail position taking the place of the
+ * one it ends.
+ *
+ * @author Layne
+ */
+public abstract class Node {
+
+    // in tail position, the last expression of a body or a branch of an if
+    boolean ends;
+
+    public abstract Exp eval(Lisp interp, Frame env, int level) throws Exception;
+
+    /** Marks the node as being in tail position, returns it */
+    Node ending() {
+        ends = true;
+        return this;
+    }
+
+    /** Adds form to the backtrace of err, returns the error to throw on */
+    LispError frame(Exception err, Exp form, Frame env, int level) {
+        LispError error = LispError.from(err);
+        return ends ? error.addTail(form, env, level) : error.add(form, env, level);
+    }
+
+    /** Evaluates the source form of a node whose analysis no longer holds,
+     * Lisp.eval adds its frame
+     */
+    Exp evalForm(Lisp interp, List form, Frame env, int level) throws Exception {
+        try {
+            return interp.eval(form, env, level);
+        }
+        catch (Exception err) {
+            throw ends ? LispError.from(err).replacing(true) : err;
+        }
+    }
+
+    /** A self evaluating value or a quoted expression */
+    public static class Const extends Node {
+
+        private Exp value;
+
+        public Const(Exp value) {
+            this.value = value;
+        }
+
+        @Override
+        public Exp eval(Lisp interp, Frame env, int level) throws Exception {
+            return value;
+        }
+    }
+
+    /** A reference to a local variable */
+    public static class LocalRef extends Node {
+
+        private int depth;
+        private int index;
+
+        public LocalRef(int depth, int index) {
+            this.depth = depth;
+            this.index = index;
+        }
+
+        @Override
+        public Exp eval(Lisp interp, Frame env, int level) throws Exception {
+            return env.get(depth, index);
+        }
+    }
+
+    /** A reference to the global value of a symbol */
+    public static class GlobalRef extends Node {
+
+        private Symbol sym;
+
+        public GlobalRef(Symbol sym) {
+            this.sym = sym;
+        }
+
+        @Override
+        public Exp eval(Lisp interp, Frame env, int level) throws Exception {
+            Exp value = sym.value();
+            if (value == null)
+                throw frame(new Exception("unbound symbol"), sym, env, level);
+            return value;
+        }
+    }
+
+    /** A sequence of expressions, the value of the last one is returned */
+    public static class Body extends Node {
+
+        private Node[] exps;
+
+        public Body(Node[] exps) {
+            this.exps = exps;
+        }
+
+        @Override
+        public Exp eval(Lisp interp, Frame env, int level) throws Exception {
+            Exp value = List.Nil;
+            for (Node n : exps)
+                value = n.eval(interp, env, level);
+            return value;
+        }
+
+        /** Marks the last expression, which is the one in tail position */
+        @Override
+        Node ending() {
+            if (exps.length > 0)
+                exps[exps.length - 1].ending();
+            return super.ending();
+        }
+    }
+
+    /** Base class of nodes for special forms. The form was analyzed against
+     * the primitive bound to its symbol at analysis time, if the symbol has
+     * been rebound since then the original form is evaluated instead.
+     */
+    public static abstract class Special extends Node {
+
+        private Symbol sym;
+        private Prim prim;
+        private List form;
+
+        public Special(Symbol sym, Prim prim, List form) {
+            this.sym = sym;
+            this.prim = prim;
+            this.form = form;
+        }
+
+        @Override
+        public Exp eval(Lisp interp, Frame env, int level) throws Exception {
+            if (sym.value() != prim)
+                return evalForm(interp, form, env, level);
+            try {
+                return evalSpecial(interp, env, level);
+            }
+            catch (Exception err) {
+                throw frame(err, form, env, level);
+            }
+        }
+
+        protected abstract Exp evalSpecial(Lisp interp, Frame env, int level) throws Exception;
+    }
+
+    /** (if c i t) */
+    public static class If extends Special {
+
+        private Node c, i, t;
+
+        public If(Symbol sym, Prim prim, List form, Node c, Node i, Node t) {
+            super(sym, prim, form);
+            this.c = c;
+            this.i = i;
+            this.t = t;
+        }
+
+        @Override
+        protected Exp evalSpecial(Lisp interp, Frame env, int level) throws Exception {
+            if (c.eval(interp, env, level) == interp.symTable().T)
+                return i.eval(interp, env, level);
+            return t.eval(interp, env, level);
+        }
+    }
+
+    /** (cond (c body...)...) */
+    public static class Cond extends Special {
+
+        private Node[] tests;
+        private Node[] bodies;
+
+        public Cond(Symbol sym, Prim prim, List form, Node[] tests, Node[] bodies) {
+            super(sym, prim, form);
+            this.tests = tests;
+            this.bodies = bodies;
+        }
+
+        @Override
+        protected Exp evalSpecial(Lisp interp, Frame env, int level) throws Exception {
+            for (int i = 0; i < tests.length; i++) {
+                if (tests[i].eval(interp, env, level) == interp.symTable().T)
+                    return bodies[i].eval(interp, env, level);
+            }
+            return List.Nil;
+        }
+    }
+
+    /** (let (var (var init)...) body...) */
+    public static class Let extends Special {
+
+        private Symbol[] vars;
+        private Node[] inits;
+        private Node body;
+
+        public Let(Symbol sym, Prim prim, List form, Symbol[] vars, Node[] inits, Node body) {
+            super(sym, prim, form);
+            this.vars = vars;
+            this.inits = inits;
+            this.body = body;
+        }
+
+        @Override
+        protected Exp evalSpecial(Lisp interp, Frame env, int level) throws Exception {
+            Frame newEnv = new Frame(vars, new Exp[vars.length], env);
+            for (int i = 0; i < vars.length; i++)
+                newEnv.set(i, inits[i] == null ? List.Nil : inits[i].eval(interp, newEnv, level));
+            return body.eval(interp, newEnv, level);
+        }
+    }
+
+    /** (setq sym value), depth is -1 if sym is global */
+    public static class Setq extends Special {
+
+        private Symbol var;
+        private int depth;
+        private int index;
+        private Node value;
+
+        public Setq(Symbol sym, Prim prim, List form, Symbol var, int depth, int index, Node value) {
+            super(sym, prim, form);
+            this.var = var;
+            this.depth = depth;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        protected Exp evalSpecial(Lisp interp, Frame env, int level) throws Exception {
+            Exp v = value.eval(interp, env, level);
+            if (depth < 0) {
+                interp.checkGlobal();
+                var.setValue(v);
+            }
+            else
+                env.set(depth, index, v);
+            return v;
+        }
+    }
+
+    /** (while test body...) */
+    public static class While extends Special {
+
+        private Node test;
+        private Node body;
+
+        public While(Symbol sym, Prim prim, List form, Node test, Node body) {
+            super(sym, prim, form);
+            this.test = test;
+            this.body = body;
+        }
+
+        @Override
+        protected Exp evalSpecial(Lisp interp, Frame env, int level) throws Exception {
+            Symbol T = interp.symTable().T;
+            Exp value = List.Nil;
+            while (test.eval(interp, env, level) == T) {
+                interp.checkStop();
+                value = body.eval(interp, env, level);
+            }
+            return value;
+        }
+    }
+
+    /** A call of a unary Intrinsic primitive. Guarded like a Special but
+     * checked here, where the call of evalSpecial would be one more
+     * virtual call on the hottest path.
+     */
+    public static class Unary extends Node {
+
+        private Symbol sym;
+        private Prim prim;
+        private List form;
+        private int op;
+        private Node a;
+
+        public Unary(Symbol sym, Prim prim, List form, int op, Node a) {
+            this.sym = sym;
+            this.prim = prim;
+            this.form = form;
+            this.op = op;
+            this.a = a;
+        }
+
+        @Override
+        public Exp eval(Lisp interp, Frame env, int level) throws Exception {
+            if (sym.value() != prim)
+                return evalForm(interp, form, env, level);
+            try {
+                return Intrinsic.apply(op, a.eval(interp, env, level), null, interp);
+            }
+            catch (Exception err) {
+                throw frame(err, form, env, level);
+            }
+        }
+    }
+
+    /** A call of a binary Intrinsic primitive, guarded like Unary */
+    public static class Binary extends Node {
+
+        private Symbol sym;
+        private Prim prim;
+        private List form;
+        private int op;
+        private Node a, b;
+
+        public Binary(Symbol sym, Prim prim, List form, int op, Node a, Node b) {
+            this.sym = sym;
+            this.prim = prim;
+            this.form = form;
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public Exp eval(Lisp interp, Frame env, int level) throws Exception {
+            if (sym.value() != prim)
+                return evalForm(interp, form, env, level);
+            try {
+                Exp x = a.eval(interp, env, level);
+                return Intrinsic.apply(op, x, b.eval(interp, env, level), interp);
+            }
+            catch (Exception err) {
+                throw frame(err, form, env, level);
+            }
+        }
+    }
+
+    /** Nested arithmetic, like (+ (* a b) c), on local variables and
+     * constants only.
+     *
+     * Such leaves can be read any number of times without side effects or
+     * errors. So a first pass over the tree finds the subtrees whose leaves
+     * are all Fixnums, and a second one computes those in longs and the
+     * rest in doubles, which is exactly what the boxed primitives would do,
+     * allocating a Number only for the result. Anything else, a leaf that
+     * is no Fixnum or Flonum, a long overflowing or a symbol rebound, goes
+     * to the tree of Binary nodes the Arith was built from.
+     */
+    public static class Arith extends Node {
+
+        // bit of the mask of a tree with a leaf that is neither a Fixnum
+        // nor a Flonum, the other bits mark the Terms with only Fixnums
+        private static final long OTHER = 1L << 63;
+        private static final int MAX_TERMS = 63;
+
+        private Symbol[] syms;
+        private Prim[] prims;
+        private int op;
+        private Term a, b;
+        private Binary boxed;
+
+        private Arith(ArrayList<Binary> ops, Term a, Term b, Binary boxed) {
+            syms = new Symbol[ops.size()];
+            prims = new Prim[ops.size()];
+            for (int i = 0; i < syms.length; i++) {
+                syms[i] = ops.get(i).sym;
+                prims[i] = ops.get(i).prim;
+            }
+            this.op = boxed.op;
+            this.a = a;
+            this.b = b;
+            this.boxed = boxed;
+        }
+
+        /** Returns an Arith for b if it has arithmetic nested in it that
+         * only works on local variables and constant numbers, else b
+         */
+        public static Node of(Binary b) {
+            if (b.op != Intrinsic.ADD && b.op != Intrinsic.SUB && b.op != Intrinsic.MUL
+                    && b.op != Intrinsic.LESS && b.op != Intrinsic.EQUALS)
+                return b;
+            if (binary(b.a) == null && binary(b.b) == null)
+                return b;
+            ArrayList<Binary> ops = new ArrayList<Binary>();
+            ArrayList<Term> terms = new ArrayList<Term>();
+            ops.add(b);
+            Term x = term(b.a, ops, terms);
+            Term y = term(b.b, ops, terms);
+            if (x == null || y == null || terms.size() > MAX_TERMS)
+                return b;
+            return new Arith(ops, x, y, b);
+        }
+
+        private static Term term(Node n, ArrayList<Binary> ops, ArrayList<Term> terms) {
+            Term t;
+            if (n instanceof LocalRef)
+                t = new Local(((LocalRef) n).depth, ((LocalRef) n).index);
+            else if (n instanceof Const && ((Const) n).value.type() == Exp.Type.NUMBER)
+                t = new Constant((Number) ((Const) n).value);
+            else {
+                Binary b = binary(n);
+                if (b == null || (b.op != Intrinsic.ADD && b.op != Intrinsic.SUB && b.op != Intrinsic.MUL))
+                    return null;
+                ops.add(b);
+                Term x = term(b.a, ops, terms);
+                Term y = term(b.b, ops, terms);
+                if (x == null || y == null)
+                    return null;
+                t = new Operation(b.op, x, y);
+            }
+            t.bit = 1L << Math.min(terms.size(), MAX_TERMS);
+            terms.add(t);
+            return t;
+        }
+
+        @Override
+        Node ending() {
+            boxed.ending();
+            return super.ending();
+        }
+
+        /** Returns n as a Binary, unwrapping an Arith, else null */
+        private static Binary binary(Node n) {
+            if (n instanceof Arith)
+                return ((Arith) n).boxed;
+            return n instanceof Binary ? (Binary) n : null;
+        }
+
+        @Override
+        public Exp eval(Lisp interp, Frame env, int level) throws Exception {
+            for (int i = 0; i < syms.length; i++) {
+                if (syms[i].value() != prims[i])
+                    return boxed.eval(interp, env, level);
+            }
+            long mask = a.mask(env) | b.mask(env);
+            if ((mask & OTHER) != 0)
+                return boxed.eval(interp, env, level);
+            if ((mask & a.bit) != 0 && (mask & b.bit) != 0) {
+                try {
+                    long x = a.fix(env);
+                    long y = b.fix(env);
+                    switch (op) {
+                        case Intrinsic.ADD:
+                            return Number.of(Math.addExact(x, y));
+                        case Intrinsic.SUB:
+                            return Number.of(Math.subtractExact(x, y));
+                        case Intrinsic.MUL:
+                            return Number.of(Math.multiplyExact(x, y));
+                        case Intrinsic.LESS:
+                            return x < y ? interp.symTable().T : List.Nil;
+                        default:
+                            return x == y ? interp.symTable().T : List.Nil;
+                    }
+                }
+                catch (ArithmeticException err) {
+                    // the exact result needs a Bignum
+                    return boxed.eval(interp, env, level);
+                }
+            }
+            try {
+                double x = a.flo(env, mask);
+                double y = b.flo(env, mask);
+                switch (op) {
+                    case Intrinsic.ADD:
+                        return Number.of(x + y);
+                    case Intrinsic.SUB:
+                        return Number.of(x - y);
+                    case Intrinsic.MUL:
+                        return Number.of(x * y);
+                    case Intrinsic.LESS:
+                        return x < y ? interp.symTable().T : List.Nil;
+                    default:
+                        return x == y ? interp.symTable().T : List.Nil;
+                }
+            }
+            catch (ArithmeticException err) {
+                return boxed.eval(interp, env, level);
+            }
+        }
+
+        /** A subtree of an Arith */
+        private static abstract class Term {
+
+            long bit;
+
+            /** Returns the bits of the Terms in this subtree that only have
+             * Fixnum leaves, or OTHER
+             */
+            abstract long mask(Frame env);
+
+            /** Returns the value of a subtree with only Fixnum leaves */
+            abstract long fix(Frame env);
+
+            /** Returns the value as a double, computing the subtrees marked
+             * in mask as longs
+             */
+            abstract double flo(Frame env, long mask);
+        }
+
+        private static class Local extends Term {
+
+            private int depth;
+            private int index;
+
+            Local(int depth, int index) {
+                this.depth = depth;
+                this.index = index;
+            }
+
+            @Override
+            long mask(Frame env) {
+                Exp e = env.get(depth, index);
+                if (e instanceof Number.Fixnum)
+                    return bit;
+                return e instanceof Number.Flonum ? 0 : OTHER;
+            }
+
+            @Override
+            long fix(Frame env) {
+                return ((Number) env.get(depth, index)).longValue();
+            }
+
+            @Override
+            double flo(Frame env, long mask) {
+                return ((Number) env.get(depth, index)).value();
+            }
+        }
+
+        private static class Constant extends Term {
+
+            private Number value;
+            private long fix;
+            private double flo;
+
+            Constant(Number value) {
+                this.value = value;
+                fix = value.longValue();
+                flo = value.value();
+            }
+
+            @Override
+            long mask(Frame env) {
+                if (value instanceof Number.Fixnum)
+                    return bit;
+                return value instanceof Number.Flonum ? 0 : OTHER;
+            }
+
+            @Override
+            long fix(Frame env) {
+                return fix;
+            }
+
+            @Override
+            double flo(Frame env, long mask) {
+                return flo;
+            }
+        }
+
+        private static class Operation extends Term {
+
+            private int op;
+            private Term a, b;
+
+            Operation(int op, Term a, Term b) {
+                this.op = op;
+                this.a = a;
+                this.b = b;
+            }
+
+            @Override
+            long mask(Frame env) {
+                long m = a.mask(env) | b.mask(env);
+                if ((m & a.bit) != 0 && (m & b.bit) != 0)
+                    m |= bit;
+                return m;
+            }
+
+            @Override
+            long fix(Frame env) {
+                switch (op) {
+                    case Intrinsic.ADD:
+                        return Math.addExact(a.fix(env), b.fix(env));
+                    case Intrinsic.SUB:
+                        return Math.subtractExact(a.fix(env), b.fix(env));
+                    default:
+                        return Math.multiplyExact(a.fix(env), b.fix(env));
+                }
+            }
+
+            @Override
+            double flo(Frame env, long mask) {
+                if ((mask & bit) != 0)
+                    return fix(env);
+                switch (op) {
+                    case Intrinsic.ADD:
+                        return a.flo(env, mask) + b.flo(env, mask);
+                    case Intrinsic.SUB:
+                        return a.flo(env, mask) - b.flo(env, mask);
+                    default:
+                        return a.flo(env, mask) * b.flo(env, mask);
+                }
+            }
+        }
+    }
+
+    /** A call of a function or a primitive that is not analyzed any further.
+     * A function call in tail position returns a TailCall for
+     * Lisp.callFunction to run.
+     *
+     * When the operator is a global symbol the call site caches what it is
+     * bound to, together with how to call it, until the version of the
+     * symbol changes.
+     */
+    public static class Call extends Node {
+
+        private Node op;
+        private Node[] args;
+        private List form;
+        private boolean tail;
+        private Symbol global;
+        private Target cache;
+
+        public Call(Node op, Node[] args, List form, boolean tail) {
+            this.op = op;
+            this.args = args;
+            this.form = form;
+            this.tail = tail;
+            if (op instanceof GlobalRef)
+                global = ((GlobalRef) op).sym;
+        }
+
+        @Override
+        public Exp eval(Lisp interp, Frame env, int level) throws Exception {
+            try {
+                interp.checkCall(level);
+                Target t = cache;
+                if (global == null || t == null || t.version != global.version()) {
+                    int version = global == null ? 0 : global.version();
+                    Exp f = op.eval(interp, env, level + 1);
+                    t = new Target(f, args.length, interp.traced(form.head()), version);
+                    if (global != null)
+                        cache = t;
+                }
+                if (t.function != null) {
+                    Frame newEnv = bindArgs(interp, t.function, env, level + 1);
+                    if (tail && !t.traced)
+                        return new TailCall(t.function, newEnv, form, env);
+                    return interp.callFunction(t.function, form.head(), newEnv, level);
+                }
+                if (t.strict != null)
+                    return callStrict(interp, t.strict, env, level);
+                return interp.apply(t.value, form, env, level);
+            }
+            catch (Exception err) {
+                // like Lisp.eval, the backtrace lists each call the error
+                // passes through
+                throw frame(err, form, env, level);
+            }
+        }
+
+        private Exp callStrict(Lisp interp, Prim.Strict p, Frame env, int level) throws Exception {
+            switch (args.length) {
+                case 0:
+                    return p.call0(interp);
+                case 1:
+                    return p.call1(interp, p.check(0, args[0].eval(interp, env, level)));
+                case 2: {
+                    Exp a = p.check(0, args[0].eval(interp, env, level));
+                    return p.call2(interp, a, p.check(1, args[1].eval(interp, env, level)));
+                }
+                default: {
+                    Exp[] values = new Exp[args.length];
+                    for (int i = 0; i < args.length; i++)
+                        values[i] = p.check(i, args[i].eval(interp, env, level));
+                    return p.call(interp, values);
+                }
+            }
+        }
+
+        private Frame bindArgs(Lisp interp, Function f, Frame env, int level) throws Exception {
+            Exp[] values = new Exp[args.length];
+            for (int i = 0; i < args.length; i++)
+                values[i] = args[i].eval(interp, env, level);
+            return f.bind(interp, values, 0, values.length);
+        }
+    }
+    /** What a call site found its operator bound to. The fields are final
+     * so a Target is replaced as a whole and never seen half updated.
+     */
+    private static class Target {
+
+        private final Exp value;
+        private final int version;
+        private final Function function;
+        private final Prim.Strict strict;
+        private final boolean traced;
+
+        public Target(Exp value, int args, boolean traced, int version) {
+            this.value = value;
+            this.version = version;
+            if (value.type() == Exp.Type.FUNCTION && !((Function) value).macro())
+                function = (Function) value;
+            else
+                function = null;
+            if (value.type() == Exp.Type.PRIMATIVE)
+                strict = ((Prim) value).strict(args);
+            else
+                strict = null;
+            this.traced = traced;
+        }
+    }
+}
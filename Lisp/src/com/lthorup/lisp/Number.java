@@ -4,21 +4,185 @@
  */
 package com.lthorup.lisp;
 
+import java.math.*;
+
 /** This class represents a Number
+ *
+ * A Number is a Fixnum, an integer that fits in a long, a Bignum, any
+ * larger integer, or a Flonum, a double. Integer arithmetic stays exact:
+ * a result that overflows a long becomes a Bignum and a Bignum that fits
+ * in a long again becomes a Fixnum. A Flonum as one of the arguments makes
+ * the result a Flonum, and so does dividing integers that do not divide
+ * evenly.
+ *
+ * Small integers and the floats 0.0 and 1.0 are shared instead of being
+ * allocated again for every result.
  *
  * @author Layne
  */
-public class Number extends Exp {
+public abstract class Number extends Exp {
+
+    /** An integer that fits in a long */
+    public static final class Fixnum extends Number {
 
-    private double value;
+        private final long value;
+
+        private Fixnum(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public double value() {
+            return value;
+        }
+
+        @Override
+        public long longValue() {
+            return value;
+        }
+
+        @Override
+        public BigInteger bigValue() {
+            return BigInteger.valueOf(value);
+        }
+
+        @Override
+        public boolean integer() {
+            return true;
+        }
 
-    public Number(double value) {
+        @Override
+        public String toString() {
+            return Long.toString(value);
+        }
+    }
+
+    /** An integer too large for a long */
+    public static final class Bignum extends Number {
+
+        private final BigInteger value;
+
+        private Bignum(BigInteger value) {
+            this.value = value;
+        }
+
+        @Override
+        public double value() {
+            return value.doubleValue();
+        }
+
+        @Override
+        public long longValue() {
+            return value.signum() > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+
+        @Override
+        public BigInteger bigValue() {
+            return value;
+        }
+
+        @Override
+        public boolean integer() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return value.toString();
+        }
+    }
+
+    /** A floating point number */
+    public static final class Flonum extends Number {
+
+        private final double value;
+
+        private Flonum(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double value() {
+            return value;
+        }
+
+        @Override
+        public long longValue() {
+            return (long) value;
+        }
+
+        @Override
+        public BigInteger bigValue() {
+            return new BigDecimal(value).toBigInteger();
+        }
+
+        @Override
+        public boolean integer() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%g", value);
+        }
+    }
+
+    private static final int LOW = -128;
+    private static final int HIGH = 1024;
+    private static final Fixnum[] fixnums = new Fixnum[HIGH - LOW + 1];
+    private static final Flonum ZERO = new Flonum(0.0);
+    private static final Flonum ONE = new Flonum(1.0);
+
+    static {
+        for (int i = 0; i < fixnums.length; i++)
+            fixnums[i] = new Fixnum(LOW + i);
+    }
+
+    private Number() {
         super(Type.NUMBER);
-        this.value = value;
     }
 
-    public double value() {
-        return value;
+    public static Number of(long value) {
+        if (value >= LOW && value <= HIGH)
+            return fixnums[(int) value - LOW];
+        return new Fixnum(value);
+    }
+
+    public static Number of(double value) {
+        // 0.0 but not -0.0
+        if (Double.doubleToRawLongBits(value) == 0)
+            return ZERO;
+        if (value == 1.0)
+            return ONE;
+        return new Flonum(value);
+    }
+
+    /** Returns value as a Fixnum if it fits in a long */
+    public static Number of(BigInteger value) {
+        if (value.bitLength() < 64)
+            return of(value.longValue());
+        return new Bignum(value);
+    }
+
+    /** Returns the value as a double, rounded if it is a Bignum */
+    public abstract double value();
+
+    /** Returns the value as a long, a Flonum is truncated and a value out
+     * of range becomes the nearest long
+     */
+    public abstract long longValue();
+
+    /** Returns the value as an integer, a Flonum is truncated */
+    public abstract BigInteger bigValue();
+
+    /** Returns true for a Fixnum or a Bignum */
+    public abstract boolean integer();
+
+    /** Returns the value as an int for indexes and counts, a value out of
+     * range becomes the nearest int
+     */
+    public int intValue() {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, longValue()));
     }
 
     @Override
@@ -32,291 +196,370 @@ public class Number extends Exp {
             return true;
         if (e.type != Type.NUMBER)
             return false;
-        Number a = (Number) e;
-        return a.value == value;
+        return numEquals(this, (Number) e);
     }
 
     @Override
-    public String toString() {
-        return String.format("%g", value);
+    protected int hash(int depth) {
+        // integers and floats are equal by their double value, -0.0 and
+        // 0.0 included
+        double d = value() + 0.0;
+        long bits = Double.doubleToLongBits(d);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    public static Number add(Number a, Number b) {
+        if (a instanceof Fixnum && b instanceof Fixnum) {
+            long x = ((Fixnum) a).value;
+            long y = ((Fixnum) b).value;
+            long r = x + y;
+            // it overflowed if r has a sign different from both of them
+            if (((x ^ r) & (y ^ r)) >= 0)
+                return of(r);
+        }
+        if (!a.integer() || !b.integer())
+            return of(a.value() + b.value());
+        return of(a.bigValue().add(b.bigValue()));
+    }
+
+    public static Number sub(Number a, Number b) {
+        if (a instanceof Fixnum && b instanceof Fixnum) {
+            long x = ((Fixnum) a).value;
+            long y = ((Fixnum) b).value;
+            long r = x - y;
+            if (((x ^ y) & (x ^ r)) >= 0)
+                return of(r);
+        }
+        if (!a.integer() || !b.integer())
+            return of(a.value() - b.value());
+        return of(a.bigValue().subtract(b.bigValue()));
+    }
+
+    public static Number mul(Number a, Number b) {
+        if (a instanceof Fixnum && b instanceof Fixnum) {
+            long x = ((Fixnum) a).value;
+            long y = ((Fixnum) b).value;
+            long r = x * y;
+            // the test of Math.multiplyExact, without the exception
+            if (((Math.abs(x) | Math.abs(y)) >>> 31 == 0)
+                    || ((y == 0 || r / y == x) && !(x == Long.MIN_VALUE && y == -1)))
+                return of(r);
+        }
+        if (!a.integer() || !b.integer())
+            return of(a.value() * b.value());
+        return of(a.bigValue().multiply(b.bigValue()));
+    }
+
+    /** Divides exactly if both are integers and b divides a */
+    public static Number div(Number a, Number b) {
+        if (a instanceof Fixnum && b instanceof Fixnum) {
+            long x = ((Fixnum) a).value;
+            long y = ((Fixnum) b).value;
+            if (y != 0 && x % y == 0 && !(x == Long.MIN_VALUE && y == -1))
+                return of(x / y);
+            if (y != -1)
+                return of((double) x / y);
+        }
+        if (a.integer() && b.integer() && b.bigValue().signum() != 0) {
+            BigInteger[] qr = a.bigValue().divideAndRemainder(b.bigValue());
+            if (qr[1].signum() == 0)
+                return of(qr[0]);
+        }
+        return of(a.value() / b.value());
+    }
+
+    public static boolean less(Number a, Number b) {
+        if (a instanceof Fixnum && b instanceof Fixnum)
+            return ((Fixnum) a).value < ((Fixnum) b).value;
+        if (!a.integer() || !b.integer())
+            return a.value() < b.value();
+        return a.bigValue().compareTo(b.bigValue()) < 0;
+    }
+
+    public static boolean lessEquals(Number a, Number b) {
+        if (a instanceof Fixnum && b instanceof Fixnum)
+            return ((Fixnum) a).value <= ((Fixnum) b).value;
+        if (!a.integer() || !b.integer())
+            return a.value() <= b.value();
+        return a.bigValue().compareTo(b.bigValue()) <= 0;
+    }
+
+    public static boolean numEquals(Number a, Number b) {
+        if (a instanceof Fixnum && b instanceof Fixnum)
+            return ((Fixnum) a).value == ((Fixnum) b).value;
+        if (!a.integer() || !b.integer())
+            return a.value() == b.value();
+        return a.bigValue().equals(b.bigValue());
     }
 
     public static void addPrims(SymbolTable s) {
         Symbol pi = s.add("PI");
-        pi.setValue(new Number(Math.PI));
+        pi.setValue(Number.of(Math.PI));
 
-        s.addPrim("numberp", new Prim.Handler() {
+        s.addPrim("numberp", new Prim.Strict(1, 1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primNumberp(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primNumberp(interp, a);
             }
         });
-        s.addPrim("=", new Prim.Handler() {
+        s.addPrim("=", new Prim.Strict(2, 2, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primEQ(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return primEQ(interp, (Number) a, (Number) b);
             }
         });
-        s.addPrim("<", new Prim.Handler() {
+        s.addPrim("<", new Prim.Strict(2, 2, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primLT(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return primLT(interp, (Number) a, (Number) b);
             }
         });
-        s.addPrim("<=", new Prim.Handler() {
+        s.addPrim("<=", new Prim.Strict(2, 2, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primLTE(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return primLTE(interp, (Number) a, (Number) b);
             }
         });
-        s.addPrim(">", new Prim.Handler() {
+        s.addPrim(">", new Prim.Strict(2, 2, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primGT(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return primGT(interp, (Number) a, (Number) b);
             }
         });
-        s.addPrim(">=", new Prim.Handler() {
+        s.addPrim(">=", new Prim.Strict(2, 2, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primGTE(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return primGTE(interp, (Number) a, (Number) b);
             }
         });
-        s.addPrim("+", new Prim.Handler() {
+        s.addPrim("+", new Prim.Strict(2, -1, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primPlus(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return add((Number) a, (Number) b);
+            }
+
+            @Override
+            public Exp callN(Lisp interp, Exp[] args) throws Exception {
+                return primPlus(interp, args);
             }
         });
-        s.addPrim("-", new Prim.Handler() {
+        s.addPrim("-", new Prim.Strict(2, -1, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primMinus(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return sub((Number) a, (Number) b);
+            }
+
+            @Override
+            public Exp callN(Lisp interp, Exp[] args) throws Exception {
+                return primMinus(interp, args);
             }
         });
-        s.addPrim("*", new Prim.Handler() {
+        s.addPrim("*", new Prim.Strict(2, -1, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primMult(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return mul((Number) a, (Number) b);
+            }
+
+            @Override
+            public Exp callN(Lisp interp, Exp[] args) throws Exception {
+                return primMult(interp, args);
             }
         });
-        s.addPrim("/", new Prim.Handler() {
+        s.addPrim("/", new Prim.Strict(2, -1, Exp.Type.NUMBER) {
+
+            @Override
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return div((Number) a, (Number) b);
+            }
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primDiv(interp, args, env, level);
+            public Exp callN(Lisp interp, Exp[] args) throws Exception {
+                return primDiv(interp, args);
             }
         });
-        s.addPrim("int", new Prim.Handler() {
+        s.addPrim("int", new Prim.Strict(1, 1, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primInt(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primInt(interp, (Number) a);
             }
         });
-        s.addPrim("frac", new Prim.Handler() {
+        s.addPrim("frac", new Prim.Strict(1, 1, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primFrac(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primFrac(interp, (Number) a);
             }
         });
-        s.addPrim("sqrt", new Prim.Handler() {
+        s.addPrim("sqrt", new Prim.Strict(1, 1, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primSqrt(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primSqrt(interp, (Number) a);
             }
         });
-        s.addPrim("rand", new Prim.Handler() {
+        s.addPrim("rand", new Prim.Strict(0, 2, Exp.Type.NUMBER) {
+
+            @Override
+            public Exp call0(Lisp interp) throws Exception {
+                return Number.of(Math.random());
+            }
+
+            @Override
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                throw new Exception("wrong number of arguments");
+            }
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primRand(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return primRand(interp, (Number) a, (Number) b);
             }
         });
-        s.addPrim("sin", new Prim.Handler() {
+        s.addPrim("sin", new Prim.Strict(1, 1, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primSin(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primSin(interp, (Number) a);
             }
         });
-        s.addPrim("cos", new Prim.Handler() {
+        s.addPrim("cos", new Prim.Strict(1, 1, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primCos(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primCos(interp, (Number) a);
             }
         });
-        s.addPrim("tan", new Prim.Handler() {
+        s.addPrim("tan", new Prim.Strict(1, 1, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primTan(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primTan(interp, (Number) a);
             }
         });
     }
 
-    private static Exp primNumberp(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp e = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primNumberp(Lisp interp, Exp e) throws Exception {
         if (e.type() == Exp.Type.NUMBER)
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primEQ(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Number b = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        if (a.value() == b.value())
+    private static Exp primEQ(Lisp interp, Number a, Number b) throws Exception {
+        if (numEquals(a, b))
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primLT(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Number b = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        if (a.value() < b.value())
+    private static Exp primLT(Lisp interp, Number a, Number b) throws Exception {
+        if (less(a, b))
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primLTE(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Number b = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        if (a.value() <= b.value())
+    private static Exp primLTE(Lisp interp, Number a, Number b) throws Exception {
+        if (lessEquals(a, b))
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primGT(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Number b = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        if (a.value() > b.value())
+    private static Exp primGT(Lisp interp, Number a, Number b) throws Exception {
+        if (less(b, a))
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primGTE(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Number b = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        if (a.value() >= b.value())
+    private static Exp primGTE(Lisp interp, Number a, Number b) throws Exception {
+        if (lessEquals(b, a))
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primPlus(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Number b = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        double sum = a.value() + b.value();
-        while (!argList.empty()) {
-            a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-            sum += a.value();
-        }
-        return new Number(sum);
-    }
-
-    private static Exp primMinus(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        if (args == List.Nil)
-            return new Number(-a.value());
-        Number b = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        double dif = a.value() - b.value();
-        while (!argList.empty()) {
-            a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-            dif -= a.value();
-        }
-        return new Number(dif);
+    private static Exp primPlus(Lisp interp, Exp[] args) throws Exception {
+        Number sum = (Number) args[0];
+        for (int i = 1; i < args.length; i++)
+            sum = add(sum, (Number) args[i]);
+        return sum;
     }
 
-    private static Exp primMult(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Number b = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        double prod = a.value() * b.value();
-        while (!argList.empty()) {
-            a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-            prod *= a.value();
-        }
-        return new Number(prod);
+    private static Exp primMinus(Lisp interp, Exp[] args) throws Exception {
+        Number dif = (Number) args[0];
+        for (int i = 1; i < args.length; i++)
+            dif = sub(dif, (Number) args[i]);
+        return dif;
     }
 
-    private static Exp primDiv(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Number b = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        double quo = a.value() / b.value();
-        while (!argList.empty()) {
-            a = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-            quo /= a.value;
-        }
-        return new Number(quo);
+    private static Exp primMult(Lisp interp, Exp[] args) throws Exception {
+        Number prod = (Number) args[0];
+        for (int i = 1; i < args.length; i++)
+            prod = mul(prod, (Number) args[i]);
+        return prod;
     }
 
-    private static Exp primInt(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        return new Number((double) (long) a.value());
+    private static Exp primDiv(Lisp interp, Exp[] args) throws Exception {
+        Number quo = (Number) args[0];
+        for (int i = 1; i < args.length; i++)
+            quo = div(quo, (Number) args[i]);
+        return quo;
     }
 
-    private static Exp primFrac(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        return new Number(a.value() - (long) a.value());
+    private static Exp primInt(Lisp interp, Number a) throws Exception {
+        if (a.integer())
+            return a;
+        if (Double.isNaN(a.value()) || Double.isInfinite(a.value()))
+            throw new Exception("bad number");
+        return of(a.bigValue());
     }
 
-    private static Exp primSqrt(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        return new Number(Math.sqrt(a.value()));
+    private static Exp primFrac(Lisp interp, Number a) throws Exception {
+        if (a.integer())
+            return of(0L);
+        return of(a.value() - (long) a.value());
     }
 
-    private static Exp primRand(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        if (args == List.Nil)
-            return new Number(Math.random());
-        else {
-            Number s = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-            Number e = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-            int start = (int) s.value();
-            int end = (int) e.value();
-            if (start < 0 || end <= start)
-                throw new Exception("bad arguments");
-            return new Number(Math.random() * (end - start + 1));
-        }
+    private static Exp primSqrt(Lisp interp, Number a) throws Exception {
+        return of(Math.sqrt(a.value()));
+    }
+
+    private static Exp primRand(Lisp interp, Number s, Number e) throws Exception {
+        int start = s.intValue();
+        int end = e.intValue();
+        if (start < 0 || end <= start)
+            throw new Exception("bad arguments");
+        return of(Math.random() * (end - start + 1));
     }
 
-    private static Exp primSin(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        return new Number(Math.sin(a.value() * Math.PI / 180.0));
+    private static Exp primSin(Lisp interp, Number a) throws Exception {
+        return of(sin(a.value()));
+    }
+
+    private static Exp primCos(Lisp interp, Number a) throws Exception {
+        return of(cos(a.value()));
+    }
+
+    private static Exp primTan(Lisp interp, Number a) throws Exception {
+        return of(tan(a.value()));
+    }
+
+    // the trigonometric functions take degrees, the Jit calls these too
+
+    public static double sin(double degrees) {
+        return Math.sin(degrees * Math.PI / 180.0);
     }
 
-    private static Exp primCos(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        return new Number(Math.cos(a.value() * Math.PI / 180.0));
+    public static double cos(double degrees) {
+        return Math.cos(degrees * Math.PI / 180.0);
     }
 
-    private static Exp primTan(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Number a = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        return new Number(Math.tan(a.value() * Math.PI / 180.0));
+    public static double tan(double degrees) {
+        return Math.tan(degrees * Math.PI / 180.0);
     }
 }
@@ -0,0 +1,437 @@
+/* Project: LispLib
+ * File:    Optimizer.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.*;
+
+/** This class represents an Optimizer that rewrites the body of a function
+ * defined by defun into one doing the same with less work.
+ *
+ * Calls of pure primitives whose arguments are all constants, like
+ * (* 2 PI), are replaced by their value. Calls of small global functions
+ * that do not call themselves are replaced by a let binding the arguments
+ * around the body of the function, the backtrace of an error shows that let
+ * instead of the call. Branches of if and cond that a constant
+ * test can never reach are dropped. Constants are numbers, strings, quoted
+ * data, T and the prelude constants NIL and PI. Forms whose arguments are
+ * not simply evaluated, like macro calls, lambda and for, are left as they
+ * are.
+ *
+ * A rewrite assumes the symbols it involves keep their values: the
+ * operator of a folded call, a constant, an inlined function or the
+ * special form of a pruned branch. They are the guards of the optimized
+ * body, rebinding any of them through Symbol.setValue (defun, setq) or
+ * tracing it puts back the original body for the following calls, calls
+ * already running finish in the body they started with. Functions that
+ * capture variables are not optimized, and the SHALLOW engine, whose
+ * variables are bound dynamically, always runs the original body.
+ *
+ * @author Layne
+ */
+public class Optimizer {
+
+    // the largest body, in atoms, of a function that gets inlined
+    private static final int INLINE_SIZE = 24;
+
+    private SymbolTable symTable;
+    private Symbol IF, COND, LET, SETQ, PI, NIL, T, QUOTE;
+    private Symbol[] opaque;
+    // the values the special forms and constants started with
+    private Map<Symbol, Exp> originals = new HashMap<Symbol, Exp>();
+    private Set<Prim> pure = new HashSet<Prim>();
+    private Set<Prim> evaluating = new HashSet<Prim>();
+
+    public Optimizer(SymbolTable symTable) {
+        this.symTable = symTable;
+        IF = original("IF");
+        COND = original("COND");
+        LET = original("LET");
+        SETQ = original("SETQ");
+        PI = original("PI");
+        NIL = original("NIL");
+        T = original("T");
+        QUOTE = original("QUOTE");
+        // an inlined body using these would see the caller's variables
+        opaque = new Symbol[]{symTable.add("LAMBDA"), symTable.add("DEFUN"),
+            symTable.add("DEMACRO"), symTable.add("EVAL")};
+        for (String name : new String[]{"+", "-", "*", "/", "=", "<", "<=", ">", ">=",
+            "int", "frac", "sqrt", "sin", "cos", "tan", "numberp", "equal", "not", "null",
+            "atom", "listp", "symbolp", "stringp", "car", "cdr", "length", "nth", "assoc",
+            "str", "strlen", "substr", "indexof"})
+            pure.add((Prim) symTable.add(name).value());
+        // primitives that are no Strict ones but evaluate all their arguments
+        for (String name : new String[]{"while", "and", "write", "writeln"})
+            evaluating.add((Prim) symTable.add(name).value());
+    }
+
+    private Symbol original(String name) {
+        Symbol s = symTable.add(name);
+        originals.put(s, s.value());
+        return s;
+    }
+
+    /** Gives f, just defined by defun, an optimized body if anything in its
+     * body can be simplified
+     */
+    public void optimize(Lisp interp, Function f) {
+        if (f.macro() || f.captures().length > 0)
+            return;
+        ArrayList<Symbol> locals = new ArrayList<Symbol>(Arrays.asList(f.names()));
+        Set<Symbol> guards = new LinkedHashSet<Symbol>();
+        List body = f.source();
+        if (!properList(body))
+            return;
+        List optimized = optimizeAll(interp, body, locals, guards);
+        if (optimized != body)
+            f.setOptimized(optimized, guards.toArray(new Symbol[guards.size()]));
+    }
+
+    /** Returns the list of the optimized expressions, exps itself if none
+     * of them changed
+     */
+    private List optimizeAll(Lisp interp, List exps, ArrayList<Symbol> locals, Set<Symbol> guards) {
+        if (exps == List.Nil)
+            return exps;
+        Exp head = optimize(interp, exps.head(), locals, guards);
+        List tail = optimizeAll(interp, exps.tail(), locals, guards);
+        if (head == exps.head() && tail == exps.tail())
+            return exps;
+        return new List(head, tail);
+    }
+
+    private Exp optimize(Lisp interp, Exp e, ArrayList<Symbol> locals, Set<Symbol> guards) {
+        if (e.type() == Exp.Type.SYMBOL) {
+            if ((e == PI || e == NIL) && !locals.contains(e) && unchanged((Symbol) e)) {
+                guards.add((Symbol) e);
+                return ((Symbol) e).value();
+            }
+            return e;
+        }
+        if (e.type() != Exp.Type.LIST || e == List.Nil || !properList((List) e))
+            return e;
+        List form = (List) e;
+        // the value of a local operator is only known at run time
+        if (form.head().type() != Exp.Type.SYMBOL || locals.contains(form.head()))
+            return e;
+        Symbol op = (Symbol) form.head();
+        Exp value = op.value();
+        if (value == null)
+            return e;
+        if (value.type() == Exp.Type.FUNCTION) {
+            Function f = (Function) value;
+            if (f.macro())
+                return e;
+            List args = optimizeAll(interp, form.tail(), locals, guards);
+            Exp inlined = inline(op, f, args, locals, guards);
+            if (inlined != null)
+                return inlined;
+            return rebuild(form, args, guards);
+        }
+        if (value.type() != Exp.Type.PRIMATIVE)
+            return e;
+        Prim prim = (Prim) value;
+        if (op == IF && unchanged(op))
+            return optimizeIf(interp, form, locals, guards);
+        if (op == COND && unchanged(op))
+            return optimizeCond(interp, form, locals, guards);
+        if (op == LET && unchanged(op))
+            return optimizeLet(interp, form, locals, guards);
+        if (op == SETQ && unchanged(op)) {
+            if (form.length() != 3)
+                return e;
+            Exp v = optimize(interp, form.get(2), locals, guards);
+            if (v == form.get(2))
+                return e;
+            guards.add(op);
+            return new List(op, new List(form.get(1), new List(v, List.Nil)));
+        }
+        if (!(prim.handler instanceof Prim.Strict) && !evaluating.contains(prim))
+            return e;
+        List args = optimizeAll(interp, form.tail(), locals, guards);
+        Exp folded = fold(interp, prim, args, locals, guards);
+        if (folded != null) {
+            guards.add(op);
+            return folded;
+        }
+        return rebuild(form, args, guards);
+    }
+
+    /** Returns the form with new arguments, the form itself if they are the
+     * same
+     */
+    private static Exp rebuild(List form, List args, Set<Symbol> guards) {
+        if (args == form.tail())
+            return form;
+        guards.add((Symbol) form.head());
+        return new List(form.head(), args);
+    }
+
+    private Exp optimizeIf(Lisp interp, List form, ArrayList<Symbol> locals, Set<Symbol> guards) {
+        // any other length is an error of the if primitive
+        if (form.length() != 4)
+            return form;
+        List args = optimizeAll(interp, form.tail(), locals, guards);
+        Exp c = constant(args.head(), locals, guards);
+        if (c == null)
+            return rebuild(form, args, guards);
+        guards.add(IF);
+        if (c == T)
+            return args.get(1);
+        return args.get(2);
+    }
+
+    private Exp optimizeCond(Lisp interp, List form, ArrayList<Symbol> locals, Set<Symbol> guards) {
+        ArrayList<List> clauses = new ArrayList<List>();
+        boolean changed = false;
+        for (List l = form.tail(); l != List.Nil; l = l.tail()) {
+            Exp c = l.head();
+            if (c.type() != Exp.Type.LIST || c == List.Nil || !properList((List) c))
+                return form;
+        }
+        for (List l = form.tail(); l != List.Nil; l = l.tail()) {
+            List clause = (List) l.head();
+            List opt = optimizeAll(interp, clause, locals, guards);
+            changed |= opt != clause;
+            Exp c = constant(opt.head(), locals, guards);
+            if (c != null && c != T) {
+                changed = true;
+                continue;
+            }
+            clauses.add(opt);
+            if (c != null) {
+                // no clause after one whose test is T is reached
+                changed |= l.tail() != List.Nil;
+                break;
+            }
+        }
+        if (!changed)
+            return form;
+        guards.add(COND);
+        if (clauses.isEmpty())
+            return List.Nil;
+        List first = clauses.get(0);
+        if (constant(first.head(), locals, guards) != null && first.tail().length() <= 1)
+            return first.tail() == List.Nil ? List.Nil : first.tail().head();
+        List r = List.Nil;
+        for (int i = clauses.size() - 1; i >= 0; i--)
+            r = new List(clauses.get(i), r);
+        return new List(COND, r);
+    }
+
+    private Exp optimizeLet(Lisp interp, List form, ArrayList<Symbol> locals, Set<Symbol> guards) {
+        if (form.length() < 2 || form.get(1).type() != Exp.Type.LIST || !properList((List) form.get(1)))
+            return form;
+        int mark = locals.size();
+        try {
+            // each initial value sees the variables before it
+            List vars = (List) form.get(1);
+            ArrayList<Exp> defs = new ArrayList<Exp>();
+            boolean changed = false;
+            for (List l = vars; l != List.Nil; l = l.tail()) {
+                Exp v = l.head();
+                if (v.type() == Exp.Type.SYMBOL) {
+                    defs.add(v);
+                    locals.add((Symbol) v);
+                    continue;
+                }
+                if (v.type() != Exp.Type.LIST || v == List.Nil || !properList((List) v)
+                        || ((List) v).length() != 2 || ((List) v).head().type() != Exp.Type.SYMBOL)
+                    return form;
+                List def = (List) v;
+                Exp init = optimize(interp, def.get(1), locals, guards);
+                if (init != def.get(1)) {
+                    def = new List(def.head(), new List(init, List.Nil));
+                    changed = true;
+                }
+                defs.add(def);
+                locals.add((Symbol) def.head());
+            }
+            List body = optimizeAll(interp, form.tail().tail(), locals, guards);
+            if (!changed && body == form.tail().tail())
+                return form;
+            guards.add(LET);
+            List r = List.Nil;
+            for (int i = defs.size() - 1; i >= 0; i--)
+                r = new List(defs.get(i), r);
+            return new List(LET, new List(r, body));
+        }
+        finally {
+            while (locals.size() > mark)
+                locals.remove(locals.size() - 1);
+        }
+    }
+
+    /** Returns the value of a call of a pure primitive on constants as an
+     * expression, or null. The symbols the arguments and the expression
+     * rely on are added to guards only if it is folded.
+     */
+    private Exp fold(Lisp interp, Prim prim, List args, ArrayList<Symbol> locals, Set<Symbol> guards) {
+        if (!pure.contains(prim))
+            return null;
+        int n = args.length();
+        Prim.Strict s = prim.strict(n);
+        if (s == null)
+            return null;
+        Set<Symbol> used = new HashSet<Symbol>();
+        Exp[] values = new Exp[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = constant(args.head(), locals, used);
+            if (values[i] == null)
+                return null;
+            args = args.tail();
+        }
+        Exp value;
+        try {
+            for (int i = 0; i < n; i++)
+                s.check(i, values[i]);
+            value = s.call(interp, values);
+        }
+        catch (Exception err) {
+            // the call fails at run time, with the error where it belongs
+            return null;
+        }
+        Exp r;
+        switch (value.type()) {
+            case NUMBER:
+            case STRING:
+                r = value;
+                break;
+            case SYMBOL:
+                if (value == T && !locals.contains(T) && unchanged(T)) {
+                    used.add(T);
+                    r = value;
+                    break;
+                }
+                r = quote(value, locals, used);
+                break;
+            case LIST:
+                r = value == List.Nil ? value : quote(value, locals, used);
+                break;
+            default:
+                r = null;
+        }
+        if (r != null)
+            guards.addAll(used);
+        return r;
+    }
+
+    /** Returns value quoted, null if QUOTE cannot be relied on here */
+    private Exp quote(Exp value, ArrayList<Symbol> locals, Set<Symbol> guards) {
+        if (locals.contains(QUOTE) || !unchanged(QUOTE))
+            return null;
+        guards.add(QUOTE);
+        return new List(QUOTE, new List(value, List.Nil));
+    }
+
+    /** Returns the value of e if it is a constant, else null. T and QUOTE
+     * are only constants while they keep their values, they are added to
+     * guards when e relies on them.
+     */
+    private Exp constant(Exp e, ArrayList<Symbol> locals, Set<Symbol> guards) {
+        switch (e.type()) {
+            case NUMBER:
+            case STRING:
+                return e;
+            case SYMBOL:
+                if (e != T || locals.contains(e) || !unchanged(T))
+                    return null;
+                guards.add(T);
+                return e;
+            case LIST:
+                if (e == List.Nil)
+                    return e;
+                List form = (List) e;
+                if (form.head() == QUOTE && !locals.contains(form.head())
+                        && unchanged(QUOTE) && properList(form) && form.length() == 2) {
+                    guards.add(QUOTE);
+                    return form.get(1);
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /** Returns a let binding the arguments around the body of f, if f is a
+     * small function that can be called that way, else null
+     */
+    private Exp inline(Symbol op, Function f, List args, ArrayList<Symbol> locals, Set<Symbol> guards) {
+        if (f.arity() < 0 || f.arity() != args.length() || f.captures().length > 0
+                || op.trace() || !unchanged(LET))
+            return null;
+        List body = f.body();
+        if (body == List.Nil || size(body) > INLINE_SIZE)
+            return null;
+        ArrayList<Symbol> symbols = new ArrayList<Symbol>();
+        collect(body, symbols);
+        if (symbols.contains(op))
+            return null;
+        java.util.List<Symbol> names = Arrays.asList(f.names());
+        for (Symbol s : opaque) {
+            if (symbols.contains(s))
+                return null;
+        }
+        // the globals of the body must not be variables where it goes,
+        // nor the arguments refer to variables named like the parameters
+        for (Symbol s : symbols) {
+            if (!names.contains(s) && locals.contains(s))
+                return null;
+        }
+        ArrayList<Symbol> used = new ArrayList<Symbol>();
+        collect(args, used);
+        for (Symbol s : names) {
+            if (used.contains(s))
+                return null;
+        }
+        List defs = List.Nil;
+        Symbol[] params = f.names();
+        for (int i = params.length - 1; i >= 0; i--)
+            defs = new List(new List(params[i], new List(args.get(i), List.Nil)), defs);
+        guards.add(op);
+        guards.add(LET);
+        Symbol[] inherited = f.guards();
+        if (inherited != null)
+            guards.addAll(Arrays.asList(inherited));
+        return new List(LET, new List(defs, body));
+    }
+
+    /** Returns the number of atoms in e, stopping early past INLINE_SIZE */
+    private static int size(Exp e) {
+        if (e.type() != Exp.Type.LIST || e == List.Nil)
+            return 1;
+        int n = 0;
+        while (e.type() == Exp.Type.LIST && e != List.Nil) {
+            n += size(((List) e).head());
+            if (n > INLINE_SIZE)
+                return n;
+            e = ((List) e).tailExp();
+        }
+        return e == List.Nil ? n : n + 1;
+    }
+
+    /** Adds the symbols in e to symbols */
+    private static void collect(Exp e, ArrayList<Symbol> symbols) {
+        while (e.type() == Exp.Type.LIST && e != List.Nil) {
+            collect(((List) e).head(), symbols);
+            e = ((List) e).tailExp();
+        }
+        if (e.type() == Exp.Type.SYMBOL && !symbols.contains(e))
+            symbols.add((Symbol) e);
+    }
+
+    /** Returns true if s still has the value it started with */
+    private boolean unchanged(Symbol s) {
+        return s.value() != null && s.value() == originals.get(s);
+    }
+
+    private static boolean properList(List n) {
+        while (n != List.Nil) {
+            if (n.tailExp().type() != Exp.Type.LIST)
+                return false;
+            n = (List) n.tailExp();
+        }
+        return true;
+    }
+}
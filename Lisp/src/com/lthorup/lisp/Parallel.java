@@ -0,0 +1,199 @@
+/* Project: LispLib
+ * File:    Parallel.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.concurrent.*;
+
+/** This class represents the Parallel primitives.
+ *
+ * (future exp) starts evaluating exp in a task and returns a Future,
+ * (touch x) waits for the value of a Future and returns anything else as
+ * it is. (pcall f args...) evaluates the arguments in parallel before
+ * calling f, (pmap f seq) calls f on the elements of a list or an array in
+ * parallel and returns the results in a sequence of the same kind.
+ *
+ * Tasks run on the executor of the interpreter, each on an interpreter
+ * forked from it with its own VM and Bindings. A task sees the globals
+ * and the local variables around it, and the rules for what it may change
+ * are:
+ * - it may not change a global: setq of a global, defun, demacro, trace
+ *   and untrace fail with an error in a task.
+ * - it may change its own local variables. Local variables it shares with
+ *   other tasks or with the code that started it, and arrays, can be
+ *   changed too, but without any synchronization, so only one of them
+ *   should change any one variable or array element.
+ * - output from tasks running at the same time may be interleaved.
+ *
+ * Errors in a task are raised again by touch. Steps, conses and time of
+ * all tasks count against the budget of the interpreter they came from
+ * and stopping it stops them too. The SHALLOW engine keeps local values
+ * in the symbols themselves, so it runs each task right away in the
+ * calling thread, under the same rules.
+ *
+ * @author Layne
+ */
+public class Parallel {
+
+    public static void addPrims(SymbolTable s) {
+        s.addPrim("future", new Prim.Handler() {
+
+            @Override
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return primFuture(interp, args, env, level);
+            }
+        });
+        s.addPrim("touch", new Prim.Strict(1, 1, Exp.Type.ANY) {
+
+            @Override
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                if (a.type() == Exp.Type.FUTURE)
+                    return ((Future) a).touch();
+                return a;
+            }
+        });
+        s.addPrim("pcall", new Prim.Handler() {
+
+            @Override
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return primPcall(interp, args, env, level);
+            }
+        });
+        s.addPrim("pmap", new Prim.Handler() {
+
+            @Override
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return primPmap(interp, args, env, level);
+            }
+        });
+    }
+
+    /** Starts a Future for task */
+    static Future spawn(Lisp interp, Future.Task task) {
+        if (interp.engine() == Lisp.Engine.SHALLOW) {
+            Future f = new Future(interp, task);
+            boolean outer = interp.task();
+            interp.setTask(true);
+            try {
+                f.run();
+            }
+            finally {
+                interp.setTask(outer);
+            }
+            return f;
+        }
+        Future f = new Future(interp.fork(), task);
+        try {
+            interp.executor().execute(f);
+        }
+        catch (RejectedExecutionException err) {
+            // touch runs it
+        }
+        return f;
+    }
+
+    private static Exp primFuture(Lisp interp, List args, Frame env, int level) throws Exception {
+        ArgList argList = new ArgList(interp, args);
+        final Exp exp = argList.next(Exp.Type.ANY, null, true, level);
+        final Frame scope = env;
+        final int depth = level;
+        return spawn(interp, new Future.Task() {
+
+            @Override
+            public Exp run(Lisp interp) throws Exception {
+                return interp.eval(exp, scope, depth);
+            }
+        });
+    }
+
+    private static Exp primPcall(Lisp interp, List args, Frame env, int level) throws Exception {
+        ArgList argList = new ArgList(interp, args);
+        Exp op = argList.next(Exp.Type.ANY, env, false, level);
+        List rest = argList.rest();
+        int n = rest.length();
+        Future[] futures = new Future[n];
+        Exp[] values = new Exp[n];
+        final Frame scope = env;
+        final int depth = level;
+        // the last argument is evaluated here while the others run
+        for (int i = 0; i < n - 1; i++) {
+            final Exp exp = rest.head();
+            futures[i] = spawn(interp, new Future.Task() {
+
+                @Override
+                public Exp run(Lisp interp) throws Exception {
+                    return interp.eval(exp, scope, depth);
+                }
+            });
+            rest = rest.tail();
+        }
+        if (n > 0)
+            values[n - 1] = interp.eval(rest.head(), env, level);
+        for (int i = 0; i < n - 1; i++)
+            values[i] = futures[i].touch();
+        return interp.call(op, values, level);
+    }
+
+    private static Exp primPmap(Lisp interp, List args, Frame env, int level) throws Exception {
+        ArgList argList = new ArgList(interp, args);
+        final Exp op = argList.next(Exp.Type.ANY, env, false, level);
+        Exp seq = argList.next(Exp.Type.ANY, env, true, level);
+        final Exp[] items;
+        if (seq.type() == Exp.Type.LIST) {
+            List l = (List) seq;
+            items = new Exp[l.length()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = l.head();
+                l = l.tail();
+            }
+        }
+        else if (seq.type() == Exp.Type.ARRAY) {
+            Array a = (Array) seq;
+            items = new Exp[a.size()];
+            for (int i = 0; i < items.length; i++)
+                items[i] = a.get(i);
+        }
+        else
+            throw new Exception("list expected");
+
+        // a few chunks per thread so the threads stay busy to the end
+        final Exp[] results = new Exp[items.length];
+        final int depth = level;
+        int chunks = Math.min(items.length, 4 * parallelism(interp.executor()));
+        Future[] futures = new Future[chunks];
+        for (int c = 0; c < chunks; c++) {
+            final int from = (int) ((long) items.length * c / chunks);
+            final int to = (int) ((long) items.length * (c + 1) / chunks);
+            futures[c] = spawn(interp, new Future.Task() {
+
+                @Override
+                public Exp run(Lisp interp) throws Exception {
+                    for (int i = from; i < to; i++)
+                        results[i] = interp.call(op, new Exp[]{items[i]}, depth);
+                    return List.Nil;
+                }
+            });
+        }
+        for (Future f : futures)
+            f.touch();
+
+        if (seq.type() == Exp.Type.ARRAY) {
+            Array a = new Array(results.length);
+            for (int i = 0; i < results.length; i++)
+                a.set(i, results[i]);
+            return a;
+        }
+        interp.countConses(results.length);
+        Exp r = List.Nil;
+        for (int i = results.length - 1; i >= 0; i--)
+            r = new List(results[i], r);
+        return r;
+    }
+
+    private static int parallelism(Executor executor) {
+        if (executor instanceof ForkJoinPool)
+            return ((ForkJoinPool) executor).getParallelism();
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
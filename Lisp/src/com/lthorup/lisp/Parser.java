@@ -4,171 +4,372 @@
  */
 package com.lthorup.lisp;
 
+import java.io.*;
+import java.math.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
 
 /** This class represents a Parser
+ *
+ * The Parser reads one top level expression at a time from its input, a
+ * String, a Reader, an InputStream or a ByteBuffer holding UTF-8 text, so
+ * an expression can be evaluated before the rest of the input has been
+ * read. It looks one character ahead and nested lists and arrays are kept
+ * on a stack of their own, so their length and depth are not limited by
+ * the Java stack. Symbols are interned straight from the characters of the
+ * token, and bytes are decoded one character at a time as they are read,
+ * so a mapped file is never copied.
  *
  * @author Layne
  */
 public class Parser {
 
-    private String input;
-    private int inputNext;
+    private static final int NONE = -2;
+    private static final int EOF = -1;
+
+    // the input is one of these
+    private CharSequence text;
+    private int textNext;
+    private Reader reader;
+    private char[] buf;
+    private int bufNext, bufEnd;
+    private ByteBuffer bytes;
+    // the second half of a character read from bytes that needs two chars
+    private int low = NONE;
+    // the character looked ahead at, NONE if there is none
+    private int ahead = NONE;
+
+    // the characters of the current token
+    private char[] token = new char[64];
+    private CharBuffer tokenChars = CharBuffer.wrap(token);
+    private int tokenLength;
+
     private SymbolTable symTable;
     private Symbol QUOTE;
     private Exp tokenValue = null;
+    private ArrayList<Open> stack = new ArrayList<Open>();
 
     private enum Token {
 
         END, LP, RP, LB, RB, DOT, QUOTE, SYMBOL, NUMBER, STRING
     }
 
+    // what an Open expression expects next
+    private static final int LIST = 0;      // an element or the end of a list
+    private static final int ARRAY = 1;     // an element or the end of an array
+    private static final int QUOTED = 2;    // the expression a quote quotes
+    private static final int TAIL = 3;      // the expression after the dot of a list
+    private static final int CLOSE = 4;     // the end of a list after its tail
+
     public Parser(SymbolTable symTable) {
         this.symTable = symTable;
         QUOTE = symTable.add("QUOTE");
     }
 
+    /** Returns all the expressions in input */
     public ArrayList parse(String input) throws Exception {
-        this.input = input;
-        inputNext = 0;
+        open(input);
         ArrayList<Exp> expList = new ArrayList<Exp>();
-        Exp e = parseExp();
+        Exp e = read();
         while (e != null) {
             expList.add(e);
-            e = parseExp();
+            e = read();
         }
         return expList;
     }
 
-    private Exp parseExp() throws Exception {
-        Token t = nextToken(true);
-        if (t == Token.END) {
-            return null;
-        }
-        if (t == Token.SYMBOL || t == Token.NUMBER || t == Token.STRING) {
-            return tokenValue;
-        }
-        if (t == Token.LP) {
-            return parseList();
-        }
-        if (t == Token.LB) {
-            List n = (List) parseArray();
-            //if (n == List.Nil)
-            //	throw new Exception("empty array");
-            Array a = new Array(n.length());
-            int i = 0;
-            while (n != List.Nil) {
-                a.set(i++, n.head());
-                n = n.tail();
+    public void open(CharSequence input) {
+        reset();
+        text = input;
+        textNext = 0;
+    }
+
+    public void open(Reader input) {
+        reset();
+        reader = input;
+        if (buf == null)
+            buf = new char[8192];
+        bufNext = 0;
+        bufEnd = 0;
+    }
+
+    public void open(InputStream input) {
+        open(new InputStreamReader(input, StandardCharsets.UTF_8));
+    }
+
+    /** Reads UTF-8 text from the position to the limit of input */
+    public void open(ByteBuffer input) {
+        reset();
+        bytes = input;
+    }
+
+    private void reset() {
+        text = null;
+        reader = null;
+        bytes = null;
+        low = NONE;
+        ahead = NONE;
+        stack.clear();
+    }
+
+    /** Returns the next expression of the input, null at its end */
+    public Exp read() throws Exception {
+        stack.clear();
+        while (true) {
+            Token t = nextToken();
+            Open top = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+            Exp e = null;
+            if (top != null && top.expects == CLOSE) {
+                if (t != Token.RP)
+                    throw new Exception("bad list");
+                stack.remove(stack.size() - 1);
+                e = top.first;
+            }
+            else if (top != null && top.expects == LIST && t == Token.RP) {
+                stack.remove(stack.size() - 1);
+                e = top.first;
+            }
+            else if (top != null && top.expects == LIST && t == Token.DOT)
+                top.expects = TAIL;
+            else if (top != null && top.expects == ARRAY && t == Token.RB) {
+                stack.remove(stack.size() - 1);
+                e = array(top.first);
+            }
+            else if (t == Token.END) {
+                if (top == null)
+                    return null;
+                if (top.expects == ARRAY)
+                    throw new Exception("bad array");
+                if (top.expects == QUOTED)
+                    throw new Exception("bad quote expression");
+                throw new Exception("bad list");
+            }
+            else if (t == Token.SYMBOL || t == Token.NUMBER || t == Token.STRING)
+                e = tokenValue;
+            else if (t == Token.LP)
+                stack.add(new Open(LIST));
+            else if (t == Token.LB)
+                stack.add(new Open(ARRAY));
+            else if (t == Token.QUOTE)
+                stack.add(new Open(QUOTED));
+            else
+                throw new Exception("bad expression");
+
+            // hand a finished expression to the ones it is part of
+            while (e != null) {
+                if (stack.isEmpty())
+                    return e;
+                top = stack.get(stack.size() - 1);
+                if (top.expects == QUOTED) {
+                    stack.remove(stack.size() - 1);
+                    e = new List(QUOTE, new List(e, List.Nil));
+                }
+                else {
+                    top.add(e);
+                    e = null;
+                }
             }
-            return a;
-        }
-        if (t == Token.QUOTE) {
-            Exp body = parseExp();
-            if (body == null)
-                throw new Exception("bad quote expression");
-            return new List(QUOTE, new List(body, List.Nil));
         }
-        throw new Exception("bad expression");
     }
 
-    private Exp parseList() throws Exception {
-        Token t = nextToken(false);
-        if (t == Token.RP) {
-            nextToken(true);
-            return List.Nil;
-        }
-        else if (t == Token.DOT) {
-            nextToken(true);
-            Exp tail = parseExp();
-            if (tail == null)
-                throw new Exception("bad list");
-            t = nextToken(true);
-            if (t != Token.RP)
-                throw new Exception("bad list");
-            return tail;
+    private static Exp array(Exp elements) throws Exception {
+        List n = (List) elements;
+        Array a = new Array(n.length());
+        int i = 0;
+        while (n != List.Nil) {
+            a.set(i++, n.head());
+            n = n.tail();
         }
-        Exp head = parseExp();
-        if (head == null)
-            throw new Exception("bad list");
-        return new List(head, parseList());
+        return a;
     }
 
-    private Exp parseArray() throws Exception {
-        Token t = nextToken(false);
-        if (t == Token.RB) {
-            nextToken(true);
-            return List.Nil;
+    /** A list, array or quote whose end has not been read yet */
+    private static class Open {
+
+        int expects;
+        // the elements so far, the list is built from front to back
+        Exp first = List.Nil;
+        List last;
+
+        Open(int expects) {
+            this.expects = expects;
+        }
+
+        void add(Exp e) {
+            if (expects == TAIL) {
+                if (last == null)
+                    first = e;
+                else
+                    last.setTail(e);
+                expects = CLOSE;
+                return;
+            }
+            List cell = new List(e, List.Nil);
+            if (last == null)
+                first = cell;
+            else
+                last.setTail(cell);
+            last = cell;
         }
-        Exp head = parseExp();
-        if (head == null)
-            throw new Exception("bad array");
-        return new List(head, parseArray());
     }
 
-    private Token nextToken(boolean remove) throws Exception {
+    private Token nextToken() throws Exception {
         // find start of next token
-        String s = input;
-        int i = inputNext;
+        int c = next();
         while (true) {
-            while (i < s.length() && Character.isWhitespace(s.charAt(i)))
-                i++;
-            if (i >= s.length() || s.charAt(i) != ';')
+            while (c != EOF && Character.isWhitespace(c))
+                c = next();
+            if (c != ';')
                 break;
-            while (i < s.length() && s.charAt(i) != '\n')
-                i++;
-        }
-
-        int e = i + 1;
-        Token t;
-        if (i == s.length())
-            t = Token.END;
-        else if (s.charAt(i) == '(')
-            t = Token.LP;
-        else if (s.charAt(i) == ')')
-            t = Token.RP;
-        else if (s.charAt(i) == '[')
-            t = Token.LB;
-        else if (s.charAt(i) == ']')
-            t = Token.RB;
-        else if (s.charAt(i) == '.')
-            t = Token.DOT;
-        else if (s.charAt(i) == '\'')
-            t = Token.QUOTE;
-        else if (s.charAt(i) == '"') {
-            while (e < s.length() && s.charAt(e) != '\n' && s.charAt(e) != '"')
-                e++;
-            if (s.charAt(e) != '"')
+            while (c != EOF && c != '\n')
+                c = next();
+        }
+
+        if (c == EOF)
+            return Token.END;
+        if (c == '(')
+            return Token.LP;
+        if (c == ')')
+            return Token.RP;
+        if (c == '[')
+            return Token.LB;
+        if (c == ']')
+            return Token.RB;
+        if (c == '.')
+            return Token.DOT;
+        if (c == '\'')
+            return Token.QUOTE;
+        if (c == '"') {
+            tokenLength = 0;
+            c = next();
+            while (c != EOF && c != '\n' && c != '"') {
+                append(c);
+                c = next();
+            }
+            if (c != '"')
                 throw new Exception("bad string");
-            e++;
-            t = Token.STRING;
-            tokenValue = new Str(s.substring(i + 1, e - 1));
-        }
-        else {
-            while (e < s.length()
-                    && !Character.isWhitespace(s.charAt(e))
-                    && s.charAt(e) != '(' && s.charAt(e) != ')'
-                    && s.charAt(e) != '[' && s.charAt(e) != ']'
-                    && s.charAt(e) != ';') {
-                e++;
+            tokenValue = new Str(new String(token, 0, tokenLength));
+            return Token.STRING;
+        }
+
+        tokenLength = 0;
+        append(c);
+        c = peek();
+        while (c != EOF
+                && !Character.isWhitespace(c)
+                && c != '(' && c != ')'
+                && c != '[' && c != ']'
+                && c != ';') {
+            append(next());
+            c = peek();
+        }
+        if (Character.isDigit(token[0]) || (tokenLength > 1 && token[0] == '-' && Character.isDigit(token[1]))) {
+            try {
+                tokenValue = number();
             }
-            String v = s.substring(i, e);
-            if (Character.isDigit(v.charAt(0)) || (v.length() > 1 && v.charAt(0) == '-' && Character.isDigit(v.charAt(1)))) {
-                try {
-                    t = Token.NUMBER;
-                    tokenValue = new Number(Double.parseDouble(v));
-                }
-                catch (Exception ex) {
-                    throw new Exception("bad integer");
-                }
+            catch (Exception ex) {
+                throw new Exception("bad integer");
             }
-            else {
-                t = Token.SYMBOL;
-                tokenValue = symTable.add(v);
+            return Token.NUMBER;
+        }
+        tokenValue = symTable.add(tokenChars, 0, tokenLength);
+        return Token.SYMBOL;
+    }
+
+    private void append(int c) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+            tokenChars = CharBuffer.wrap(token);
+        }
+        token[tokenLength++] = (char) c;
+    }
+
+    /** Returns a Fixnum or Bignum for an integer token, else a Flonum */
+    private Number number() {
+        long value = 0;
+        for (int i = 1; i < tokenLength; i++) {
+            if (!Character.isDigit(token[i]))
+                return Number.of(Double.parseDouble(new String(token, 0, tokenLength)));
+        }
+        if (tokenLength >= 19)
+            return Number.of(new BigInteger(new String(token, 0, tokenLength)));
+        // fits in a long, computed without a String
+        for (int i = token[0] == '-' ? 1 : 0; i < tokenLength; i++)
+            value = value * 10 + Character.digit(token[i], 10);
+        return Number.of(token[0] == '-' ? -value : value);
+    }
+
+    private int peek() throws IOException {
+        if (ahead == NONE)
+            ahead = read1();
+        return ahead;
+    }
+
+    private int next() throws IOException {
+        int c = peek();
+        ahead = NONE;
+        return c;
+    }
+
+    /** Reads the next character of the input, EOF at its end */
+    private int read1() throws IOException {
+        if (text != null)
+            return textNext < text.length() ? text.charAt(textNext++) : EOF;
+        if (reader != null) {
+            if (bufNext == bufEnd) {
+                int n = reader.read(buf, 0, buf.length);
+                if (n <= 0)
+                    return EOF;
+                bufNext = 0;
+                bufEnd = n;
             }
+            return buf[bufNext++];
+        }
+        return decode();
+    }
+
+    /** Decodes the next character of UTF-8 bytes, a malformed sequence
+     * becomes the replacement character
+     */
+    private int decode() {
+        if (low != NONE) {
+            int c = low;
+            low = NONE;
+            return c;
+        }
+        if (bytes == null || !bytes.hasRemaining())
+            return EOF;
+        int b = bytes.get() & 0xff;
+        if (b < 0x80)
+            return b;
+        int n;
+        int cp;
+        if (b >= 0xf8)
+            return 0xfffd;
+        if (b >= 0xf0) {
+            n = 3;
+            cp = b & 0x07;
+        }
+        else if (b >= 0xe0) {
+            n = 2;
+            cp = b & 0x0f;
+        }
+        else if (b >= 0xc0) {
+            n = 1;
+            cp = b & 0x1f;
+        }
+        else
+            return 0xfffd;
+        for (int i = 0; i < n; i++) {
+            if (!bytes.hasRemaining() || (bytes.get(bytes.position()) & 0xc0) != 0x80)
+                return 0xfffd;
+            cp = (cp << 6) | (bytes.get() & 0x3f);
+        }
+        if (cp >= 0x10000) {
+            low = Character.lowSurrogate(cp);
+            return Character.highSurrogate(cp);
         }
-        if (remove)
-            inputNext = e;
-        return t;
+        return cp;
     }
 }
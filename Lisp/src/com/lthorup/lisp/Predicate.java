@@ -11,61 +11,56 @@ package com.lthorup.lisp;
 public class Predicate {
 
     public static void addPrims(SymbolTable s) {
-        s.addPrim("equal", new Prim.Handler() {
+        s.addPrim("equal", new Prim.Strict(2, 2, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primEqual(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return primEqual(interp, a, b);
             }
         });
-        s.addPrim("not", new Prim.Handler() {
+        s.addPrim("not", new Prim.Strict(1, 1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primNot(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primNot(interp, a);
             }
         });
         s.addPrim("and", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primAnd(interp, args, env, level);
             }
         });
-        s.addPrim("null", new Prim.Handler() {
+        s.addPrim("null", new Prim.Strict(1, 1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primNull(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primNull(interp, a);
             }
         });
-        s.addPrim("atom", new Prim.Handler() {
+        s.addPrim("atom", new Prim.Strict(1, 1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primAtom(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primAtom(interp, a);
             }
         });
     }
 
-    private static Exp primEqual(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp a = argList.next(Exp.Type.ANY, env, false, level);
-        Exp b = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primEqual(Lisp interp, Exp a, Exp b) throws Exception {
         if (a.equal(b))
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primNot(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp e = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primNot(Lisp interp, Exp e) throws Exception {
         if (e == interp.symTable().T)
             return List.Nil;
         return interp.symTable().T;
     }
 
-    private static Exp primAnd(Lisp interp, List args, List env, int level) throws Exception {
+    private static Exp primAnd(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Exp a = argList.next(Exp.Type.ANY, env, false, level);
         Exp b = argList.next(Exp.Type.ANY, env, false, level);
@@ -79,17 +74,13 @@ public class Predicate {
         return List.Nil;
     }
 
-    private static Exp primNull(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp e = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primNull(Lisp interp, Exp e) throws Exception {
         if (e == List.Nil)
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primAtom(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp e = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primAtom(Lisp interp, Exp e) throws Exception {
         if (e == List.Nil || e.type() == Exp.Type.NUMBER || e.type() == Exp.Type.SYMBOL)
             return interp.symTable().T;
         return List.Nil;
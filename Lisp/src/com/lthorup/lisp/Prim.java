@@ -12,15 +12,127 @@ public class Prim extends Exp {
 
     public interface Handler {
 
-        public Exp eval(Lisp interp, List args, List env, int level) throws Exception;
+        public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception;
     }
-    public Handler handler;
+
+    /** A Handler for primitives whose arguments are all evaluated, left to
+     * right, before the primitive runs.
+     *
+     * It declares how many arguments it takes and their types, the last
+     * type applies to any further arguments. Engines that evaluate the
+     * arguments themselves check each one and call the method for their
+     * number of arguments directly. A primitive overrides the methods for
+     * the numbers of arguments it takes, callN receives any number of
+     * arguments that has no method of its own.
+     */
+    public static abstract class Strict implements Handler {
+
+        private final int min;
+        private final int max;
+        private final Exp.Type[] types;
+
+        /** max is -1 if there is no limit */
+        public Strict(int min, int max, Exp.Type... types) {
+            this.min = min;
+            this.max = max;
+            this.types = types;
+        }
+
+        public boolean accepts(int n) {
+            return n >= min && (max < 0 || n <= max);
+        }
+
+        /** Returns argument i after checking its type */
+        public final Exp check(int i, Exp arg) throws Exception {
+            Exp.Type type = types[Math.min(i, types.length - 1)];
+            if (type != Exp.Type.ANY && arg.type() != type)
+                throw new Exception(String.format("%s expected", Exp.typeName(type)));
+            return arg;
+        }
+
+        public Exp call0(Lisp interp) throws Exception {
+            return callN(interp, new Exp[0]);
+        }
+
+        public Exp call1(Lisp interp, Exp a) throws Exception {
+            return callN(interp, new Exp[]{a});
+        }
+
+        public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+            return callN(interp, new Exp[]{a, b});
+        }
+
+        public Exp call3(Lisp interp, Exp a, Exp b, Exp c) throws Exception {
+            return callN(interp, new Exp[]{a, b, c});
+        }
+
+        public Exp callN(Lisp interp, Exp[] args) throws Exception {
+            switch (args.length) {
+                case 0:
+                    return call0(interp);
+                case 1:
+                    return call1(interp, args[0]);
+                case 2:
+                    return call2(interp, args[0], args[1]);
+                case 3:
+                    return call3(interp, args[0], args[1], args[2]);
+                default:
+                    throw new Exception("wrong number of arguments");
+            }
+        }
+
+        /** Calls the primitive with arguments that have been evaluated and
+         * checked, picking the method for their number
+         */
+        public final Exp call(Lisp interp, Exp[] args) throws Exception {
+            switch (args.length) {
+                case 0:
+                    return call0(interp);
+                case 1:
+                    return call1(interp, args[0]);
+                case 2:
+                    return call2(interp, args[0], args[1]);
+                case 3:
+                    return call3(interp, args[0], args[1], args[2]);
+                default:
+                    return callN(interp, args);
+            }
+        }
+
+        @Override
+        public final Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+            int n = args.length();
+            if (!accepts(n))
+                throw new Exception("wrong number of arguments");
+            if (n == 1)
+                return call1(interp, check(0, interp.eval(args.head(), env, level)));
+            if (n == 2) {
+                Exp a = check(0, interp.eval(args.head(), env, level));
+                return call2(interp, a, check(1, interp.eval(args.tail().head(), env, level)));
+            }
+            Exp[] values = new Exp[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = check(i, interp.eval(args.head(), env, level));
+                args = args.tail();
+            }
+            return call(interp, values);
+        }
+    }
+
+    public final Handler handler;
 
     public Prim(Handler handler) {
         super(Type.PRIMATIVE);
         this.handler = handler;
     }
 
+    /** Returns the handler if it is Strict and takes n arguments, else null */
+    public Strict strict(int n) {
+        if (handler instanceof Strict && ((Strict) handler).accepts(n))
+            return (Strict) handler;
+        return null;
+    }
+
     @Override
     public void print(PrintHandler p, int level) {
         p.print("<PRIMATIVE>");
@@ -0,0 +1,68 @@
+/* Project: LispLib
+ * File:    Scope.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+/** This class represents the compile time Scope of a Frame.
+ *
+ * The Analyzer and the Compiler keep one Scope for each Frame the code
+ * they produce will run in and use it to turn variable names into
+ * (depth, index) pairs. Only the first visible names are in scope, which
+ * is how the inits of a let see the variables bound before them. The
+ * Compiler also keeps the Types its variables are known to have.
+ *
+ * @author Layne
+ */
+public class Scope {
+
+    private Symbol[] names;
+    private int visible;
+    private int[] types;
+    private Scope parent;
+
+    public Scope(Symbol[] names, int visible, Scope parent) {
+        this.names = names;
+        this.visible = visible;
+        this.parent = parent;
+    }
+
+    public Scope parent() {
+        return parent;
+    }
+
+    public void setVisible(int visible) {
+        this.visible = visible;
+    }
+
+    /** Sets the Types of the variables, null if none is known */
+    public void setTypes(int[] types) {
+        this.types = types;
+    }
+
+    /** Returns the type of the variable sym refers to, Types.ANY if it is
+     * not known or sym is global
+     */
+    public int type(Symbol sym) {
+        for (Scope s = this; s != null; s = s.parent) {
+            for (int i = s.visible - 1; i >= 0; i--) {
+                if (s.names[i] == sym)
+                    return s.types == null ? Types.ANY : s.types[i];
+            }
+        }
+        return Types.ANY;
+    }
+
+    /** Returns the depth and index of sym, null if sym is global */
+    public int[] resolve(Symbol sym) {
+        int depth = 0;
+        for (Scope s = this; s != null; s = s.parent) {
+            for (int i = s.visible - 1; i >= 0; i--) {
+                if (s.names[i] == sym)
+                    return new int[]{depth, i};
+            }
+            depth++;
+        }
+        return null;
+    }
+}
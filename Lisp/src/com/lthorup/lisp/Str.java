@@ -36,88 +36,80 @@ public class Str extends Exp {
         return value.equals(s.value);
     }
 
+    @Override
+    protected int hash(int depth) {
+        return value.hashCode();
+    }
+
     @Override
     public String toString() {
         return value;
     }
 
     public static void addPrims(SymbolTable s) {
-        s.addPrim("stringp", new Prim.Handler() {
+        s.addPrim("stringp", new Prim.Strict(1, 1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primStringp(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primStringp(interp, a);
             }
         });
-        s.addPrim("str", new Prim.Handler() {
+        s.addPrim("str", new Prim.Strict(1, -1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primStr(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return new Str(a.toString());
+            }
+
+            @Override
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return new Str(a.toString() + b.toString());
+            }
+
+            @Override
+            public Exp callN(Lisp interp, Exp[] args) throws Exception {
+                return primStr(interp, args);
             }
         });
-        s.addPrim("strlen", new Prim.Handler() {
+        s.addPrim("strlen", new Prim.Strict(1, 1, Exp.Type.STRING) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primStrLen(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return Number.of(((Str) a).value().length());
             }
         });
-        s.addPrim("substr", new Prim.Handler() {
+        s.addPrim("substr", new Prim.Strict(3, 3, Exp.Type.STRING, Exp.Type.NUMBER) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primStrSub(interp, args, env, level);
+            public Exp call3(Lisp interp, Exp a, Exp b, Exp c) throws Exception {
+                return primStrSub(interp, (Str) a, (Number) b, (Number) c);
             }
         });
-        s.addPrim("indexof", new Prim.Handler() {
+        s.addPrim("indexof", new Prim.Strict(2, 2, Exp.Type.STRING) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primStrIndexOf(interp, args, env, level);
+            public Exp call2(Lisp interp, Exp a, Exp b) throws Exception {
+                return Number.of(((Str) a).value().indexOf(((Str) b).value()));
             }
         });
     }
 
-    private static Exp primStringp(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp e = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primStringp(Lisp interp, Exp e) throws Exception {
         if (e.type() == Exp.Type.STRING)
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primStr(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp e = argList.next(Exp.Type.ANY, env, false, level);
-        String str = e.toString();
-        while (!argList.empty()) {
-            e = argList.next(Exp.Type.ANY, env, false, level);
-            str = str + e.toString();
-        }
-        return new Str(str);
-    }
-
-    private static Exp primStrLen(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Str s = (Str) argList.next(Exp.Type.STRING, env, true, level);
-        return new Number(s.value().length());
+    private static Exp primStr(Lisp interp, Exp[] args) throws Exception {
+        StringBuilder str = new StringBuilder();
+        for (Exp e : args)
+            str.append(e.toString());
+        return new Str(str.toString());
     }
 
-    private static Exp primStrSub(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Str s = (Str) argList.next(Exp.Type.STRING, env, false, level);
-        Number start = (Number) argList.next(Exp.Type.NUMBER, env, false, level);
-        Number len = (Number) argList.next(Exp.Type.NUMBER, env, true, level);
-        int startIndex = (int) start.value();
-        int length = (int) len.value();
+    private static Exp primStrSub(Lisp interp, Str s, Number start, Number len) throws Exception {
+        int startIndex = start.intValue();
+        int length = len.intValue();
         return new Str(s.value().substring(startIndex, startIndex + length));
     }
-
-    private static Exp primStrIndexOf(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Str s = (Str) argList.next(Exp.Type.STRING, env, false, level);
-        Str t = (Str) argList.next(Exp.Type.STRING, env, true, level);
-        return new Number(s.value().indexOf(t.value()));
-    }
 }
@@ -4,15 +4,22 @@
  */
 package com.lthorup.lisp;
 
+import java.util.*;
+
 /** This class represents a Symbol
  *
  * @author Layne
  */
 public class Symbol extends Exp {
 
-    private String name;
+    private final String name;
     private Exp value;
+    private Exp binding;
     private boolean trace;
+    private int version;
+    private ArrayList<Function> dependents;
+    // the entry of the SymbolTable it was added to
+    private SymbolTable.Entry entry;
 
     public Symbol(String name) {
         super(Type.SYMBOL);
@@ -29,8 +36,60 @@ public class Symbol extends Exp {
         return value;
     }
 
+    /** Sets the global value. Only the code assuming the old value is
+     * thrown away, a function that was the old value keeps its own, it may
+     * still be the value of another symbol
+     */
     public void setValue(Exp value) {
-        this.value = value;
+        if (this.value != value) {
+            this.value = value;
+            version++;
+            deoptimizeDependents();
+        }
+        hold();
+    }
+
+    void setEntry(SymbolTable.Entry entry) {
+        this.entry = entry;
+    }
+
+    /** Lets its SymbolTable collect it only while it has no value and is
+     * not traced
+     */
+    private void hold() {
+        if (entry != null)
+            entry.hold(value != null || trace ? this : null);
+    }
+
+    private void deoptimizeDependents() {
+        if (dependents != null) {
+            for (Function f : dependents())
+                f.deoptimize();
+        }
+    }
+
+    /** Returns the local value of the SHALLOW engine, null if unbound */
+    Exp binding() {
+        return binding;
+    }
+
+    void setBinding(Exp binding) {
+        this.binding = binding;
+    }
+
+    /** Registers a function whose generated code assumes the current value */
+    synchronized void addDependent(Function f) {
+        if (dependents == null)
+            dependents = new ArrayList<Function>();
+        dependents.add(f);
+    }
+
+    synchronized void removeDependent(Function f) {
+        dependents.remove(f);
+    }
+
+    private synchronized Function[] dependents() {
+        return dependents.toArray(new Function[dependents.size()]);
     }
 
     public boolean trace() {
@@ -39,6 +98,17 @@ public class Symbol extends Exp {
 
     public void setTrace(boolean trace) {
         this.trace = trace;
+        version++;
+        // an inlined call would not be traced
+        deoptimizeDependents();
+        hold();
+    }
+
+    /** Returns a number that changes whenever the value or the trace flag
+     * of the symbol does, call sites that cache the value compare it
+     */
+    public int version() {
+        return version;
     }
 
     @Override
@@ -51,62 +121,67 @@ public class Symbol extends Exp {
         return this == e;
     }
 
+    @Override
+    protected int hash(int depth) {
+        return name.hashCode();
+    }
+
     @Override
     public String toString() {
         return name;
     }
 
     public static void addPrims(SymbolTable s) {
-        s.addPrim("symbolp", new Prim.Handler() {
+        s.addPrim("symbolp", new Prim.Strict(1, 1, Exp.Type.ANY) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primSymbolp(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return primSymbolp(interp, a);
             }
         });
         s.addPrim("setq", new Prim.Handler() {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
                 return primSetq(interp, args, env, level);
             }
         });
-        s.addPrim("tosym", new Prim.Handler() {
+        s.addPrim("symstats", new Prim.Strict(0, 0, Exp.Type.ANY) {
+
+            @Override
+            public Exp call0(Lisp interp) throws Exception {
+                return primSymstats(interp);
+            }
+        });
+        s.addPrim("tosym", new Prim.Strict(1, 1, Exp.Type.STRING) {
 
             @Override
-            public Exp eval(Lisp interp, List args, List env, int level) throws Exception {
-                return primToSym(interp, args, env, level);
+            public Exp call1(Lisp interp, Exp a) throws Exception {
+                return interp.symTable().add(((Str) a).value());
             }
         });
     }
 
-    private static Exp primSymbolp(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Exp e = argList.next(Exp.Type.ANY, env, true, level);
+    private static Exp primSymbolp(Lisp interp, Exp e) throws Exception {
         if (e.type() == Exp.Type.SYMBOL)
             return interp.symTable().T;
         return List.Nil;
     }
 
-    private static Exp primSetq(Lisp interp, List args, List env, int level) throws Exception {
+    /** Returns the number of symbols in the table and the number collected
+     * so far
+     */
+    private static Exp primSymstats(Lisp interp) throws Exception {
+        SymbolTable table = interp.symTable();
+        interp.countConses(2);
+        return new List(Number.of(table.size()), new List(Number.of(table.collected()), List.Nil));
+    }
+
+    private static Exp primSetq(Lisp interp, List args, Frame env, int level) throws Exception {
         ArgList argList = new ArgList(interp, args);
         Symbol sym = (Symbol) argList.next(Exp.Type.SYMBOL, null, false, level);
         Exp value = argList.next(Exp.Type.ANY, env, true, level);
-        while (env != List.Nil) {
-            List binding = (List) env.head();
-            if (sym == binding.head()) {
-                binding.setTail(value);
-                return value;
-            }
-            env = env.tail();
-        }
-        sym.setValue(value);
+        interp.setq(sym, value, env);
         return value;
     }
-
-    private static Exp primToSym(Lisp interp, List args, List env, int level) throws Exception {
-        ArgList argList = new ArgList(interp, args);
-        Str s = (Str) argList.next(Exp.Type.STRING, env, true, level);
-        return interp.symTable().add(s.value());
-    }
 }
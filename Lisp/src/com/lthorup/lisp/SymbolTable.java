@@ -4,35 +4,193 @@
  */
 package com.lthorup.lisp;
 
+import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /** This class represents a SymbolTable
+ *
+ * A table can sit on top of a base table, normally the prelude of
+ * primitives and constants that is built once and shared by every
+ * interpreter. The base is only read: the first time a name is added to
+ * the table it gets its own Symbol, starting out with the value the name
+ * has in the base, so defining or setting it never changes the base or
+ * any other table built on it.
+ *
+ * Names are upper cased. Besides the list of symbols in the order they
+ * were added the table keeps an open addressing hash index of them, which
+ * is replaced as a whole when it grows. Looking up a symbol that is there
+ * already reads the index without a lock and, given a range of characters
+ * like the Parser does, without making a String of the name. Only adding a
+ * new symbol locks the table. Its slots are written with volatile stores,
+ * so a thread that finds a new symbol there also sees it complete, with
+ * the value it got from the base.
+ *
+ * A symbol is only held weakly while it has no value and is not traced,
+ * so names made up at run time, by tosym for instance, do not stay in the
+ * table forever: once nothing else refers to such a symbol it is
+ * collected and its entry dropped. Interning the name again makes a new
+ * symbol, which nobody can tell from the old one.
  *
  * @author Layne
  */
 public class SymbolTable {
 
     public Symbol T, NIL, REST, QUOTE;
-    private ArrayList<Symbol> table = new ArrayList<Symbol>();
+    private SymbolTable base;
+    // the symbols in the order they were added, entries of collected ones
+    // stay until there are enough of them to drop
+    private ArrayList<Entry> table = new ArrayList<Entry>();
+    // at least twice as many slots as entries so probing always ends at
+    // an empty one
+    private volatile AtomicReferenceArray<Entry> index = new AtomicReferenceArray<Entry>(64);
+    private ReferenceQueue<Symbol> queue = new ReferenceQueue<Symbol>();
+    private int serial;
+    // entries seen collected since they were last dropped
+    private int cleared;
+    private long collected;
 
-    public SymbolTable() {
+    public SymbolTable(SymbolTable base) {
+        this.base = base;
         T = add("T");
         T.setValue(T);
-        Symbol nil = add("NIL");
-        nil.setValue(List.Nil);
+        NIL = add("NIL");
+        NIL.setValue(List.Nil);
         REST = add("REST");
         QUOTE = add("QUOTE");
     }
 
     public final Symbol add(String name) {
-        String uname = name.toUpperCase();
-        for (Symbol s : table) {
-            if (s.name().equals(uname))
+        return add(name, 0, name.length());
+    }
+
+    /** Returns the symbol named by the characters of text from start to
+     * end, adding it if it is new
+     */
+    public final Symbol add(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) >= 128) {
+                // other letters are upper cased the way String does it
+                String uname = text.subSequence(start, end).toString().toUpperCase();
+                return intern(uname, 0, uname.length(), false);
+            }
+        }
+        return intern(text, start, end, true);
+    }
+
+    /** Returns the symbol named by the characters of text from start to
+     * end, upper cased first if fold is set
+     */
+    private Symbol intern(CharSequence text, int start, int end, boolean fold) {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = 31 * h + upper(text.charAt(i), fold);
+        Symbol s = find(index, text, start, end, fold, h);
+        if (s != null)
+            return s;
+        synchronized (this) {
+            s = find(index, text, start, end, fold, h);
+            if (s != null)
                 return s;
+            expunge();
+            StringBuilder uname = new StringBuilder(end - start);
+            for (int i = start; i < end; i++)
+                uname.append(upper(text.charAt(i), fold));
+            Symbol t = new Symbol(uname.toString());
+            Entry e = new Entry(t, h, serial++, queue);
+            t.setEntry(e);
+            if (base != null) {
+                Symbol b = find(base.index, uname, 0, uname.length(), false, h);
+                if (b != null && b.value() != null && b != base.T)
+                    t.setValue(b.value());
+            }
+            table.add(e);
+            if (table.size() * 2 > index.length())
+                reindex(index.length() * 2);
+            else
+                insert(index, e);
+            return t;
         }
-        Symbol t = new Symbol(uname);
-        table.add(t);
-        return t;
+    }
+
+    private static char upper(char c, boolean fold) {
+        if (fold && c >= 'a' && c <= 'z')
+            return (char) (c - 'a' + 'A');
+        return c;
+    }
+
+    private static Symbol find(AtomicReferenceArray<Entry> index, CharSequence text, int start, int end,
+            boolean fold, int h) {
+        int mask = index.length() - 1;
+        Entry e;
+        for (int i = (h ^ (h >>> 16)) & mask; (e = index.get(i)) != null; i = (i + 1) & mask) {
+            if (e.hash == h) {
+                Symbol s = e.get();
+                if (s != null && same(s.name(), text, start, end, fold))
+                    return s;
+            }
+        }
+        return null;
+    }
+
+    private static boolean same(String name, CharSequence text, int start, int end, boolean fold) {
+        if (name.length() != end - start)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != upper(text.charAt(start + i), fold))
+                return false;
+        }
+        return true;
+    }
+
+    private static void insert(AtomicReferenceArray<Entry> index, Entry e) {
+        int mask = index.length() - 1;
+        int i = (e.hash ^ (e.hash >>> 16)) & mask;
+        while (index.get(i) != null)
+            i = (i + 1) & mask;
+        index.set(i, e);
+    }
+
+    /** Builds the index of the entries in the table again with size slots */
+    private void reindex(int size) {
+        AtomicReferenceArray<Entry> newIndex = new AtomicReferenceArray<Entry>(size);
+        for (Entry e : table)
+            insert(newIndex, e);
+        index = newIndex;
+    }
+
+    /** Drops the entries of collected symbols once they are a quarter of
+     * the table
+     */
+    private void expunge() {
+        while (queue.poll() != null)
+            cleared++;
+        if (cleared * 4 <= table.size())
+            return;
+        ArrayList<Entry> live = new ArrayList<Entry>();
+        for (Entry e : table) {
+            if (e.get() != null)
+                live.add(e);
+        }
+        collected += table.size() - live.size();
+        table = live;
+        cleared = 0;
+        reindex(index.length());
+    }
+
+    /** Returns the number of symbols in the table */
+    public synchronized int size() {
+        int n = 0;
+        for (Entry e : table) {
+            if (e.get() != null)
+                n++;
+        }
+        return n;
+    }
+
+    /** Returns the number of symbols collected and dropped from the table */
+    public synchronized long collected() {
+        return collected;
     }
 
     public void addPrim(String name, Prim.Handler handler) {
@@ -40,12 +198,87 @@ public class SymbolTable {
         s.setValue(new Prim(handler));
     }
 
-    public List lookupTraced() {
+    /** Returns a Snapshot of the symbols in the table and their values */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(table, serial);
+    }
+
+    /** Puts the table back into the state of snapshot: symbols added since
+     * are dropped and the others get back their value and trace flag
+     */
+    public synchronized void restore(Snapshot snapshot) {
+        int n = table.size();
+        while (n > 0 && table.get(n - 1).serial >= snapshot.serial)
+            n--;
+        if (n < table.size()) {
+            table.subList(n, table.size()).clear();
+            reindex(index.length());
+        }
+        for (int i = 0; i < snapshot.symbols.length; i++) {
+            Symbol s = snapshot.symbols[i];
+            s.setValue(snapshot.values[i]);
+            s.setBinding(null);
+            if (s.trace() != snapshot.traces[i])
+                s.setTrace(snapshot.traces[i]);
+        }
+    }
+
+    /** The state of a SymbolTable at one point in time, it keeps the
+     * symbols there were from being collected
+     */
+    public static class Snapshot {
+
+        private Symbol[] symbols;
+        private Exp[] values;
+        private boolean[] traces;
+        private int serial;
+
+        private Snapshot(ArrayList<Entry> table, int serial) {
+            ArrayList<Symbol> live = new ArrayList<Symbol>();
+            for (Entry e : table) {
+                Symbol s = e.get();
+                if (s != null)
+                    live.add(s);
+            }
+            symbols = live.toArray(new Symbol[live.size()]);
+            values = new Exp[symbols.length];
+            traces = new boolean[symbols.length];
+            for (int i = 0; i < symbols.length; i++) {
+                values[i] = symbols[i].value();
+                traces[i] = symbols[i].trace();
+            }
+            this.serial = serial;
+        }
+    }
+
+    public synchronized List lookupTraced() {
         List t = List.Nil;
-        for (Symbol s : table) {
-            if (s.trace())
+        for (Entry e : table) {
+            Symbol s = e.get();
+            if (s != null && s.trace())
                 t = new List(s, t);
         }
         return t;
     }
+
+    /** The place of a symbol in the table, which only refers to it weakly
+     * unless it is held
+     */
+    static final class Entry extends WeakReference<Symbol> {
+
+        final int hash;
+        final int serial;
+        private Symbol held;
+
+        private Entry(Symbol s, int hash, int serial, ReferenceQueue<Symbol> queue) {
+            super(s, queue);
+            this.hash = hash;
+            this.serial = serial;
+        }
+
+        /** Keeps s from being collected, or lets it go if s is null */
+        void hold(Symbol s) {
+            held = s;
+        }
+    }
 }
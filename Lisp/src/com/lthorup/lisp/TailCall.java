@@ -0,0 +1,70 @@
+/* Project: LispLib
+ * File:    TailCall.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+/** This class represents a pending TailCall.
+ *
+ * Code in tail position returns one of these instead of making a Java
+ * call, and the loop that called it carries on with the work described:
+ * either an expression to evaluate in env (special form primitives) or a
+ * function whose body is to be run in env (analyzed and compiled code).
+ * The form of a function call and the environment it was made in are
+ * kept for the backtrace of an error in the body. A TailCall never
+ * escapes the engine that created it.
+ *
+ * @author Layne
+ */
+public class TailCall extends Exp {
+
+    private Exp exp;
+    private Function f;
+    private Frame env;
+    private Exp form;
+    private Frame caller;
+
+    public TailCall(Exp exp, Frame env) {
+        super(Type.ANY);
+        this.exp = exp;
+        this.env = env;
+    }
+
+    public TailCall(Function f, Frame env, Exp form, Frame caller) {
+        super(Type.ANY);
+        this.f = f;
+        this.env = env;
+        this.form = form;
+        this.caller = caller;
+    }
+
+    public Exp exp() {
+        return exp;
+    }
+
+    public Function function() {
+        return f;
+    }
+
+    public Frame env() {
+        return env;
+    }
+
+    public Exp form() {
+        return form;
+    }
+
+    public Frame caller() {
+        return caller;
+    }
+
+    @Override
+    public void print(PrintHandler p, int level) {
+        p.print("<TAILCALL>");
+    }
+
+    @Override
+    public boolean equal(Exp e) {
+        return this == e;
+    }
+}
@@ -0,0 +1,331 @@
+/* Project: LispLib
+ * File:    Types.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.*;
+
+/** This class represents the Types of numeric code.
+ *
+ * (declare (number x y) (float z)) fails unless x and y are numbers and
+ * z is a floating point number. Declarations at the start of the body of
+ * a function, a let or a for also tell the Compiler the types of those
+ * variables for the rest of the body, the declare itself being the check
+ * on entry. A declared variable only keeps its type if every setq of it in
+ * the body assigns a value that has the type for sure, a number literal,
+ * a variable of the type or arithmetic on them, and if nothing in the body
+ * could assign it behind the Compiler's back, eval or a macro. The
+ * counter of a for is a number the same way without a declaration.
+ *
+ * With these types the Compiler finds the arithmetic and comparisons that
+ * the Jit can compute without boxing or checking anything in between. As
+ * with the Jit's other assumptions, the operators and the symbols the
+ * types were inferred from are guarded, rebinding them deoptimizes.
+ *
+ * @author Layne
+ */
+public class Types {
+
+    public static final int ANY = 0;
+    public static final int NUMBER = 1;
+    public static final int FLOAT = 2;
+
+    // operations, arithmetic before the functions of one argument before
+    // the comparisons
+    public static final int ADD = 0, SUB = 1, MUL = 2, DIV = 3;
+    public static final int SIN = 4, COS = 5, TAN = 6, SQRT = 7;
+    public static final int LESS = 8, LESSEQ = 9, GREATER = 10, GREATEREQ = 11, EQUALS = 12;
+
+    private static final String[] OPS = {
+        "+", "-", "*", "/", "sin", "cos", "tan", "sqrt", "<", "<=", ">", ">=", "="};
+
+    private SymbolTable symTable;
+    private Symbol DECLARE, SETQ, LET, FOR, LAMBDA, DEFUN, DEMACRO, EVAL;
+    private Symbol[] symbols = new Symbol[OPS.length];
+    private Exp[] prims = new Exp[OPS.length];
+    private Exp declare;
+
+    public Types(SymbolTable symTable) {
+        this.symTable = symTable;
+        DECLARE = symTable.add("DECLARE");
+        SETQ = symTable.add("SETQ");
+        LET = symTable.add("LET");
+        FOR = symTable.add("FOR");
+        LAMBDA = symTable.add("LAMBDA");
+        DEFUN = symTable.add("DEFUN");
+        DEMACRO = symTable.add("DEMACRO");
+        EVAL = symTable.add("EVAL");
+        declare = DECLARE.value();
+        for (int i = 0; i < OPS.length; i++) {
+            symbols[i] = symTable.add(OPS[i]);
+            prims[i] = symbols[i].value();
+        }
+    }
+
+    public static boolean arithmetic(int op) {
+        return op <= DIV;
+    }
+
+    public static boolean comparison(int op) {
+        return op >= LESS;
+    }
+
+    /** Returns the operation sym stands for while it is bound to its
+     * primitive, else -1
+     */
+    public int op(Symbol sym) {
+        for (int i = 0; i < OPS.length; i++) {
+            if (symbols[i] == sym)
+                return sym.value() == prims[i] ? i : -1;
+        }
+        return -1;
+    }
+
+    public Symbol symbol(int op) {
+        return symbols[op];
+    }
+
+    /** Returns the type of op applied to values of the types a and b */
+    public static int result(int op, int a, int b) {
+        if (comparison(op))
+            return ANY;
+        if (!arithmetic(op) || a == FLOAT || b == FLOAT)
+            return FLOAT;
+        return NUMBER;
+    }
+
+    /** Returns true if a value of type has the type declared */
+    public static boolean conforms(int type, int declared) {
+        return declared == ANY || type == declared || (type == FLOAT && declared == NUMBER);
+    }
+
+    /** Returns the type the name of a declaration stands for, ANY if it
+     * stands for none
+     */
+    private static int type(Exp name) {
+        if (name.type() != Exp.Type.SYMBOL)
+            return ANY;
+        if (((Symbol) name).name().equals("NUMBER"))
+            return NUMBER;
+        if (((Symbol) name).name().equals("FLOAT"))
+            return FLOAT;
+        return ANY;
+    }
+
+    /** Returns the type a declaration like (float x y) declares, ANY if it
+     * is not one
+     */
+    public static int declaration(Exp spec) {
+        if (spec.type() != Exp.Type.LIST || spec == List.Nil)
+            return ANY;
+        List l = (List) spec;
+        int type = type(l.head());
+        for (Exp e = l.tailExp(); e != List.Nil; e = ((List) e).tailExp()) {
+            if (e.type() != Exp.Type.LIST || ((List) e).head().type() != Exp.Type.SYMBOL)
+                return ANY;
+        }
+        return type;
+    }
+
+    /** Fails unless value has type */
+    public static Exp check(Exp value, int type) throws Exception {
+        if (type == FLOAT && !(value instanceof Number.Flonum))
+            throw new Exception("float expected");
+        if (value.type() != Exp.Type.NUMBER)
+            throw new Exception("number expected");
+        return value;
+    }
+
+    public static void addPrims(SymbolTable s) {
+        s.addPrim("declare", new Prim.Handler() {
+
+            @Override
+            public Exp eval(Lisp interp, List args, Frame env, int level) throws Exception {
+                return primDeclare(interp, args, env, level);
+            }
+        });
+    }
+
+    private static Exp primDeclare(Lisp interp, List args, Frame env, int level) throws Exception {
+        ArgList argList = new ArgList(interp, args);
+        while (!argList.empty()) {
+            Exp spec = argList.next(Exp.Type.LIST, null, false, level);
+            int type = declaration(spec);
+            if (type == ANY)
+                throw new Exception("bad declaration");
+            for (List v = ((List) spec).tail(); v != List.Nil; v = v.tail())
+                check(interp.eval(v.head(), env, level), type);
+        }
+        return List.Nil;
+    }
+
+    /** Returns true if e is a declare the Compiler understands */
+    public boolean declare(Exp e) {
+        if (e.type() != Exp.Type.LIST || e == List.Nil || ((List) e).head() != DECLARE)
+            return false;
+        for (Exp specs = ((List) e).tailExp(); specs != List.Nil; specs = ((List) specs).tailExp()) {
+            if (specs.type() != Exp.Type.LIST || declaration(((List) specs).head()) == ANY)
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the types of the variables in names for the code of body:
+     * the types the declare forms at its start give them, or the types
+     * given, which have been checked already. A variable loses its type
+     * if anything in body may assign it a value of another type. Returns
+     * null if no variable has a type, else adds the symbols the types rely
+     * on to guards.
+     *
+     * outer is the Scope around names, for the types of the variables of
+     * enclosing functions, lets and fors.
+     */
+    public int[] declared(List body, Symbol[] names, int[] given, Scope outer, ArrayList<Symbol> guards) {
+        int[] types = given == null ? new int[names.length] : Arrays.copyOf(given, names.length);
+        boolean any = given != null;
+        for (List l = body; l != List.Nil && declare(l.head()) && DECLARE.value() == declare; l = l.tail()) {
+            for (List specs = ((List) l.head()).tail(); specs != List.Nil; specs = specs.tail()) {
+                List spec = (List) specs.head();
+                int type = declaration(spec);
+                for (List v = spec.tail(); v != List.Nil; v = v.tail()) {
+                    for (int i = 0; i < names.length; i++) {
+                        if (names[i] == v.head()) {
+                            types[i] = type;
+                            any = true;
+                        }
+                    }
+                }
+            }
+        }
+        if (!any)
+            return null;
+
+        ArrayList<List> setqs = new ArrayList<List>();
+        ArrayList<Symbol> binders = new ArrayList<Symbol>();
+        ArrayList<Symbol> heads = new ArrayList<Symbol>();
+        scan(body, setqs, binders, heads);
+        for (Symbol h : heads) {
+            Exp value = h.value();
+            if (h == EVAL || (value != null && value.type() == Exp.Type.FUNCTION && ((Function) value).macro()))
+                return null;
+        }
+        // a variable bound again inside the body may refer to another one
+        for (int i = 0; i < names.length; i++) {
+            if (binders.contains(names[i]))
+                types[i] = ANY;
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (List setq : setqs) {
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i] == setq.get(1) && types[i] != ANY
+                            && !conforms(infer(setq.get(2), names, types, outer, binders), types[i])) {
+                        types[i] = ANY;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        any = false;
+        for (int t : types)
+            any |= t != ANY;
+        if (!any)
+            return null;
+        for (Symbol h : heads) {
+            if (!guards.contains(h))
+                guards.add(h);
+        }
+        return types;
+    }
+
+    /** Returns the type a value of e has for sure */
+    private int infer(Exp e, Symbol[] names, int[] types, Scope outer, ArrayList<Symbol> binders) {
+        switch (e.type()) {
+            case NUMBER:
+                return e instanceof Number.Flonum ? FLOAT : NUMBER;
+            case SYMBOL:
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i] == e)
+                        return types[i];
+                }
+                if (outer == null || binders.contains(e))
+                    return ANY;
+                return outer.type((Symbol) e);
+            case LIST: {
+                if (e == List.Nil || ((List) e).head().type() != Exp.Type.SYMBOL)
+                    return ANY;
+                List form = (List) e;
+                int op = op((Symbol) form.head());
+                if (op < 0 || comparison(op))
+                    return ANY;
+                if (!arithmetic(op))
+                    return FLOAT;
+                // the value is a number or the primitive fails, a float
+                // argument makes it a float
+                for (Exp a = form.tailExp(); a.type() == Exp.Type.LIST && a != List.Nil; a = ((List) a).tailExp()) {
+                    if (infer(((List) a).head(), names, types, outer, binders) == FLOAT)
+                        return FLOAT;
+                }
+                return NUMBER;
+            }
+            default:
+                return ANY;
+        }
+    }
+
+    /** Collects the setq forms in e, the variables bound in it and the
+     * symbols it calls, leaving out quoted data
+     */
+    private void scan(Exp e, ArrayList<List> setqs, ArrayList<Symbol> binders, ArrayList<Symbol> heads) {
+        if (e.type() != Exp.Type.LIST || e == List.Nil)
+            return;
+        List form = (List) e;
+        Exp head = form.head();
+        if (head == symTable.QUOTE)
+            return;
+        if (head.type() == Exp.Type.SYMBOL) {
+            if (!heads.contains(head))
+                heads.add((Symbol) head);
+            int n = properList(form) ? form.length() : 0;
+            if (head == SETQ && n == 3 && form.get(1).type() == Exp.Type.SYMBOL)
+                setqs.add(form);
+            else if ((head == LET || head == LAMBDA) && n >= 2)
+                bound(form.get(1), binders);
+            else if (head == FOR && n >= 2)
+                bound(form.get(1), binders);
+            else if ((head == DEFUN || head == DEMACRO) && n >= 3)
+                bound(form.get(2), binders);
+        }
+        while (e.type() == Exp.Type.LIST && e != List.Nil) {
+            scan(((List) e).head(), setqs, binders, heads);
+            e = ((List) e).tailExp();
+        }
+    }
+
+    /** Adds the variables of a let, lambda or for to binders */
+    private static void bound(Exp vars, ArrayList<Symbol> binders) {
+        if (vars.type() == Exp.Type.SYMBOL) {
+            binders.add((Symbol) vars);
+            return;
+        }
+        while (vars.type() == Exp.Type.LIST && vars != List.Nil) {
+            Exp v = ((List) vars).head();
+            if (v.type() == Exp.Type.LIST && v != List.Nil)
+                v = ((List) v).head();
+            if (v.type() == Exp.Type.SYMBOL)
+                binders.add((Symbol) v);
+            vars = ((List) vars).tailExp();
+        }
+    }
+
+    private static boolean properList(List n) {
+        while (n != List.Nil) {
+            if (n.tailExp().type() != Exp.Type.LIST)
+                return false;
+            n = (List) n.tailExp();
+        }
+        return true;
+    }
+}
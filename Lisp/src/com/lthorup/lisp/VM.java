@@ -0,0 +1,329 @@
+/* Project: LispLib
+ * File:    VM.java
+ * Created: Oct 18, 2026
+ */
+package com.lthorup.lisp;
+
+import java.util.*;
+
+/** This class represents the VM that executes compiled function Code.
+ *
+ * Calls from one compiled function to another are handled inside the
+ * dispatch loop by pushing a frame, so they cost neither a Java call nor
+ * an intermediate argument list, and a TCALL reuses the frame of the call
+ * it ends so tail recursion runs in constant space. The operand stack and
+ * the frame stack are kept between runs and grow on demand; a run started
+ * from inside a primitive simply continues above the frames of the run
+ * that called it.
+ *
+ * @author Layne
+ */
+public class VM {
+
+    private Lisp interp;
+    private Compiler compiler;
+
+    private Exp[] stack = new Exp[256];
+    private int sp = 0;
+
+    // saved caller state, one entry per active call
+    private Code[] frameCode = new Code[64];
+    private int[] framePc = new int[64];
+    private Frame[] frameEnv = new Frame[64];
+    private int[] frameLevel = new int[64];
+    private int[] frameBase = new int[64];
+    // the form and environment of the TCALL that replaced the call, if any
+    private Exp[] frameTail = new Exp[64];
+    private Frame[] frameTailEnv = new Frame[64];
+    private int fp = 0;
+
+    public VM(Lisp interp, Compiler compiler) {
+        this.interp = interp;
+        this.compiler = compiler;
+    }
+
+    public Exp run(Function f, Frame env, int level) throws Exception {
+        int baseSp = sp;
+        int baseFp = fp;
+        try {
+            return execute(f.compiled(compiler), env, level, baseSp, baseFp);
+        }
+        finally {
+            Arrays.fill(stack, baseSp, sp, null);
+            sp = baseSp;
+            fp = baseFp;
+        }
+    }
+
+    private Exp execute(Code c, Frame env, int level, int baseSp, int baseFp) throws Exception {
+        Symbol T = interp.symTable().T;
+        int[] code = c.code();
+        Exp[] consts = c.consts();
+        int pc = 0;
+        // the TCALL that replaced the running call, for the backtrace
+        Exp tail = null;
+        Frame tailEnv = null;
+        ensureStack(c.maxStack());
+        try {
+            while (true) {
+                switch (code[pc]) {
+                    case Code.CONST:
+                        stack[sp++] = consts[code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Code.LOAD:
+                        stack[sp++] = global((Symbol) consts[code[pc + 1]]);
+                        pc += 2;
+                        break;
+                    case Code.SETQ:
+                        interp.checkGlobal();
+                        ((Symbol) consts[code[pc + 1]]).setValue(stack[sp - 1]);
+                        pc += 2;
+                        break;
+                    case Code.LOCAL:
+                        stack[sp++] = env.get(code[pc + 1], code[pc + 2]);
+                        pc += 3;
+                        break;
+                    case Code.SETL:
+                        env.set(code[pc + 1], code[pc + 2], stack[sp - 1]);
+                        pc += 3;
+                        break;
+                    case Code.POP:
+                        stack[--sp] = null;
+                        pc += 1;
+                        break;
+                    case Code.JUMP:
+                        pc = code[pc + 1];
+                        break;
+                    case Code.JUMPF:
+                        if (stack[--sp] != T)
+                            pc = code[pc + 1];
+                        else
+                            pc += 2;
+                        break;
+                    case Code.LOOP:
+                        interp.checkStop();
+                        pc = code[pc + 1];
+                        break;
+                    case Code.ENTER: {
+                        Symbol[] names = c.frames()[code[pc + 1]];
+                        env = new Frame(names, new Exp[names.length], env);
+                        pc += 2;
+                        break;
+                    }
+                    case Code.BIND:
+                        env.set(code[pc + 1], stack[--sp]);
+                        stack[sp] = null;
+                        pc += 2;
+                        break;
+                    case Code.LEAVE:
+                        env = env.parent();
+                        pc += 1;
+                        break;
+                    case Code.GUARD:
+                        if (((Symbol) consts[code[pc + 1]]).value() != consts[code[pc + 2]])
+                            pc = code[pc + 3];
+                        else
+                            pc += 4;
+                        break;
+                    case Code.INTRINSIC: {
+                        int op = code[pc + 1];
+                        if (Intrinsic.arity(op) == 1)
+                            stack[sp - 1] = Intrinsic.apply(op, stack[sp - 1], null, interp);
+                        else {
+                            Exp value = Intrinsic.apply(op, stack[sp - 2], stack[sp - 1], interp);
+                            stack[--sp] = null;
+                            stack[sp - 1] = value;
+                        }
+                        pc += 3;
+                        break;
+                    }
+                    case Code.CHECK:
+                        Types.check(stack[sp - 1], code[pc + 1]);
+                        pc += 2;
+                        break;
+                    case Code.TYPED:
+                        pc += 3;
+                        break;
+                    case Code.FOR: {
+                        long i = ((Number) stack[sp - 3]).longValue();
+                        if (i > ((Number) stack[sp - 2]).longValue()) {
+                            stack[sp - 3] = stack[sp - 1];
+                            stack[--sp] = null;
+                            stack[--sp] = null;
+                            pc = code[pc + 1];
+                            break;
+                        }
+                        env.set(0, Number.of(i));
+                        stack[sp - 3] = Number.of(i + 1);
+                        stack[--sp] = null;
+                        pc += 2;
+                        break;
+                    }
+                    case Code.EVAL: {
+                        // evaluation may run nested code that reallocates the stack
+                        Exp value = interp.eval(consts[code[pc + 1]], env, level);
+                        stack[sp++] = value;
+                        pc += 2;
+                        break;
+                    }
+                    case Code.CALLPREP: {
+                        Exp op = stack[sp - 1];
+                        List form = (List) consts[code[pc + 1]];
+                        if (op.type() == Exp.Type.FUNCTION && !((Function) op).macro() && !traced(form)) {
+                            pc += 4;
+                            break;
+                        }
+                        if (op.type() == Exp.Type.PRIMATIVE && ((Prim) op).strict(code[pc + 2]) != null) {
+                            pc += 4;
+                            break;
+                        }
+                        Exp value = interp.apply(op, form, env, level);
+                        stack[sp - 1] = value;
+                        pc = code[pc + 3];
+                        break;
+                    }
+                    case Code.CALL:
+                    case Code.TCALL: {
+                        interp.checkCall(level);
+                        int n = code[pc + 1];
+                        int base = sp - n - 1;
+                        if (stack[base].type() == Exp.Type.PRIMATIVE) {
+                            // checked by CALLPREP, the result of a TCALL is returned by the RET after it
+                            Exp value = callStrict(((Prim) stack[base]).strict(n), base + 1, n);
+                            Arrays.fill(stack, base, sp, null);
+                            sp = base;
+                            stack[sp++] = value;
+                            pc += 3;
+                            break;
+                        }
+                        Function f = (Function) stack[base];
+                        Frame newEnv = f.bind(interp, stack, base + 1, n);
+                        Arrays.fill(stack, base, sp, null);
+                        sp = base;
+                        JitCode jc = interp.jit().tier(f);
+                        if (jc != null) {
+                            Exp value = interp.jit().resume(jc.run(interp, newEnv, level + 1), level + 1);
+                            stack[sp++] = value;
+                            pc += 3;
+                            break;
+                        }
+                        if (code[pc] == Code.TCALL) {
+                            // the current call is finished, reuse its frame
+                            int start = fp > baseFp ? frameBase[fp - 1] : baseSp;
+                            Arrays.fill(stack, start, sp, null);
+                            sp = start;
+                            tail = consts[code[pc + 2]];
+                            tailEnv = env;
+                        }
+                        else {
+                            pushFrame(c, pc + 3, env, level, base, tail, tailEnv);
+                            level = level + 1;
+                            tail = null;
+                            tailEnv = null;
+                        }
+                        c = f.compiled(compiler);
+                        code = c.code();
+                        consts = c.consts();
+                        env = newEnv;
+                        pc = 0;
+                        ensureStack(c.maxStack());
+                        break;
+                    }
+                    case Code.RET: {
+                        Exp value = stack[--sp];
+                        if (fp == baseFp)
+                            return value;
+                        fp--;
+                        Arrays.fill(stack, frameBase[fp], sp, null);
+                        sp = frameBase[fp];
+                        stack[sp++] = value;
+                        c = frameCode[fp];
+                        code = c.code();
+                        consts = c.consts();
+                        pc = framePc[fp];
+                        env = frameEnv[fp];
+                        level = frameLevel[fp];
+                        tail = frameTail[fp];
+                        tailEnv = frameTailEnv[fp];
+                        frameCode[fp] = null;
+                        frameEnv[fp] = null;
+                        frameTail[fp] = null;
+                        frameTailEnv[fp] = null;
+                        break;
+                    }
+                    default:
+                        throw new Exception("bad instruction");
+                }
+            }
+        }
+        catch (Exception err) {
+            // the forms the error passes through are added like Lisp.eval,
+            // those of the calls this run entered first
+            LispError error = LispError.from(err);
+            c.backtrace(error, pc, env, level);
+            if (tail != null)
+                error.addTail(tail, tailEnv, level);
+            for (int i = fp - 1; i >= baseFp; i--) {
+                frameCode[i].backtrace(error, framePc[i] - 3, frameEnv[i], frameLevel[i]);
+                if (frameTail[i] != null)
+                    error.addTail(frameTail[i], frameTailEnv[i], frameLevel[i]);
+            }
+            throw error;
+        }
+    }
+
+    private Exp callStrict(Prim.Strict p, int first, int n) throws Exception {
+        switch (n) {
+            case 0:
+                return p.call0(interp);
+            case 1:
+                return p.call1(interp, p.check(0, stack[first]));
+            case 2:
+                return p.call2(interp, p.check(0, stack[first]), p.check(1, stack[first + 1]));
+            default: {
+                Exp[] args = new Exp[n];
+                for (int i = 0; i < n; i++)
+                    args[i] = p.check(i, stack[first + i]);
+                return p.call(interp, args);
+            }
+        }
+    }
+
+    private boolean traced(List form) {
+        return form.head().type() == Exp.Type.SYMBOL && ((Symbol) form.head()).trace();
+    }
+
+    static Exp global(Symbol sym) throws Exception {
+        Exp value = sym.value();
+        if (value == null)
+            throw new Exception("unbound symbol");
+        return value;
+    }
+
+    private void pushFrame(Code c, int pc, Frame env, int level, int base, Exp tail, Frame tailEnv) {
+        if (fp == frameCode.length) {
+            int size = fp * 2;
+            frameCode = Arrays.copyOf(frameCode, size);
+            framePc = Arrays.copyOf(framePc, size);
+            frameEnv = Arrays.copyOf(frameEnv, size);
+            frameLevel = Arrays.copyOf(frameLevel, size);
+            frameBase = Arrays.copyOf(frameBase, size);
+            frameTail = Arrays.copyOf(frameTail, size);
+            frameTailEnv = Arrays.copyOf(frameTailEnv, size);
+        }
+        frameCode[fp] = c;
+        framePc[fp] = pc;
+        frameEnv[fp] = env;
+        frameLevel[fp] = level;
+        frameBase[fp] = base;
+        frameTail[fp] = tail;
+        frameTailEnv[fp] = tailEnv;
+        fp++;
+    }
+
+    private void ensureStack(int needed) {
+        if (sp + needed > stack.length)
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + needed));
+    }
+}